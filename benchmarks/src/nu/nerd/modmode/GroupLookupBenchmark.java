@@ -0,0 +1,116 @@
+package nu.nerd.modmode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// ----------------------------------------------------------------------------
+/**
+ * Looking up the group of a player, as ModMode#getGroupPlayerMemberOf()
+ * does: a {@link UUIDIndex} probe for the group ordinal, then a list lookup.
+ * The HashMap variant is the map of UUIDs to groups it replaced, for
+ * comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GroupLookupBenchmark {
+
+    /**
+     * The number of players in a group.
+     */
+    @Param({"10", "100", "1000"})
+    public int staff;
+
+    private final List<String> groupsByOrdinal = List.of("ModMode", "AdminMode");
+    private final UUIDIndex playerGroups = new UUIDIndex();
+    private final HashMap<UUID, String> playerGroupMap = new HashMap<>();
+
+    private final List<UUID> members = new ArrayList<>();
+    private final List<UUID> strangers = new ArrayList<>();
+    private int next;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Put the staff in groups and make some players who are in none. The
+     * UUIDs are copies, so lookups compare them rather than hitting on
+     * identity.
+     */
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < staff; ++i) {
+            UUID uuid = UUID.randomUUID();
+            playerGroups.put(uuid, i % groupsByOrdinal.size());
+            playerGroupMap.put(uuid, groupsByOrdinal.get(i % groupsByOrdinal.size()));
+            members.add(new UUID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+            strangers.add(UUID.randomUUID());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a player in a group.
+     */
+    @Benchmark
+    public String indexMember() {
+        int ordinal = playerGroups.get(nextOf(members));
+        return (ordinal == UUIDIndex.NONE) ? null : groupsByOrdinal.get(ordinal);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a player in no group, the common case for event handlers.
+     */
+    @Benchmark
+    public String indexStranger() {
+        int ordinal = playerGroups.get(nextOf(strangers));
+        return (ordinal == UUIDIndex.NONE) ? null : groupsByOrdinal.get(ordinal);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a player in a group in a HashMap.
+     */
+    @Benchmark
+    public String hashMapMember() {
+        return playerGroupMap.get(nextOf(members));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a player in no group in a HashMap.
+     */
+    @Benchmark
+    public String hashMapStranger() {
+        return playerGroupMap.get(nextOf(strangers));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cycle through the players of a list.
+     */
+    private UUID nextOf(List<UUID> players) {
+        if (++next == players.size()) {
+            next = 0;
+        }
+        return players.get(next);
+    }
+
+} // GroupLookupBenchmark
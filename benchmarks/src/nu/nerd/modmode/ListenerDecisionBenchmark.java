@@ -0,0 +1,141 @@
+package nu.nerd.modmode;
+
+import nu.nerd.modmode.bench.Stubs;
+import nu.nerd.modmode.listeners.ProtectionListener;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+// ----------------------------------------------------------------------------
+/**
+ * The decisions the protection event handlers make for each event, made by
+ * calling ProtectionListener's own decision methods with the same session
+ * and presence lookups as its handlers: whether a mob may target a player,
+ * whether a player may pick up an item, and whether a block event is near
+ * enough to a vanished player to look at.
+ *
+ * Most events on a server involve players who are not staff, so the
+ * stranger and far-away cases are the ones that matter most.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ListenerDecisionBenchmark {
+
+    /**
+     * The number of online staff with sessions.
+     */
+    @Param({"5", "50"})
+    public int staff;
+
+    private final StaffSessions sessions = new StaffSessions();
+    private final VanishedPresence presence = new VanishedPresence();
+    private final World world = Stubs.world("world");
+
+    /**
+     * Every group allows item interaction, so that the bypass flag is tested.
+     */
+    private final IntPredicate groupAllowsItems = ordinal -> true;
+
+    private final List<UUID> members = new ArrayList<>();
+    private final List<UUID> strangers = new ArrayList<>();
+    private int next;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open sessions for the staff, every other one in a mode and every third
+     * one vanished, and place the vanished ones around the origin.
+     */
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < staff; ++i) {
+            UUID uuid = UUID.randomUUID();
+            StaffSession session = sessions.add(uuid);
+            if (i % 2 == 0) {
+                session.setGroup(0, System.currentTimeMillis());
+            }
+            if (i % 3 == 0) {
+                session.setVanished(true);
+                presence.track(uuid, new Location(world, i * 40, 64, -i * 40));
+            }
+            members.add(new UUID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+            strangers.add(UUID.randomUUID());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A mob targeting a player who is not staff.
+     */
+    @Benchmark
+    public boolean targetStranger() {
+        return ProtectionListener.isTargetRefused(sessions.get(nextOf(strangers)));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A mob targeting a staff member.
+     */
+    @Benchmark
+    public boolean targetStaff() {
+        return ProtectionListener.isTargetRefused(sessions.get(nextOf(members)));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A staff member picking up an item.
+     */
+    @Benchmark
+    public boolean pickupStaff() {
+        return ProtectionListener.isItemInteractionBlocked(sessions.get(nextOf(members)), groupAllowsItems);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A block event far from every vanished player.
+     */
+    @Benchmark
+    public boolean blockEventFar() {
+        return ProtectionListener.isNearVanished(presence, world, (100_000 + next++ % 64) << 4, 100_000 << 4);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A block event in the chunk of a vanished player.
+     */
+    @Benchmark
+    public boolean blockEventNear() {
+        return ProtectionListener.isNearVanished(presence, world, 0, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cycle through the players of a list.
+     */
+    private UUID nextOf(List<UUID> players) {
+        if (++next >= players.size()) {
+            next = 0;
+        }
+        return players.get(next);
+    }
+
+} // ListenerDecisionBenchmark
@@ -0,0 +1,63 @@
+package nu.nerd.modmode.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// ----------------------------------------------------------------------------
+/**
+ * Runs the benchmarks with the GC profiler, so that the bytes allocated per
+ * operation are reported alongside the time, and saves the results as JSON
+ * under results/, named by date, so that runs can be compared over time.
+ *
+ * Usage: java -jar target/benchmarks.jar [regex...]
+ *
+ * Each argument selects the benchmarks whose names match it; with none, all
+ * benchmarks are run.
+ */
+public final class BenchmarkMain {
+
+    // ------------------------------------------------------------------------
+    /**
+     * Private constructor.
+     */
+    private BenchmarkMain() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Main method.
+     *
+     * @param args regular expressions selecting benchmarks.
+     */
+    public static void main(String[] args) throws RunnerException {
+        File results = new File("results");
+        if (!results.isDirectory() && !results.mkdirs()) {
+            System.err.println("Cannot create " + results.getAbsolutePath());
+            System.exit(1);
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+
+        OptionsBuilder builder = new OptionsBuilder();
+        if (args.length == 0) {
+            builder.include("nu\\.nerd\\.modmode\\..*Benchmark");
+        }
+        for (String pattern : args) {
+            builder.include(pattern);
+        }
+        Options options = builder
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(results, "jmh-" + stamp + ".json").getPath())
+                .build();
+        new Runner(options).run();
+    }
+
+} // BenchmarkMain
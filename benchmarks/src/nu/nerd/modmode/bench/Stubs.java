@@ -0,0 +1,336 @@
+package nu.nerd.modmode.bench;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.UnsafeValues;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// ----------------------------------------------------------------------------
+/**
+ * Just enough of a server, players and their inventories for ModMode's
+ * storage and lookup code to run outside of Minecraft.
+ *
+ * The stubs are dynamic proxies that answer the handful of methods the
+ * benchmarked code calls and return zero, false or null for everything else.
+ * Items are serialized by the stub server as gzipped blobs of about the size
+ * a real server produces for that kind of item, so that serialization and
+ * compression see realistic amounts of data.
+ */
+public final class Stubs {
+
+    /**
+     * The inventories benchmarked.
+     */
+    public enum Kind {
+        /**
+         * Nothing in either inventory.
+         */
+        EMPTY,
+
+        /**
+         * A staff member's usual kit: tools, some blocks and a few stacks in
+         * the ender chest.
+         */
+        TYPICAL,
+
+        /**
+         * Every slot of both inventories holding a full shulker box.
+         */
+        SHULKER_HEAVY
+    }
+
+    private static final int INVENTORY_SIZE = 41;
+    private static final int ENDER_CHEST_SIZE = 27;
+
+    /**
+     * The approximate serialized size of each item's NBT: a plain stack, a
+     * tool with enchantments and damage, and a shulker box of 27 such items.
+     */
+    private static final int PLAIN_ITEM_BYTES = 40;
+    private static final int TOOL_ITEM_BYTES = 180;
+    private static final int SHULKER_ITEM_BYTES = 27 * 120;
+
+    private static boolean installed;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Private constructor.
+     */
+    private Stubs() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Install the stub server as Bukkit's server, if not already done.
+     */
+    public static synchronized void installServer() {
+        if (installed) {
+            return;
+        }
+        UnsafeValues unsafe = stub(UnsafeValues.class, Map.of(
+                "serializeItem", args -> serializeItem((ItemStack) args[0]),
+                "deserializeItem", args -> deserializeItem((byte[]) args[0])));
+        ItemFactory itemFactory = stub(ItemFactory.class, Map.of(
+                "equals", args -> Objects.equals(args[0], args[1])));
+        Logger logger = Logger.getLogger("ModMode-benchmarks");
+        Server server = stub(Server.class, Map.of(
+                "getLogger", args -> logger,
+                "getName", args -> "Stub",
+                "getVersion", args -> "stub",
+                "getBukkitVersion", args -> "1.20-R0.1-SNAPSHOT",
+                "getUnsafe", args -> unsafe,
+                "getItemFactory", args -> itemFactory));
+        Bukkit.setServer(server);
+        installed = true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a player standing in a stub world with the given inventories.
+     *
+     * @param uuid       the player's UUID.
+     * @param inventory  the inventory contents, 41 slots.
+     * @param enderChest the ender chest contents, 27 slots.
+     * @return the player.
+     */
+    public static Player player(UUID uuid, ItemStack[] inventory, ItemStack[] enderChest) {
+        Location location = new Location(world("world"), 128.5, 64, -42.5, 90, 10);
+        PlayerInventory playerInventory = stub(PlayerInventory.class, Map.of(
+                "getContents", args -> inventory.clone(),
+                "getSize", args -> inventory.length));
+        Inventory enderInventory = stub(Inventory.class, Map.of(
+                "getContents", args -> enderChest.clone(),
+                "getSize", args -> enderChest.length));
+        return stub(Player.class, Map.of(
+                "getUniqueId", args -> uuid,
+                "getName", args -> "Staff",
+                "getLocation", args -> location.clone(),
+                "getHealth", args -> 20.0,
+                "getFoodLevel", args -> 18,
+                "getLevel", args -> 30,
+                "getExp", args -> 0.25f,
+                "getActivePotionEffects", args -> Collections.emptyList(),
+                "getInventory", args -> playerInventory,
+                "getEnderChest", args -> enderInventory));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a world.
+     *
+     * @param name the name of the world.
+     * @return the world, with a UUID derived from its name.
+     */
+    public static World world(String name) {
+        UUID uid = UUID.nameUUIDFromBytes(name.getBytes());
+        return stub(World.class, Map.of(
+                "getName", args -> name,
+                "getUID", args -> uid));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the contents of an inventory of the given kind.
+     *
+     * @param kind the kind of inventory.
+     * @return the 41 slots of a player inventory.
+     */
+    public static ItemStack[] inventory(Kind kind) {
+        ItemStack[] items = new ItemStack[INVENTORY_SIZE];
+        switch (kind) {
+            case EMPTY -> {
+            }
+            case TYPICAL -> {
+                items[0] = new ItemStack(Material.DIAMOND_SWORD);
+                items[1] = new ItemStack(Material.DIAMOND_PICKAXE);
+                items[2] = new ItemStack(Material.DIAMOND_AXE);
+                items[3] = new ItemStack(Material.DIAMOND_SHOVEL);
+                items[4] = new ItemStack(Material.TORCH, 64);
+                items[5] = new ItemStack(Material.COOKED_BEEF, 32);
+                items[8] = new ItemStack(Material.COMPASS);
+                items[9] = new ItemStack(Material.STONE, 64);
+                items[10] = new ItemStack(Material.OAK_PLANKS, 64);
+                items[11] = new ItemStack(Material.GLASS, 48);
+                items[36] = new ItemStack(Material.DIAMOND_BOOTS);
+                items[37] = new ItemStack(Material.DIAMOND_LEGGINGS);
+                items[38] = new ItemStack(Material.DIAMOND_CHESTPLATE);
+                items[39] = new ItemStack(Material.DIAMOND_HELMET);
+                items[40] = new ItemStack(Material.SHIELD);
+            }
+            case SHULKER_HEAVY -> fillWithShulkers(items);
+        }
+        return items;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the contents of an ender chest of the given kind.
+     *
+     * @param kind the kind of inventory.
+     * @return the 27 slots of an ender chest.
+     */
+    public static ItemStack[] enderChest(Kind kind) {
+        ItemStack[] items = new ItemStack[ENDER_CHEST_SIZE];
+        switch (kind) {
+            case EMPTY -> {
+            }
+            case TYPICAL -> {
+                items[0] = new ItemStack(Material.SHULKER_BOX);
+                items[1] = new ItemStack(Material.DIAMOND, 23);
+                items[2] = new ItemStack(Material.ENDER_PEARL, 16);
+                items[3] = new ItemStack(Material.GOLDEN_APPLE, 5);
+            }
+            case SHULKER_HEAVY -> fillWithShulkers(items);
+        }
+        return items;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Put a shulker box of a different colour in every slot.
+     */
+    private static void fillWithShulkers(ItemStack[] items) {
+        Material[] boxes = {Material.SHULKER_BOX, Material.WHITE_SHULKER_BOX, Material.RED_SHULKER_BOX,
+                Material.BLUE_SHULKER_BOX, Material.GREEN_SHULKER_BOX, Material.BLACK_SHULKER_BOX};
+        for (int slot = 0; slot < items.length; ++slot) {
+            items[slot] = new ItemStack(boxes[slot % boxes.length]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Serialize an item as the stub server: its type and amount, followed by
+     * filler standing in for its NBT, gzipped as a real server does.
+     */
+    private static byte[] serializeItem(ItemStack item) {
+        Material type = item.getType();
+        int nbtBytes = type.name().endsWith("SHULKER_BOX") ? SHULKER_ITEM_BYTES
+                : (type.getMaxDurability() > 0) ? TOOL_ITEM_BYTES : PLAIN_ITEM_BYTES;
+        byte[] nbt = new byte[nbtBytes];
+        // Seeded by type, so that identical items serialize identically, like real NBT.
+        Random random = new Random(type.ordinal());
+        for (int i = 0; i < nbt.length; ++i) {
+            // Mostly repetitive text with some noise, which compresses about as well as NBT.
+            nbt[i] = (byte) ((i % 16 < 12) ? "minecraft:item{}".charAt(i % 16) : random.nextInt(256));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeUTF(type.name());
+            out.writeByte(item.getAmount());
+            out.writeInt(nbt.length);
+            out.write(nbt);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Deserialize an item written by {@link #serializeItem(ItemStack)}.
+     */
+    private static ItemStack deserializeItem(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)))) {
+            Material type = Material.valueOf(in.readUTF());
+            int amount = in.readUnsignedByte();
+            in.readFully(new byte[in.readInt()]);
+            return new ItemStack(type, amount);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * An implementation of a stubbed method.
+     */
+    @FunctionalInterface
+    private interface Answer {
+        Object answer(Object[] args);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a proxy implementing an interface, answering the named methods
+     * and returning a default value from every other.
+     */
+    private static <T> T stub(Class<T> type, Map<String, Answer> answers) {
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                Answer answer = answers.get(method.getName());
+                if (answer != null && !(method.getName().equals("equals") && method.getParameterCount() == 1)) {
+                    return answer.answer(args);
+                }
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return type.getSimpleName() + " stub";
+                }
+                return defaultValue(method.getReturnType());
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the zero value of a type.
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return (byte) 0;
+    }
+
+} // Stubs
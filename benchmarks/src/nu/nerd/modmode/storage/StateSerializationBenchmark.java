@@ -0,0 +1,138 @@
+package nu.nerd.modmode.storage;
+
+import nu.nerd.modmode.bench.Stubs;
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// ----------------------------------------------------------------------------
+/**
+ * The work done by Configuration#savePlayerData() and loadPlayerData() for
+ * a player state: capturing it on the main thread, then encoding and
+ * compressing it as a full snapshot or a delta on the persistence thread, and
+ * decompressing and decoding it when it is read back. The disk writes
+ * themselves are left out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateSerializationBenchmark {
+
+    /**
+     * The contents of the player's inventory and ender chest.
+     */
+    @Param({"EMPTY", "TYPICAL", "SHULKER_HEAVY"})
+    public Stubs.Kind kind;
+
+    private final PlayerStateStore.Key key = new PlayerStateStore.Key(UUID.randomUUID(), true);
+
+    private Player player;
+    private PlayerState state;
+    private PlayerState changedState;
+    private SnapshotCompressor compressor;
+    private DeltaWriter deltaWriter;
+    private byte[] fullPayload;
+    private byte[] deltaPayload;
+    private long generation;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the player and states, and the payloads to read back.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Stubs.installServer();
+        ItemStack[] inventory = Stubs.inventory(kind);
+        ItemStack[] enderChest = Stubs.enderChest(kind);
+        player = Stubs.player(key.uuid(), inventory, enderChest);
+        state = PlayerState.capture(player);
+
+        // The same state with one hotbar slot changed, as after placing some blocks.
+        ItemStack[] changedInventory = inventory.clone();
+        changedInventory[4] = new ItemStack(Material.TORCH, 12);
+        changedState = PlayerState.capture(Stubs.player(key.uuid(), changedInventory, enderChest));
+
+        File directory = Files.createTempDirectory("modmode-bench").toFile();
+        directory.deleteOnExit();
+        compressor = new SnapshotCompressor(directory, SnapshotCompressor.Algorithm.DEFLATE, 6);
+        compressor.open();
+        deltaWriter = new DeltaWriter(compressor, Integer.MAX_VALUE);
+
+        fullPayload = compressor.compress(PlayerStateCodec.encode(state));
+        boolean[] inventoryChanged = new boolean[changedInventory.length];
+        inventoryChanged[4] = true;
+        deltaPayload = compressor.compress(PlayerStateCodec.encodeDelta(changedState, inventoryChanged,
+                new boolean[enderChest.length]));
+        deltaWriter.writeFull((k, payload, base) -> ++generation, key, state);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Capture the state of a player, the part of a save done on the main
+     * thread.
+     */
+    @Benchmark
+    public PlayerState capture() {
+        return PlayerState.capture(player);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode and compress a full snapshot.
+     */
+    @Benchmark
+    public byte[] writeFull() throws IOException {
+        return compressor.compress(PlayerStateCodec.encode(state));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare a state with the last full snapshot and write the one changed
+     * slot as a delta.
+     */
+    @Benchmark
+    public long writeDelta() throws IOException {
+        deltaWriter.write((k, payload, base) -> ++generation, key, changedState);
+        return generation;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decompress and decode a full snapshot.
+     */
+    @Benchmark
+    public PlayerState readFull() throws IOException {
+        return deltaWriter.read(fullPayload, null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decompress and decode a delta and its base.
+     */
+    @Benchmark
+    public PlayerState readDelta() throws IOException {
+        return deltaWriter.read(deltaPayload, fullPayload);
+    }
+
+} // StateSerializationBenchmark
@@ -0,0 +1,519 @@
+package nu.nerd.modmode;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import nu.nerd.modmode.listeners.ProtectionListener;
+import nu.nerd.modmode.listeners.RetargetSuppressor;
+import nu.nerd.modmode.storage.PlayerStateStore;
+import nu.nerd.modmode.storage.SnapshotCache;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+// ----------------------------------------------------------------------------
+/**
+ * Handles the administrative subcommands shared by every group command, e.g.
+ * /modmode history.
+ */
+class AdminCommands {
+
+    /**
+     * Permission required to use any of these subcommands.
+     */
+    static final String PERMISSION = "modmode.admin";
+
+    /**
+     * The names of the subcommands.
+     */
+    private static final List<String> SUBCOMMANDS = List.of("history", "restore", "cache", "compression",
+            "protection", "stats", "traces", "refreshall", "forceoff", "reapply");
+
+    private ModMode plugin;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    AdminCommands(ModMode plugin) {
+        this.plugin = plugin;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns true if the argument names one of these subcommands.
+     * @param subcommand the first argument of the command.
+     * @return true if this class handles the subcommand.
+     */
+    boolean handles(String subcommand) {
+        return SUBCOMMANDS.contains(subcommand.toLowerCase());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Runs a subcommand.
+     * @param sender the sender of the command.
+     * @param label the command label used.
+     * @param args the arguments, starting with the subcommand name.
+     */
+    void execute(CommandSender sender, String label, String[] args) {
+        if (!sender.hasPermission(PERMISSION)) {
+            sender.sendMessage(Component.text("You don't have permission to do that.", NamedTextColor.RED));
+            return;
+        }
+
+        switch (args[0].toLowerCase()) {
+            case "history" -> history(sender, label, args);
+            case "restore" -> restore(sender, label, args);
+            case "cache" -> cache(sender);
+            case "compression" -> compression(sender, label, args);
+            case "protection" -> protection(sender);
+            case "stats" -> stats(sender, label, args);
+            case "traces" -> traces(sender, label, args);
+            case "refreshall" -> refreshAll(sender);
+            case "forceoff" -> bulk(sender, label, args, TransitionScheduler.Kind.DEMOTE);
+            case "reapply" -> bulk(sender, label, args, TransitionScheduler.Kind.REAPPLY);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns the tab completions for a subcommand.
+     * @param sender the sender of the command.
+     * @param args the arguments, starting with the (partial) subcommand name.
+     * @return the completions.
+     */
+    List<String> tabComplete(CommandSender sender, String[] args) {
+        if (!sender.hasPermission(PERMISSION)) {
+            return List.of();
+        }
+        if (args.length == 1) {
+            return SUBCOMMANDS.stream().filter(opt -> opt.startsWith(args[0].toLowerCase())).toList();
+        }
+        String subcommand = args[0].toLowerCase();
+        if ((subcommand.equals("history") || subcommand.equals("restore")) && args.length == 2) {
+            List<String> names = new ArrayList<>();
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                if (player.getName().toLowerCase().startsWith(args[1].toLowerCase())) {
+                    names.add(player.getName());
+                }
+            }
+            return names;
+        }
+        if ((subcommand.equals("history") || subcommand.equals("restore")) && args.length == 3) {
+            return Stream.of("mode", "normal").filter(opt -> opt.startsWith(args[2].toLowerCase())).toList();
+        }
+        if (subcommand.equals("compression") && args.length == 2) {
+            return Stream.of("train").filter(opt -> opt.startsWith(args[1].toLowerCase())).toList();
+        }
+        if (subcommand.equals("stats") && args.length == 2) {
+            return Stream.of("reset", "on", "off").filter(opt -> opt.startsWith(args[1].toLowerCase())).toList();
+        }
+        if ((subcommand.equals("forceoff") || subcommand.equals("reapply")) && args.length == 2) {
+            return Stream.concat(Stream.of("all"), plugin.getGroups().values().stream().map(ModModeGroup::getName))
+                    .filter(opt -> opt.toLowerCase().startsWith(args[1].toLowerCase())).toList();
+        }
+        return List.of();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] history player mode|normal - List the retained generations of a player's saved state.
+     */
+    private void history(CommandSender sender, String label, String[] args) {
+        if (args.length != 3) {
+            sender.sendMessage(Component.text("Usage: /" + label + " history <player> <mode|normal>",
+                    NamedTextColor.RED));
+            return;
+        }
+        UUID uuid = resolvePlayer(sender, args[1]);
+        Boolean isMode = parseSide(sender, args[2]);
+        if (uuid == null || isMode == null) return;
+
+        plugin.getCONFIG().getPlayerDataHistory(uuid, isMode).thenAccept(history -> {
+            if (history == null || history.isEmpty()) {
+                sender.sendMessage(Component.text("No saved " + args[2] + " state for " + args[1] + ".",
+                        NamedTextColor.RED));
+                return;
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            sender.sendMessage(Component.text("Saved " + args[2] + " state of " + args[1] + ":",
+                    NamedTextColor.GREEN));
+            for (int back = 0; back < history.size(); ++back) {
+                PlayerStateStore.Generation generation = history.get(back);
+                sender.sendMessage(Component.text("- ", NamedTextColor.GREEN)
+                        .append(Component.text(back + ": ", NamedTextColor.GRAY))
+                        .append(Component.text("generation " + generation.generation() + ", saved "
+                                + format.format(new Date(generation.timestamp())) + ", "
+                                + generation.length() + " bytes"
+                                + (generation.base() != 0 ? ", changes since " + generation.base() : ""),
+                                NamedTextColor.GREEN)));
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] restore player mode|normal back - Restore a retained generation of a player's saved state.
+     *
+     * If the player is online and currently using that side's state, it is applied to them directly. Otherwise it
+     * becomes the latest saved generation, and is loaded the next time they switch to that side. Whether the player is
+     * still using that side is checked again once the state has been read, since they may have switched meanwhile.
+     */
+    private void restore(CommandSender sender, String label, String[] args) {
+        if (args.length != 4) {
+            sender.sendMessage(Component.text("Usage: /" + label + " restore <player> <mode|normal> <back>",
+                    NamedTextColor.RED));
+            return;
+        }
+        UUID uuid = resolvePlayer(sender, args[1]);
+        Boolean isMode = parseSide(sender, args[2]);
+        if (uuid == null || isMode == null) return;
+        int back;
+        try {
+            back = Integer.parseInt(args[3]);
+        } catch (NumberFormatException ex) {
+            sender.sendMessage(Component.text("The generation must be a number; see /" + label + " history.",
+                    NamedTextColor.RED));
+            return;
+        }
+
+        Player online = Bukkit.getPlayer(uuid);
+        if (online != null && plugin.isTransitioning(uuid)) {
+            sender.sendMessage(Component.text(args[1] + " is changing mode; try again in a moment.",
+                    NamedTextColor.RED));
+            return;
+        }
+        boolean applyNow = online != null && plugin.isInMode(online) == isMode;
+
+        plugin.getCONFIG().restorePlayerData(uuid, isMode, back, !applyNow).thenAccept(state -> {
+            if (state == null) {
+                sender.sendMessage(Component.text("There is no such saved state; see /" + label + " history.",
+                        NamedTextColor.RED));
+                return;
+            }
+            Player player = Bukkit.getPlayer(uuid);
+            boolean stillApplies = player != null && plugin.isInMode(player) == isMode
+                    && !plugin.isTransitioning(uuid);
+            if (applyNow && !stillApplies) {
+                plugin.getCONFIG().makePlayerDataCurrent(uuid, isMode, state);
+            }
+            if (applyNow && stillApplies) {
+                state.apply(player, false);
+                player.sendMessage(Component.text("Your " + args[2] + " state has been restored by "
+                        + sender.getName() + ".", NamedTextColor.YELLOW));
+                sender.sendMessage(Component.text("Restored and applied " + args[2] + " state " + back + " of "
+                        + args[1] + ".", NamedTextColor.GREEN));
+            } else {
+                sender.sendMessage(Component.text("Restored " + args[2] + " state " + back + " of " + args[1]
+                        + "; it will be loaded when they next switch to it.", NamedTextColor.GREEN));
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] cache - Show the size and effectiveness of the cache of decoded player states.
+     */
+    private void cache(CommandSender sender) {
+        SnapshotCache cache = plugin.getCONFIG().getSnapshotCache();
+        long reads = cache.getHits() + cache.getMisses();
+        String hitRate = (reads == 0) ? "-" : String.format("%.1f%%", 100.0 * cache.getHits() / reads);
+        sender.sendMessage(Component.text("Snapshot cache: " + cache.size() + "/" + cache.getMaxEntries()
+                + " states cached.", NamedTextColor.GREEN));
+        sender.sendMessage(Component.text("- ", NamedTextColor.GREEN)
+                .append(Component.text(cache.getHits() + " hits, " + cache.getMisses() + " misses (" + hitRate
+                        + " hit rate), " + cache.getEvictions() + " evictions", NamedTextColor.GRAY)));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] compression [train] - Show the snapshot compression statistics, or train a new dictionary.
+     */
+    private void compression(CommandSender sender, String label, String[] args) {
+        if (args.length == 2 && args[1].equalsIgnoreCase("train")) {
+            sender.sendMessage(Component.text("Training a compression dictionary from the saved states...",
+                    NamedTextColor.GREEN));
+            plugin.getCONFIG().trainCompressionDictionary().thenAccept(dictionary -> {
+                if (dictionary == null) {
+                    sender.sendMessage(Component.text("Training failed; see the server log.", NamedTextColor.RED));
+                    return;
+                }
+                sender.sendMessage(Component.text("Trained dictionary " + dictionary.id() + " ("
+                        + dictionary.size() + " bytes) from " + dictionary.samples()
+                        + " saved states. New saves will use it.", NamedTextColor.GREEN));
+            });
+            return;
+        }
+        if (args.length != 1) {
+            sender.sendMessage(Component.text("Usage: /" + label + " compression [train]", NamedTextColor.RED));
+            return;
+        }
+
+        plugin.getCONFIG().getCompressionStats().thenAccept(stats -> {
+            if (stats == null) {
+                return;
+            }
+            String ratio = (stats.bytesOut() == 0)
+                    ? "-" : String.format("%.2f", (double) stats.bytesIn() / stats.bytesOut());
+            sender.sendMessage(Component.text("Snapshot compression: " + stats.algorithm().name().toLowerCase()
+                    + " level " + stats.level() + ", dictionary "
+                    + (stats.dictionaryId() == 0 ? "none" : stats.dictionaryId()) + ".", NamedTextColor.GREEN));
+            sender.sendMessage(Component.text("- ", NamedTextColor.GREEN)
+                    .append(Component.text(stats.compressed() + " compressed, " + stats.bytesIn() + " -> "
+                            + stats.bytesOut() + " bytes (ratio " + ratio + "), average "
+                            + averageMicros(stats.compressNanos(), stats.compressed()) + " us",
+                            NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("- ", NamedTextColor.GREEN)
+                    .append(Component.text(stats.decompressed() + " decompressed, average "
+                            + averageMicros(stats.decompressNanos(), stats.decompressed()) + " us",
+                            NamedTextColor.GRAY)));
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] protection - Show whether the protection event handlers are registered and how many mob target
+     * attempts on staff were refused.
+     */
+    private void protection(CommandSender sender) {
+        ProtectionListener listener = plugin.getProtectionListener();
+        RetargetSuppressor suppressor = listener.getRetargetSuppressor();
+        sender.sendMessage(Component.text("Protection handlers are " + (listener.isRegistered() ? "" : "not ")
+                + "registered.", NamedTextColor.GREEN));
+        sender.sendMessage(Component.text("- ", NamedTextColor.GREEN)
+                .append(Component.text(suppressor.getRefused() + " mob target attempts refused, "
+                        + suppressor.getSuppressed() + " times a mob's targeting was suppressed for "
+                        + suppressor.getCooldownTicks() + " ticks", NamedTextColor.GRAY)));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] stats [reset|on|off] - Show the count and p50/p99/max latency of every instrumented site that ran
+     * since the last reset, start a new window, or turn recording on or off.
+     */
+    private void stats(CommandSender sender, String label, String[] args) {
+        Timings timings = plugin.getTimings();
+        if (args.length == 2) {
+            switch (args[1].toLowerCase()) {
+                case "reset" -> {
+                    timings.reset();
+                    sender.sendMessage(Component.text("Timings reset.", NamedTextColor.GREEN));
+                    return;
+                }
+                case "on", "off" -> {
+                    timings.setEnabled(args[1].equalsIgnoreCase("on"));
+                    sender.sendMessage(Component.text("Timings are now " + (timings.isEnabled() ? "on" : "off")
+                            + ".", NamedTextColor.GREEN));
+                    return;
+                }
+            }
+        }
+        if (args.length != 1) {
+            sender.sendMessage(Component.text("Usage: /" + label + " stats [reset|on|off]", NamedTextColor.RED));
+            return;
+        }
+
+        long windowSeconds = (System.currentTimeMillis() - timings.getWindowStart()) / 1000;
+        sender.sendMessage(Component.text("Timings are " + (timings.isEnabled() ? "on" : "off") + "; "
+                + windowSeconds + " s since the last reset. Times are in us.", NamedTextColor.GREEN));
+        boolean any = false;
+        for (Timings.Site site : timings.getSites()) {
+            LatencyHistogram histogram = site.getHistogram();
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            any = true;
+            sender.sendMessage(Component.text("- " + site.getName() + ": ", NamedTextColor.GREEN)
+                    .append(Component.text(count + " calls, p50 " + micros(histogram.getPercentile(0.5))
+                            + ", p99 " + micros(histogram.getPercentile(0.99)) + ", max "
+                            + micros(histogram.getMax()) + ", total " + micros(histogram.getTotal()),
+                            NamedTextColor.GRAY)));
+        }
+        if (!any) {
+            sender.sendMessage(Component.text("- Nothing recorded.", NamedTextColor.GRAY));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] traces [count] - Show the slowest recent promotions and demotions with the time spent in each of
+     * their phases, and the mean and maximum time of each phase over all recent transitions.
+     */
+    private void traces(CommandSender sender, String label, String[] args) {
+        int count = 5;
+        if (args.length == 2) {
+            try {
+                count = Integer.parseInt(args[1]);
+            } catch (NumberFormatException ex) {
+                count = 0;
+            }
+        }
+        if (args.length > 2 || count <= 0) {
+            sender.sendMessage(Component.text("Usage: /" + label + " traces [count]", NamedTextColor.RED));
+            return;
+        }
+
+        TransitionTraces traces = plugin.getTransitionTraces();
+        List<TransitionTraces.Trace> slowest = traces.getSlowest(count);
+        sender.sendMessage(Component.text("Slowest of the last " + traces.getTraces().size() + " transitions ("
+                + traces.getTotal() + " since startup). Times are in ms.", NamedTextColor.GREEN));
+        if (slowest.isEmpty()) {
+            sender.sendMessage(Component.text("- Nothing recorded.", NamedTextColor.GRAY));
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+        for (TransitionTraces.Trace trace : slowest) {
+            StringBuilder phases = new StringBuilder();
+            for (TransitionTraces.Phase phase : TransitionTraces.Phase.values()) {
+                long nanos = trace.getNanos(phase);
+                if (nanos > 0) {
+                    phases.append(phases.length() == 0 ? "" : ", ").append(phase.getKey()).append(' ')
+                            .append(millis(nanos));
+                }
+            }
+            sender.sendMessage(Component.text("- " + format.format(new Date(trace.time())) + " " + trace.player()
+                    + (trace.promotion() ? " into " : " out of ") + trace.group() + ": ", NamedTextColor.GREEN)
+                    .append(Component.text(millis(trace.totalNanos()) + " total, "
+                            + trace.outcome().name().toLowerCase().replace('_', ' '), NamedTextColor.YELLOW))
+                    .append(Component.text(" (" + phases + ")", NamedTextColor.GRAY)));
+        }
+        sender.sendMessage(Component.text("By phase, mean/max:", NamedTextColor.GREEN));
+        for (TransitionTraces.PhaseSummary summary : traces.getPhaseSummaries()) {
+            sender.sendMessage(Component.text("- " + summary.phase().getKey() + ": ", NamedTextColor.GREEN)
+                    .append(Component.text(millis(summary.mean()) + " / " + millis(summary.max()) + " over "
+                            + summary.count() + " transitions", NamedTextColor.GRAY)));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] refreshall - Have VanishNoPacket re-check which players every online player can see, in case the
+     * incremental updates made on state changes have got out of step.
+     */
+    private void refreshAll(CommandSender sender) {
+        VisibilityEngine visibility = plugin.getVisibility();
+        int players = plugin.updateAllPlayersSeeing();
+        sender.sendMessage(Component.text("Refreshed what " + players + " players can see.", NamedTextColor.GREEN));
+        sender.sendMessage(Component.text("- ", NamedTextColor.GREEN)
+                .append(Component.text(visibility.getRefreshes() + " state change refreshes examined "
+                        + visibility.getPairsChecked() + " pairs of players and changed "
+                        + visibility.getPairsChanged() + "; " + visibility.getFullRefreshes() + " full refreshes",
+                        NamedTextColor.GRAY)));
+        sender.sendMessage(Component.text("- ", NamedTextColor.GREEN)
+                .append(Component.text(visibility.getResends() + " players re-sent after a state change, to "
+                        + visibility.getResentTo() + " viewers in all", NamedTextColor.GRAY)));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * /[group] forceoff group|all - Take every online member of a group, or of all groups, out of it.
+     * /[group] reapply group|all - Re-apply the mode of every online member of a group, or of all groups.
+     *
+     * The players are queued on the transition scheduler, which spreads them across ticks and reports progress.
+     */
+    private void bulk(CommandSender sender, String label, String[] args, TransitionScheduler.Kind kind) {
+        if (args.length != 2) {
+            sender.sendMessage(Component.text("Usage: /" + label + " " + args[0].toLowerCase() + " <group|all>",
+                    NamedTextColor.RED));
+            return;
+        }
+        boolean all = args[1].equalsIgnoreCase("all");
+        ModModeGroup only = null;
+        if (!all) {
+            for (ModModeGroup group : plugin.getGroups().values()) {
+                if (group.getName().equalsIgnoreCase(args[1])) {
+                    only = group;
+                }
+            }
+            if (only == null) {
+                sender.sendMessage(Component.text("Unknown group: " + args[1], NamedTextColor.RED));
+                return;
+            }
+        }
+
+        List<UUID> players = new ArrayList<>();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            ModModeGroup group = plugin.getGroupPlayerMemberOf(player.getUniqueId());
+            if (group != null && (all || group == only)) {
+                players.add(player.getUniqueId());
+            }
+        }
+        String description = args[0].toLowerCase() + " " + (all ? "all" : only.getName());
+        if (players.isEmpty()) {
+            sender.sendMessage(Component.text(description + ": no online members.", NamedTextColor.GREEN));
+            return;
+        }
+        TransitionScheduler scheduler = plugin.getTransitionScheduler();
+        scheduler.submit(sender, description, kind, players);
+        sender.sendMessage(Component.text(description + ": queued " + players.size() + " players ("
+                + scheduler.size() + " transitions waiting).", NamedTextColor.GREEN));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a duration in milliseconds, given nanoseconds.
+     */
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1_000_000.0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a duration in microseconds, given nanoseconds.
+     */
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format an average duration in microseconds, given a total in nanoseconds.
+     */
+    private static String averageMicros(long totalNanos, long count) {
+        return (count == 0) ? "-" : String.format("%.1f", totalNanos / 1000.0 / count);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a player who has played on this server by name or UUID, telling the sender if there is none.
+     */
+    private UUID resolvePlayer(CommandSender sender, String nameOrUUID) {
+        try {
+            return UUID.fromString(nameOrUUID);
+        } catch (IllegalArgumentException ex) {
+            OfflinePlayer player = Bukkit.getOfflinePlayerIfCached(nameOrUUID);
+            if (player == null) {
+                sender.sendMessage(Component.text("Unknown player: " + nameOrUUID, NamedTextColor.RED));
+                return null;
+            }
+            return player.getUniqueId();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse "mode" or "normal", telling the sender if it is neither.
+     */
+    private Boolean parseSide(CommandSender sender, String side) {
+        switch (side.toLowerCase()) {
+            case "mode":
+                return true;
+            case "normal":
+                return false;
+            default:
+                sender.sendMessage(Component.text("Expected \"mode\" or \"normal\", not " + side + ".",
+                        NamedTextColor.RED));
+                return null;
+        }
+    }
+
+} // AdminCommands
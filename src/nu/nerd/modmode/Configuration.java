@@ -1,21 +1,36 @@
 package nu.nerd.modmode;
 
 import me.neznamy.tab.api.TabAPI;
+import nu.nerd.modmode.storage.DeltaWriter;
+import nu.nerd.modmode.storage.MembershipJournal;
+import nu.nerd.modmode.storage.MembershipStore;
+import nu.nerd.modmode.storage.PersistenceService;
+import nu.nerd.modmode.storage.PlayerState;
+import nu.nerd.modmode.storage.PlayerStateCodec;
+import nu.nerd.modmode.storage.PlayerStateStore;
+import nu.nerd.modmode.storage.SegmentStateStore;
+import nu.nerd.modmode.storage.SnapshotCache;
+import nu.nerd.modmode.storage.SnapshotCompressor;
+import nu.nerd.modmode.storage.SqliteDatabase;
+import nu.nerd.modmode.storage.SqliteMembershipStore;
+import nu.nerd.modmode.storage.SqliteStateStore;
+import nu.nerd.modmode.storage.YamlStateStore;
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
-import org.bukkit.Location;
-import org.bukkit.Statistic;
-import org.bukkit.attribute.Attribute;
-import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
-import org.bukkit.inventory.ItemStack;
-import org.bukkit.potion.PotionEffect;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 // ----------------------------------------------------------------------------
 
@@ -24,17 +39,109 @@ import java.util.*;
  */
 class Configuration {
 
+    /**
+     * Describes a newly trained compression dictionary.
+     */
+    record TrainedDictionary(int id, int size, int samples, byte[] contents) {
+    }
+
     private ModMode plugin;
     private TabAPI TABAPI;
     private HashMap<String, ModModeGroup> groupMap;
-    private HashMap<UUID, ModModeGroup> playerGroupMap;
+    private UUIDIndex playerGroups;
 
     private final int CONFIG_VERSION = 2;
     private FileConfiguration _config;
     private File _configFile;
-    private FileConfiguration _memberConfig;
     private File _memberConfigFile;
 
+    /**
+     * Number of membership journal records after which members.yml is rewritten.
+     */
+    private static final int JOURNAL_COMPACT_THRESHOLD = 256;
+
+    /**
+     * The journal of membership changes since members.yml was last written. Only used on the persistence thread.
+     */
+    private MembershipJournal membershipJournal;
+
+    /**
+     * Where group membership is stored: the journal, or the database. Only used on the persistence thread.
+     */
+    private MembershipStore membershipStore;
+
+    /**
+     * The members of each group, by group name, as recorded on disk. Only used on the main thread.
+     */
+    private Map<String, Set<UUID>> memberships = new HashMap<>();
+
+    /**
+     * Journal records appended since members.yml was last rewritten, counted on the main thread.
+     */
+    private int journalRecords;
+
+    /**
+     * Owns every file under the data folder other than config.yml. All reads and writes of those files happen on
+     * its thread.
+     */
+    private PersistenceService persistence;
+
+    /**
+     * Holds the retained generations of every player's normal and mode state, in the configured backend. Only used
+     * on the persistence thread.
+     */
+    private PlayerStateStore stateStore;
+
+    /**
+     * The database used by the "sqlite" backend, otherwise null. Only used on the persistence thread.
+     */
+    private SqliteDatabase database;
+
+    /**
+     * Compresses snapshots as they are written and decompresses them as they are read. Only used on the
+     * persistence thread.
+     */
+    private SnapshotCompressor compressor;
+
+    /**
+     * Ticks between a player entering a mode and their normal state being read ahead of their demotion.
+     */
+    private static final long PREFETCH_DELAY_TICKS = 5 * 20;
+
+    /**
+     * The longest the main thread waits for a state to be read when it cannot wait for the next tick.
+     */
+    private static final long LOAD_NOW_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Decoded states of each player's normal and mode sides, written through on every save. Only used on the main
+     * thread.
+     */
+    private SnapshotCache snapshotCache;
+
+    /**
+     * A token for each prefetch that has been queued but not completed, by key. A prefetch whose token has been
+     * removed or replaced in the meantime raced with a write of that key, and its result is discarded. Only used on
+     * the main thread.
+     */
+    private final Map<PlayerStateStore.Key, Object> pendingPrefetches = new HashMap<>();
+
+    /**
+     * Timings of the main thread part of saving and loading player states.
+     */
+    private final Timings.Site saveStateTiming;
+    private final Timings.Site loadStateTiming;
+
+    /**
+     * Timings of the I/O done on the persistence thread.
+     */
+    private final Timings.Site writeStateTiming;
+    private final Timings.Site readStateTiming;
+    private final Timings.Site appendMembershipTiming;
+    private final Timings.Site compactMembershipsTiming;
+    private final Timings.Site flushStateStoreTiming;
+    private final Timings.Site maintainStateStoreTiming;
+
     private ArrayList<String> migrationUUIDs;
     private boolean migrating;
     private ModModeGroup lowestGroup;
@@ -43,10 +150,26 @@ class Configuration {
         this.plugin = plugin;
         this.TABAPI = TABAPI;
         this.groupMap = plugin.getGroups();
-        this.playerGroupMap = plugin.getPlayerGroupMap();
+        this.playerGroups = plugin.getPlayerGroups();
+        Timings timings = plugin.getTimings();
+        this.saveStateTiming = timings.site("Configuration.savePlayerData");
+        this.loadStateTiming = timings.site("Configuration.loadPlayerData");
+        this.writeStateTiming = timings.site("Configuration.io.writeState");
+        this.readStateTiming = timings.site("Configuration.io.readState");
+        this.appendMembershipTiming = timings.site("Configuration.io.appendMembership");
+        this.compactMembershipsTiming = timings.site("Configuration.io.compactMemberships");
+        this.flushStateStoreTiming = timings.site("Configuration.io.flushStateStore");
+        this.maintainStateStoreTiming = timings.site("Configuration.io.maintainStateStore");
         plugin.saveDefaultConfig();
         plugin.reloadConfig();
+        persistence = new PersistenceService("ModMode I/O",
+                plugin.getConfig().getInt("storage.queueCapacity", 1024),
+                plugin.getConfig().getLong("storage.flushInterval", 1000),
+                plugin::logError);
+        _config = plugin.getConfig();
         createMemberConfig();
+        openStores();
+        createSnapshotCache();
         reload();
     }
 
@@ -59,11 +182,14 @@ class Configuration {
     public void reload() {
         // Fetch the data asynchronously.
         HashMap<String, ModModeGroup> newGroupMap = new HashMap<>();
-        HashMap<UUID, ModModeGroup> newPlayerGroupMap = new HashMap<>();
+        UUIDIndex newPlayerGroups = new UUIDIndex();
         plugin.reloadConfig();
         _config = plugin.getConfig();
         _configFile = new File(plugin.getDataFolder(), "config.yml");
-        _memberConfig = YamlConfiguration.loadConfiguration(_memberConfigFile);
+        plugin.getTimings().setEnabled(_config.getBoolean("stats.enabled", false));
+        plugin.getTransitionTraces().setCapacity(_config.getInt("stats.traces", 100));
+        plugin.getTransitionScheduler().setTickBudgetMillis(_config.getLong("transitions.tickBudgetMillis", 5));
+        loadMemberships();
 
         int versionCheck = _config.getInt("configVersion", 0);
         migrating = migrateFetch(versionCheck);
@@ -96,10 +222,7 @@ class Configuration {
             GameMode defaultGameModeOnDeactivate = GameMode.valueOf(
                     _config.getString("groups." + groupName + ".details.defaultGameModeOnDeactivate", "SURVIVAL").toUpperCase());
 
-            if (!_memberConfig.contains("groups." + groupName)) {
-                _memberConfig.set("groups." + groupName + ".members", new ArrayList<String>());
-                saveMemberConfig();
-            }
+            memberships.computeIfAbsent(groupName, k -> new LinkedHashSet<>());
 
             // members
             List<UUID> members = getGroupMembers(groupName);
@@ -119,7 +242,7 @@ class Configuration {
                             trackName, prefix, allowFlight, allowCollisions, suppressJoinMessages, interactWithItems);
                     newGroupMap.put(groupName, existingGroup);
                     for (UUID member : members) {
-                        newPlayerGroupMap.put(member, existingGroup);
+                        newPlayerGroups.put(member, existingGroup.getOrdinal());
                     }
                     // Set the first group for migration purposes.
                     if (migrating && firstGroup) {
@@ -139,7 +262,7 @@ class Configuration {
                             members, plugin, TABAPI);
                     newGroupMap.put(groupName, newGroup);
                     for (UUID member : members) {
-                        newPlayerGroupMap.put(member, newGroup);
+                        newPlayerGroups.put(member, newGroup.getOrdinal());
                     }
                     // Set the first group for migration purposes.
                     if (migrating && firstGroup) {
@@ -154,10 +277,22 @@ class Configuration {
         }
         // Save the data on the main thread.
         groupMap.putAll(newGroupMap);
-        playerGroupMap.putAll(newPlayerGroupMap);
+        playerGroups.putAll(newPlayerGroups);
 
         if (migrating) migratePost();
 
+        Permissions.Mode permissionsMode;
+        try {
+            permissionsMode = Permissions.Mode.valueOf(_config.getString("permissions.mode", "track").toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            plugin.logError("Unknown permissions.mode; players will be moved along their group's track.");
+            permissionsMode = Permissions.Mode.TRACK;
+        }
+        plugin.getPermissions().setMode(permissionsMode);
+
+        // Resolve the groups' tracks now, rather than on each toggle.
+        plugin.getPermissions().refreshTracks();
+
         for (ModModeGroup group : newGroupMap.values()) {
             plugin.logError("Command for group " + group.getName() + " and command " + group.getCommand().getName());
             boolean success = Bukkit.getCommandMap().register(group.getName().toLowerCase(), group.getCommand());
@@ -172,8 +307,9 @@ class Configuration {
      */
     public void save() {
         for (ModModeGroup group : plugin.getGroups().values()) {
-            this.saveGroup(group);
+            memberships.put(group.getName(), group.getMembers().toSet());
         }
+        compactMemberships();
     }
 
     // ------------------------------------------------------------------------
@@ -225,26 +361,14 @@ class Configuration {
      * @param group the group being saved.
      */
     public void saveGroup(ModModeGroup group) {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            String groupName = group.getName();
-            try {
-                // Members
-                List<String> uuidStrings = new ArrayList<>();
-                for (UUID uuid : group.getMembers()) {
-                    uuidStrings.add(uuid.toString());
-                }
-                _memberConfig.set("groups." + groupName + ".members", uuidStrings);
-                saveMemberConfig();
-            } catch (Exception e) {
-                plugin.logError("Failed to save group " + groupName + ": " + e.getMessage());
-            }
-        });
+        memberships.put(group.getName(), group.getMembers().toSet());
+        compactMemberships();
     }
 
     // ------------------------------------------------------------------------
 
     /**
-     * Creates the members.yml file, should it not exist. If it does, load it into memory.
+     * Creates the members.yml file, should it not exist, and sets up the journal of changes made to it.
      */
     public void createMemberConfig() {
         _memberConfigFile = new File(plugin.getDataFolder(), "members.yml");
@@ -260,56 +384,127 @@ class Configuration {
             }
         }
 
-        _memberConfig = YamlConfiguration.loadConfiguration(_memberConfigFile);
+        membershipJournal = new MembershipJournal(_memberConfigFile,
+                new File(plugin.getDataFolder(), "members.journal"));
+        membershipStore = membershipJournal;
     }
 
     // ------------------------------------------------------------------------
 
     /**
-     * Saves the entire members.yml file.
+     * Loads the group members. For the default backend, this reads members.yml and replays the journal over it; if
+     * the journal had any records, they are folded into a new members.yml straight away. The first time a database
+     * is used, it is given the members in members.yml, unless it already has members of its own. members.yml is not
+     * updated while the database is used, so it is never imported again.
+     *
+     * This waits for the persistence thread, so that writes queued before a reload are seen.
      */
-    private void saveMemberConfig() {
+    private void loadMemberships() {
         try {
-            _memberConfig.save(_memberConfigFile);
-        } catch (IOException e) {
-            plugin.logError("Failed to save members config file: " + e.getMessage());
+            memberships = persistence.submit(_memberConfigFile, () -> {
+                Map<String, Set<UUID>> loaded = membershipStore.load();
+                if (membershipStore instanceof SqliteMembershipStore sqliteMembers) {
+                    if (!sqliteMembers.isImported()) {
+                        if (loaded.isEmpty()) {
+                            loaded = membershipJournal.load();
+                            if (!loaded.isEmpty()) {
+                                plugin.logInfo("Copying group members from members.yml to the database.");
+                            }
+                        }
+                        // Records the import, even of no members.
+                        sqliteMembers.compact(loaded);
+                    }
+                } else if (membershipStore.hasRecords()) {
+                    membershipStore.compact(loaded);
+                }
+                return loaded;
+            }).join();
+            journalRecords = 0;
+        } catch (CompletionException ex) {
+            plugin.logError("Failed to load members config file: " + ex.getCause().getMessage());
+            memberships = new HashMap<>();
         }
     }
 
     // ------------------------------------------------------------------------
 
     /**
-     * Adds a member to a specific group in the members.yml file.
+     * Rewrites members.yml from the current memberships on the persistence thread and truncates the journal.
+     * Repeated calls before the write is flushed are coalesced into one.
+     */
+    private void compactMemberships() {
+        Map<String, List<UUID>> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<UUID>> entry : memberships.entrySet()) {
+            snapshot.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        persistence.write(_memberConfigFile, () -> {
+            long start = compactMembershipsTiming.start();
+            try {
+                membershipStore.compact(snapshot);
+            } finally {
+                compactMembershipsTiming.stop(start);
+            }
+            return null;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Adds a member to a specific group by appending a record to the membership journal.
      *
      * @param groupName  the name of the group being added to.
      * @param playerUUID the UUID of the player being added.
      */
     public void addMemberToGroup(String groupName, UUID playerUUID) {
-        List<String> members = _memberConfig.getStringList("groups." + groupName + ".members");
-        String uuidString = playerUUID.toString();
-
-        if (!members.contains(uuidString)) {
-            members.add(uuidString);
-            _memberConfig.set("groups." + groupName + ".members", members);
-            saveMemberConfig();
+        Set<UUID> members = memberships.computeIfAbsent(groupName, k -> new LinkedHashSet<>());
+        if (members.add(playerUUID)) {
+            appendMembership(groupName, playerUUID, true);
         }
     }
 
     // ------------------------------------------------------------------------
 
     /**
-     * Removes a member from a specific group in the members.yml file.
+     * Removes a member from a specific group by appending a record to the membership journal.
      *
      * @param groupName  the name of the group being removed from.
      * @param playerUUID the UUID of the player being removed.
      */
     public void removeMemberFromGroup(String groupName, UUID playerUUID) {
-        List<String> members = _memberConfig.getStringList("groups." + groupName + ".members");
-        String uuidString = playerUUID.toString();
+        Set<UUID> members = memberships.get(groupName);
+        if (members != null && members.remove(playerUUID)) {
+            appendMembership(groupName, playerUUID, false);
+        }
+    }
 
-        if (members.remove(uuidString)) {
-            _memberConfig.set("groups." + groupName + ".members", members);
-            saveMemberConfig();
+    // ------------------------------------------------------------------------
+
+    /**
+     * Appends a membership change to the journal on the persistence thread, compacting the journal into
+     * members.yml once it grows past the threshold.
+     *
+     * The append is queued against members.yml so that a pending rewrite of that file, which also truncates the
+     * journal, is flushed before it.
+     */
+    private void appendMembership(String groupName, UUID playerUUID, boolean join) {
+        persistence.execute(_memberConfigFile, "append to members journal", () -> {
+            long start = appendMembershipTiming.start();
+            try {
+                if (join) {
+                    membershipStore.join(groupName, playerUUID);
+                } else {
+                    membershipStore.leave(groupName, playerUUID);
+                }
+            } finally {
+                appendMembershipTiming.stop(start);
+            }
+            return null;
+        });
+        // The snapshot for compaction has to be taken here, on the main thread.
+        if (++journalRecords >= JOURNAL_COMPACT_THRESHOLD) {
+            journalRecords = 0;
+            compactMemberships();
         }
     }
 
@@ -322,180 +517,472 @@ class Configuration {
      * @return a list of member UUIDs.
      */
     public List<UUID> getGroupMembers(String groupName) {
-        List<String> memberStrings = _memberConfig.getStringList("groups." + groupName + ".members");
-        List<UUID> members = new ArrayList<>();
-
-        for (String memberString : memberStrings) {
-            members.add(UUID.fromString(memberString));
-        }
-
-        return members;
+        return new ArrayList<>(memberships.getOrDefault(groupName, Collections.emptySet()));
     }
 
     // ------------------------------------------------------------------------
 
     /**
-     * Return the File used to store the player's normal or ModMode state.
+     * Return the File that older versions used to store the player's normal or ModMode state.
      *
-     * @param player the player.
-     * @param isMode true if the data is for the ModMode state.
-     * @return the File used to store the player's normal or ModMode state.
+     * @param uuid      the UUID of the player.
+     * @param isMode    true if the data is for the ModMode state.
+     * @param extension "dat" for the binary format, "yml" for the YAML format.
+     * @return the legacy state File.
      */
-    public File getStateFile(Player player, boolean isMode) {
+    public File getLegacyStateFile(UUID uuid, boolean isMode, String extension) {
         File playersDir = new File(plugin.getDataFolder(), "players");
-        playersDir.mkdirs();
-
-        String fileName = player.getUniqueId().toString() + ((isMode) ? "_mode" : "_normal") + ".yml";
+        String fileName = uuid.toString() + ((isMode) ? "_mode" : "_normal") + "." + extension;
         return new File(playersDir, fileName);
     }
 
     // ------------------------------------------------------------------------
 
     /**
-     * Save the player's data to a YAML configuration file.
+     * Capture the player's state, cache it and append it to the snapshot store as a new generation.
+     *
+     * Only the capture happens on the calling (main) thread. Serialization and the write itself are done on the
+     * persistence thread, where repeated saves of the same side are coalesced.
      *
      * @param player the player.
      * @param isMode true if the saved data is for the ModMode inventory.
      */
     public void savePlayerData(Player player, boolean isMode) {
-        File stateFile = getStateFile(player, isMode);
+        long start = saveStateTiming.start();
+        PlayerState state = PlayerState.capture(player);
+        PlayerStateStore.Key key = new PlayerStateStore.Key(player.getUniqueId(), isMode);
+        pendingPrefetches.remove(key);
+        snapshotCache.put(key, state);
+        persistence.write(key, () -> {
+            long writeStart = writeStateTiming.start();
+            try {
+                stateStore.write(key, state);
+            } finally {
+                writeStateTiming.stop(writeStart);
+            }
+            return null;
+        });
+        saveStateTiming.stop(start);
+    }
 
-        // Keep 2 backups of saved player data.
-        try {
-            File backup1 = new File(stateFile.getPath() + ".1");
-            File backup2 = new File(stateFile.getPath() + ".2");
-            backup1.renameTo(backup2);
-            stateFile.renameTo(backup1);
-        } catch (Exception ex) {
-            String msg = " raised saving state file backups for " + player.getName()
-                    + " (" + player.getUniqueId().toString() + ").";
-            plugin.logError(ex.getClass().getName() + msg);
-        }
+    // ------------------------------------------------------------------------
 
-        YamlConfiguration config = new YamlConfiguration();
-        config.set("health", player.getHealth());
-        config.set("food", player.getFoodLevel());
-        config.set("experience", player.getLevel() + player.getExp());
-        config.set("fireticks", player.getFireTicks());
-        config.set("falldistance", player.getFallDistance());
-        config.set("awaketicks", player.getStatistic(Statistic.TIME_SINCE_REST));
-
-        config.set("world", player.getLocation().getWorld().getName());
-        config.set("x", player.getLocation().getX());
-        config.set("y", player.getLocation().getY());
-        config.set("z", player.getLocation().getZ());
-        config.set("pitch", player.getLocation().getPitch());
-        config.set("yaw", player.getLocation().getYaw());
-
-        config.set("helmet", player.getInventory().getHelmet());
-        config.set("chestplate", player.getInventory().getChestplate());
-        config.set("leggings", player.getInventory().getLeggings());
-        config.set("boots", player.getInventory().getBoots());
-        config.set("off-hand", player.getInventory().getItemInOffHand());
-
-        for (PotionEffect potion : player.getActivePotionEffects()) {
-            config.set("potions." + potion.getType().getName(), potion);
-        }
-        ItemStack[] inventory = player.getInventory().getContents();
-        for (int slot = 0; slot < inventory.length; ++slot) {
-            config.set("inventory." + slot, inventory[slot]);
+    /**
+     * Load the player's latest saved state from the snapshot store on the persistence thread, falling back to (and
+     * migrating) a state file written by older versions.
+     *
+     * If the state is cached, the returned future is already complete and no disk access is needed. Otherwise it
+     * completes on the main thread, with null if no state has been saved for that side yet.
+     *
+     * @param player the player.
+     * @param isMode true if the loaded data is for the ModMode inventory.
+     * @return a future that supplies the saved state.
+     */
+    public CompletableFuture<PlayerState> loadPlayerData(Player player, boolean isMode) {
+        long start = loadStateTiming.start();
+        try {
+            PlayerStateStore.Key key = new PlayerStateStore.Key(player.getUniqueId(), isMode);
+            PlayerState state = snapshotCache.get(key);
+            if (state != null) {
+                return CompletableFuture.completedFuture(state);
+            }
+            return readLatestState(player, key);
+        } finally {
+            loadStateTiming.stop(start);
         }
+    }
 
-        ItemStack[] enderChest = player.getEnderChest().getContents();
-        for (int slot = 0; slot < enderChest.length; ++slot) {
-            config.set("enderchest." + slot, enderChest[slot]);
-        }
+    // ------------------------------------------------------------------------
 
+    /**
+     * Load the player's latest saved state, waiting on the main thread for it to be read if it is not cached.
+     *
+     * Only for when the state is needed before the next tick, e.g. by a player quitting while their state is being
+     * swapped. The read is queued behind any pending write or read of the same side.
+     *
+     * @param player the player.
+     * @param isMode true if the loaded data is for the ModMode inventory.
+     * @return the saved state, or null if no state has been saved for that side yet.
+     * @throws IOException if the state could not be read in time.
+     */
+    public PlayerState loadPlayerDataNow(Player player, boolean isMode) throws IOException {
+        long start = loadStateTiming.start();
+        PlayerStateStore.Key key = new PlayerStateStore.Key(player.getUniqueId(), isMode);
+        String description = player.getName() + " (" + key.uuid() + ")";
         try {
-            config.save(stateFile);
-        } catch (Exception exception) {
-            plugin.logError("Failed to save player data for " + player.getName() + "(" + player.getUniqueId().toString() + ")");
+            PlayerState state = snapshotCache.get(key);
+            if (state != null) {
+                return state;
+            }
+            return submitRead(key, description).get(LOAD_NOW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to load player data for " + description + ": "
+                    + ex.getCause().getMessage(), ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new IOException("Timed out loading player data for " + description + ".", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading player data for " + description + ".", ex);
+        } finally {
+            loadStateTiming.stop(start);
         }
     }
 
     // ------------------------------------------------------------------------
 
     /**
-     * Load the player's data from a YAML configuration file.
+     * Read and decode the player's latest saved state for one side shortly from now, if it is not already cached, so
+     * that the switch to that side does not wait for the disk.
+     *
+     * The prefetch is skipped if, by then, the player has left or is already using that side's state, and is
+     * discarded if that side is saved or restored before it completes.
      *
      * @param player the player.
-     * @param isMode true if the loaded data is for the ModMode inventory.
+     * @param isMode true to prefetch the ModMode state, false for the normal state.
+     */
+    public void prefetchPlayerData(Player player, boolean isMode) {
+        PlayerStateStore.Key key = new PlayerStateStore.Key(player.getUniqueId(), isMode);
+        Bukkit.getScheduler().runTaskLater(plugin, () -> {
+            if (!player.isOnline() || plugin.isInMode(player) == isMode || plugin.isTransitioning(key.uuid())
+                    || snapshotCache.contains(key) || pendingPrefetches.containsKey(key)) {
+                return;
+            }
+            Object token = new Object();
+            pendingPrefetches.put(key, token);
+            readLatestState(player, key).thenAccept(state -> {
+                if (pendingPrefetches.remove(key, token) && state != null) {
+                    snapshotCache.put(key, state);
+                }
+            });
+        }, PREFETCH_DELAY_TICKS);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Return the cache of decoded player states, for reporting.
+     *
+     * @return the snapshot cache.
      */
-    public void loadPlayerData(Player player, boolean isMode) {
-        File stateFile = getStateFile(player, isMode);
+    public SnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
 
-        YamlConfiguration config = new YamlConfiguration();
-        try {
-            config.load(stateFile);
-            final double MAX_HEALTH = player.getAttribute(Attribute.GENERIC_MAX_HEALTH).getValue();
-            player.setHealth(Math.min(MAX_HEALTH, config.getDouble("health")));
-            player.setFoodLevel(config.getInt("food"));
-            float level = (float) config.getDouble("experience");
-            player.setLevel((int) Math.floor(level));
-            player.setExp(level - player.getLevel());
-            player.setFireTicks(config.getInt("fireticks"));
-            player.setFallDistance((float) config.getDouble("falldistance"));
-            player.setStatistic(Statistic.TIME_SINCE_REST, config.getInt("awaketicks"));
-
-            if (!isMode) {
-                String world = config.getString("world");
-                double x = config.getDouble("x");
-                double y = config.getDouble("y");
-                double z = config.getDouble("z");
-                float pitch = (float) config.getDouble("pitch");
-                float yaw = (float) config.getDouble("yaw");
-                player.teleport(new Location(Bukkit.getWorld(world), x, y, z, yaw, pitch));
+    // ------------------------------------------------------------------------
+
+    /**
+     * Read and decode the latest generation of a key on the persistence thread, falling back to (and migrating) a
+     * state file written by older versions. The returned future completes on the main thread.
+     */
+    private CompletableFuture<PlayerState> readLatestState(Player player, PlayerStateStore.Key key) {
+        String description = player.getName() + " (" + key.uuid() + ")";
+        return onMainThread(submitRead(key, description), "load player data for " + description);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Queue the read of the latest generation of a key, falling back to a legacy state file, on the persistence
+     * thread. The returned future completes on the persistence thread.
+     */
+    private CompletableFuture<PlayerState> submitRead(PlayerStateStore.Key key, String description) {
+        return persistence.submit(key, () -> {
+            long start = readStateTiming.start();
+            try {
+                PlayerState state = stateStore.read(key, 0);
+                return (state != null) ? state : migrateLegacyState(key, description);
+            } finally {
+                readStateTiming.stop(start);
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Read a retained generation of a player's saved state, optionally appending it to the store again as the
+     * latest generation.
+     *
+     * The returned future completes on the main thread, with null if there is no such generation.
+     *
+     * @param uuid        the UUID of the player.
+     * @param isMode      true for the ModMode state.
+     * @param back        0 for the latest generation, 1 for the one before, etc.
+     * @param makeCurrent true to make the generation the latest one.
+     * @return a future that supplies the saved state.
+     */
+    public CompletableFuture<PlayerState> restorePlayerData(UUID uuid, boolean isMode, int back,
+                                                            boolean makeCurrent) {
+        PlayerStateStore.Key key = new PlayerStateStore.Key(uuid, isMode);
+        if (makeCurrent && back > 0) {
+            pendingPrefetches.remove(key);
+            snapshotCache.invalidate(key);
+        }
+        return onMainThread(persistence.submit(key, () -> {
+            PlayerState state = stateStore.read(key, back);
+            if (state != null && makeCurrent && back > 0) {
+                // Written in full, since the generation may be a delta against a base that is not retained as long.
+                stateStore.writeFull(key, state);
             }
+            return state;
+        }), "restore player data for " + uuid);
+    }
 
-            player.getEnderChest().clear();
-            player.getInventory().clear();
-            player.getInventory().setHelmet(config.getItemStack("helmet"));
-            player.getInventory().setChestplate(config.getItemStack("chestplate"));
-            player.getInventory().setLeggings(config.getItemStack("leggings"));
-            player.getInventory().setBoots(config.getItemStack("boots"));
-            player.getInventory().setItemInOffHand(config.getItemStack("off-hand"));
+    // ------------------------------------------------------------------------
 
-            for (PotionEffect potion : player.getActivePotionEffects()) {
-                player.removePotionEffect(potion.getType());
+    /**
+     * Make a restored state the latest saved generation of its side, for when it could not be applied to the player
+     * after all.
+     *
+     * @param uuid   the UUID of the player.
+     * @param isMode true for the ModMode state.
+     * @param state  the restored state.
+     */
+    public void makePlayerDataCurrent(UUID uuid, boolean isMode, PlayerState state) {
+        PlayerStateStore.Key key = new PlayerStateStore.Key(uuid, isMode);
+        pendingPrefetches.remove(key);
+        snapshotCache.put(key, state);
+        persistence.write(key, () -> {
+            long writeStart = writeStateTiming.start();
+            try {
+                stateStore.writeFull(key, state);
+            } finally {
+                writeStateTiming.stop(writeStart);
             }
+            return null;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Return the retained generations of a player's saved state, latest first.
+     *
+     * @param uuid   the UUID of the player.
+     * @param isMode true for the ModMode state.
+     * @return a future that completes on the main thread with the generations.
+     */
+    public CompletableFuture<List<PlayerStateStore.Generation>> getPlayerDataHistory(UUID uuid, boolean isMode) {
+        PlayerStateStore.Key key = new PlayerStateStore.Key(uuid, isMode);
+        return onMainThread(persistence.submit(key, () -> stateStore.history(key)),
+                "read player data history for " + uuid);
+    }
+
+    // ------------------------------------------------------------------------
 
-            ConfigurationSection potions = config.getConfigurationSection("potions");
-            if (potions != null) {
-                for (String key : potions.getKeys(false)) {
-                    PotionEffect potion = (PotionEffect) potions.get(key);
-                    player.addPotionEffect(potion);
+    /**
+     * Return the snapshot compression statistics.
+     *
+     * @return a future that completes on the main thread with the statistics.
+     */
+    public CompletableFuture<SnapshotCompressor.Stats> getCompressionStats() {
+        return onMainThread(persistence.submit(null, compressor::getStats), "read compression statistics");
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Train a new compression dictionary from the latest snapshot of every player and side, and from any state
+     * files written by older versions that have not been migrated, then use it for new snapshots.
+     *
+     * The snapshots are only decompressed, not decoded, so no items are deserialized. Migrated state files are
+     * skipped, since their states are already in the store.
+     *
+     * The samples are read on the persistence thread, but the dictionary is built on a shared pool so that writes
+     * are not held up.
+     *
+     * @return a future that completes on the main thread with the new dictionary, or null if training failed.
+     */
+    public CompletableFuture<TrainedDictionary> trainCompressionDictionary() {
+        File playersDir = new File(plugin.getDataFolder(), "players");
+        CompletableFuture<TrainedDictionary> trained = persistence.submit(null, () -> {
+            List<byte[]> samples = new ArrayList<>();
+            for (PlayerStateStore.Key key : stateStore.keys()) {
+                byte[] sample = stateStore.readEncoded(key);
+                if (sample != null) {
+                    samples.add(sample);
+                }
+            }
+            File[] legacyFiles = playersDir.listFiles((dir, name) -> name.endsWith(".dat"));
+            if (legacyFiles != null) {
+                for (File file : legacyFiles) {
+                    samples.add(Files.readAllBytes(file.toPath()));
                 }
             }
+            return samples;
+        }).thenApplyAsync(samples -> {
+            if (samples.size() < 2) {
+                throw new CompletionException(new IOException("at least two saved states are needed to train"));
+            }
+            byte[] dictionary = SnapshotCompressor.train(samples, SnapshotCompressor.MAX_DICTIONARY_SIZE);
+            return new TrainedDictionary(0, dictionary.length, samples.size(), dictionary);
+        }).thenCompose(result -> persistence.submit(null, () -> {
+            if (result.size() == 0) {
+                throw new IOException("the saved states have nothing in common to train on");
+            }
+            return new TrainedDictionary(compressor.installDictionary(result.contents()), result.size(),
+                    result.samples(), result.contents());
+        }));
+        return onMainThread(trained, "train a compression dictionary");
+    }
 
-            ConfigurationSection inventory = config.getConfigurationSection("inventory");
-            if (inventory != null) {
-                for (String key : inventory.getKeys(false)) {
-                    try {
-                        int slot = Integer.parseInt(key);
-                        ItemStack item = inventory.getItemStack(key);
-                        player.getInventory().setItem(slot, item);
-                    } catch (Exception ex) {
-                        plugin.logError("Exception while loading " + player.getName() + "'s inventory: " + ex);
-                    }
+    // ------------------------------------------------------------------------
+
+    /**
+     * Stop accepting I/O work and wait, up to the configured timeout, for everything queued to be written.
+     */
+    public void shutdown() {
+        long timeout = TimeUnit.SECONDS.toMillis(_config.getLong("storage.shutdownTimeout", 10));
+        if (persistence.shutdown(timeout)) {
+            // The persistence thread has finished, so the stores can be closed from here.
+            try {
+                stateStore.close();
+                membershipStore.close();
+                membershipJournal.close();
+                if (database != null) {
+                    database.close();
                 }
+            } catch (IOException ex) {
+                plugin.logError("Failed to close the ModMode data stores: " + ex.getMessage());
             }
+        } else {
+            plugin.logError("Timed out waiting for ModMode data to be saved.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
 
-            ConfigurationSection enderChest = config.getConfigurationSection("enderchest");
-            if (enderChest != null) {
-                for (String key : enderChest.getKeys(false)) {
+    /**
+     * Open the state store, and the membership store if it is not members.yml, for the configured backend. This
+     * waits for them to be opened, and schedules their periodic commits and maintenance.
+     */
+    private void openStores() {
+        File playersDir = new File(plugin.getDataFolder(), "players");
+        SnapshotCompressor.Algorithm algorithm;
+        try {
+            algorithm = SnapshotCompressor.Algorithm.valueOf(
+                    _config.getString("storage.compression.algorithm", "deflate").toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            plugin.logError("Unknown storage.compression.algorithm; snapshots will not be compressed.");
+            algorithm = SnapshotCompressor.Algorithm.NONE;
+        }
+        compressor = new SnapshotCompressor(new File(playersDir, "dictionaries"), algorithm,
+                _config.getInt("storage.compression.level", 6));
+        DeltaWriter deltaWriter = new DeltaWriter(compressor, _config.getInt("storage.fullSnapshotEvery", 10));
+        int generations = _config.getInt("storage.generations", 3);
+
+        String backend = _config.getString("storage.backend", "segments").toLowerCase();
+        switch (backend) {
+            case "yaml" -> stateStore = new YamlStateStore(playersDir);
+            case "sqlite" -> {
+                database = new SqliteDatabase(new File(plugin.getDataFolder(), "modmode.db"),
+                        _config.getInt("storage.sqlite.batchSize", 32));
+                stateStore = new SqliteStateStore(database, generations, deltaWriter);
+                membershipStore = new SqliteMembershipStore(database);
+            }
+            default -> {
+                if (!backend.equals("segments")) {
+                    plugin.logError("Unknown storage.backend " + backend + "; using segments.");
+                }
+                stateStore = new SegmentStateStore(new File(playersDir, "segments"), generations, deltaWriter,
+                        plugin::logError);
+            }
+        }
+        try {
+            persistence.submit(null, () -> {
+                compressor.open();
+                stateStore.open();
+                return null;
+            }).join();
+        } catch (CompletionException ex) {
+            plugin.logError("Failed to open the " + backend + " state store: " + ex.getCause().getMessage());
+        }
+
+        // Commit batched database writes at least once per flush interval.
+        long flushTicks = Math.max(1, _config.getLong("storage.flushInterval", 1000) / 50);
+        Bukkit.getScheduler().runTaskTimer(plugin, () ->
+                persistence.execute(null, "commit the state store", () -> {
+                    long start = flushStateStoreTiming.start();
                     try {
-                        int slot = Integer.parseInt(key);
-                        ItemStack item = enderChest.getItemStack(key);
-                        player.getEnderChest().setItem(slot, item);
-                    } catch (Exception ex) {
-                        plugin.logError("Exception while loading " + player.getName() + "'s ender chest: " + ex);
+                        stateStore.flush();
+                    } finally {
+                        flushStateStoreTiming.stop(start);
                     }
-                }
+                    return null;
+                }), flushTicks, flushTicks);
+
+        long interval = Math.max(1, _config.getLong("storage.compactInterval", 10)) * 60 * 20;
+        Bukkit.getScheduler().runTaskTimer(plugin, () ->
+                persistence.execute(null, "compact the state store", () -> {
+                    long start = maintainStateStoreTiming.start();
+                    try {
+                        stateStore.maintain();
+                    } finally {
+                        maintainStateStoreTiming.stop(start);
+                    }
+                    return null;
+                }), interval, interval);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create the cache of decoded player states and schedule the eviction of idle entries.
+     */
+    private void createSnapshotCache() {
+        snapshotCache = new SnapshotCache(_config.getInt("storage.cache.maxEntries", 256),
+                TimeUnit.MINUTES.toMillis(_config.getLong("storage.cache.idleMinutes", 30)));
+        Bukkit.getScheduler().runTaskTimer(plugin, snapshotCache::evictIdle, 60 * 20, 60 * 20);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Read a state file written by an older version, returning null if there is none. The state is written to the
+     * state store and the file set aside so that it is only parsed once. Runs on the persistence thread.
+     */
+    private PlayerState migrateLegacyState(PlayerStateStore.Key key, String description)
+            throws IOException, InvalidConfigurationException {
+        PlayerState state;
+        File legacyFile = getLegacyStateFile(key.uuid(), key.isMode(), "dat");
+        if (legacyFile.exists()) {
+            state = PlayerStateCodec.decode(Files.readAllBytes(legacyFile.toPath()));
+        } else {
+            legacyFile = getLegacyStateFile(key.uuid(), key.isMode(), "yml");
+            if (!legacyFile.exists()) {
+                return null;
             }
-        } catch (Exception ex) {
-            plugin.logError("Failed to load player data for " + player.getName() + "(" + player.getUniqueId().toString()
-                    + "): " + ex.getMessage());
+            YamlConfiguration config = new YamlConfiguration();
+            config.load(legacyFile);
+            state = PlayerState.load(config);
         }
+
+        stateStore.writeFull(key, state);
+        if (!legacyFile.renameTo(new File(legacyFile.getPath() + ".migrated"))) {
+            plugin.logError("Could not set aside migrated state file " + legacyFile.getName() + ".");
+        }
+        plugin.logInfo("Migrated state file " + legacyFile.getName() + " of " + description
+                + " to the state store.");
+        return state;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Return a future that completes on the main thread with the result of one completed on the persistence thread.
+     * Failures are logged and produce null. If the plugin is disabled in the meantime, it never completes.
+     */
+    private <T> CompletableFuture<T> onMainThread(CompletableFuture<T> future, String description) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, ex) -> {
+            if (ex != null) {
+                plugin.logError("Failed to " + description + ": " + ex.getMessage());
+            }
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, () -> result.complete(ex == null ? value : null));
+            }
+        });
+        return result;
     }
 
-}
\ No newline at end of file
+}
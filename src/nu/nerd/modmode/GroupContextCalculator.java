@@ -0,0 +1,94 @@
+package nu.nerd.modmode;
+
+import net.luckperms.api.context.ContextCalculator;
+import net.luckperms.api.context.ContextConsumer;
+import net.luckperms.api.context.ContextSet;
+import net.luckperms.api.context.ImmutableContextSet;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ----------------------------------------------------------------------------
+/**
+ * Provides the LuckPerms context modmode-group=[group], naming the group an
+ * online player is in, when permissions.mode is "context".
+ *
+ * LuckPerms calls calculators from its own threads, so the groups are kept
+ * in a concurrent map updated from the main thread, rather than read from the
+ * players' sessions.
+ */
+final class GroupContextCalculator implements ContextCalculator<Player> {
+
+    /**
+     * The context key.
+     */
+    static final String KEY = "modmode-group";
+
+    private final Map<UUID, String> groups = new ConcurrentHashMap<>();
+    private volatile ContextSet potentialContexts = ImmutableContextSet.empty();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the groups offered as values of the context.
+     *
+     * @param allGroups every group.
+     */
+    void setPotentialGroups(Collection<ModModeGroup> allGroups) {
+        ImmutableContextSet.Builder builder = ImmutableContextSet.builder();
+        for (ModModeGroup group : allGroups) {
+            builder.add(KEY, group.getName().toLowerCase());
+        }
+        potentialContexts = builder.build();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set or clear the group of a player.
+     *
+     * @param uuid  the UUID of the player.
+     * @param group the group, or null if they are in none.
+     * @return true if the player's context changed.
+     */
+    boolean setGroup(UUID uuid, ModModeGroup group) {
+        String previous = (group == null) ? groups.remove(uuid)
+                                          : groups.put(uuid, group.getName().toLowerCase());
+        return (group == null) ? previous != null : !group.getName().equalsIgnoreCase(previous);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Forget every player's group.
+     */
+    void clear() {
+        groups.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see ContextCalculator#calculate(Object, ContextConsumer)
+     */
+    @Override
+    public void calculate(@NotNull Player target, @NotNull ContextConsumer consumer) {
+        String group = groups.get(target.getUniqueId());
+        if (group != null) {
+            consumer.accept(KEY, group);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Offer every group as a value of the context, for LuckPerms' command
+     * completion and editor.
+     *
+     * @see ContextCalculator#estimatePotentialContexts()
+     */
+    @Override
+    public @NotNull ContextSet estimatePotentialContexts() {
+        return potentialContexts;
+    }
+
+} // GroupContextCalculator
@@ -0,0 +1,147 @@
+package nu.nerd.modmode;
+
+import java.util.Arrays;
+
+// ------------------------------------------------------------------------
+/**
+ * A histogram of durations in nanoseconds, with log-linear buckets in the
+ * manner of HdrHistogram.
+ *
+ * Durations below 16 ns each have their own bucket. Above that, every power
+ * of two is split into 16 buckets, so a reported percentile is at most 1/16
+ * above the true value. Durations above about 18 minutes are counted in the
+ * last bucket. Recording is a few shifts and an array increment.
+ *
+ * Methods are synchronized, so that a histogram recorded on the persistence
+ * thread can be read from the main thread.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * The highest power of two with its own buckets.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        ++counts[bucket(nanos)];
+        ++count;
+        total += nanos;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Forget every recorded duration.
+     */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of recorded durations.
+     *
+     * @return the number of recorded durations.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sum of the recorded durations.
+     *
+     * @return the total in nanoseconds.
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the longest recorded duration.
+     *
+     * @return the maximum in nanoseconds, or 0 if none were recorded.
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the duration that a fraction of the recorded durations do not
+     * exceed, rounded up to the top of its bucket.
+     *
+     * @param fraction the fraction, e.g. 0.99 for the 99th percentile.
+     * @return the duration in nanoseconds, or 0 if none were recorded.
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(bucket));
+            }
+        }
+        return max;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the bucket that a duration is counted in.
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_COUNT) {
+            return (int) nanos;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(nanos));
+        if (exponent == MAX_EXPONENT && nanos >= (1L << (MAX_EXPONENT + 1))) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the largest duration counted in a bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return (SUB_COUNT + sub + 1) * width - 1;
+    }
+
+} // LatencyHistogram
@@ -15,10 +15,13 @@ import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.format.TextDecoration;
 import nu.nerd.modmode.listeners.CoreProtectListener;
 import nu.nerd.modmode.listeners.ModModeListener;
+import nu.nerd.modmode.listeners.ProtectionListener;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.GameMode;
 import org.bukkit.Location;
 import org.bukkit.Statistic;
+import org.bukkit.World;
 import org.bukkit.attribute.Attribute;
 import org.bukkit.command.*;
 import org.bukkit.configuration.ConfigurationSection;
@@ -55,11 +58,21 @@ public class ModMode extends JavaPlugin {
      */
     private Configuration CONFIG;
 
+    /**
+     * Handler for the administrative subcommands of group commands.
+     */
+    private AdminCommands adminCommands;
+
     /**
      * The vanish plugin.
      */
     private VanishPlugin vanish;
 
+    /**
+     * Corrects which players can see which when a player's vanish state or permissions change.
+     */
+    private VisibilityEngine visibility;
+
     /**
      * The API for the TAB plugin.
      */
@@ -81,14 +94,44 @@ public class ModMode extends JavaPlugin {
     private HashMap<String, ModModeGroup> groupMap = new HashMap<>();
 
     /**
-     * A map of players and groups they're members of for easy fetching.
+     * All groups ever loaded, indexed by their ordinals.
+     */
+    private List<ModModeGroup> groupsByOrdinal = new ArrayList<>();
+
+    /**
+     * The ordinals of the groups players are members of, by player UUID, for easy fetching.
+     */
+    private UUIDIndex playerGroups = new UUIDIndex();
+
+    /**
+     * The cached group, vanish, item interaction, silent join and state change flags of online staff players.
+     */
+    private StaffSessions sessions = new StaffSessions();
+
+    /**
+     * The chunks that vanished players are in or next to.
+     */
+    private VanishedPresence vanishedPresence = new VanishedPresence();
+
+    /**
+     * Counts and latencies of event handlers, state changes and I/O, for /[group] stats.
+     */
+    private Timings timings = new Timings();
+
+    /**
+     * The phase timings of recent promotions and demotions, for /[group] traces.
+     */
+    private TransitionTraces transitionTraces = new TransitionTraces(timings, 100);
+
+    /**
+     * Spreads re-applied modes and bulk admin transitions across ticks.
      */
-    private HashMap<UUID, ModModeGroup> playerGroupMap = new HashMap<>();
+    private TransitionScheduler transitionScheduler = new TransitionScheduler(this);
 
     /**
-     * A set of UUIDs of players that have joined the server silently.
+     * The handlers for frequent events that only matter while someone is in a mode or vanished.
      */
-    private Set<UUID> silentJoinSet = new HashSet<>();
+    private ProtectionListener protectionListener;
 
     /**
      * Bossbar displayed when vanished and not in a mode.
@@ -120,10 +163,12 @@ public class ModMode extends JavaPlugin {
         }
 
         // Load the config and commands.
+        adminCommands = new AdminCommands(this);
         CONFIG = new Configuration(this, TABAPI);
 
         // Load the main listener class.
         new ModModeListener(this);
+        protectionListener = new ProtectionListener(this);
 
         // Check if VanishNoPacket is loaded.
         vanish = (VanishPlugin) getPluginManager().getPlugin("VanishNoPacket");
@@ -136,6 +181,7 @@ public class ModMode extends JavaPlugin {
             PluginCommand vanishCommand = vanish.getCommand("vanish");
             vanishCommand.setExecutor(ownExecutor);
             vanishCommand.setPermission(Permissions.VANISH);
+            visibility = new VisibilityEngine(this, vanish);
             logInfo("Successfully hooked into VanishNoPacket.");
         }
 
@@ -166,6 +212,12 @@ public class ModMode extends JavaPlugin {
             }
         }, TEN_MINUTES, TEN_MINUTES);
 
+        // Staff may already be online if the plugin was reloaded.
+        for(Player player : Bukkit.getOnlinePlayers()) {
+            if(isInMode(player) || isVanished(player)) {
+                openSession(player);
+            }
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -173,7 +225,18 @@ public class ModMode extends JavaPlugin {
     @Override
     public void onDisable() {
         HandlerList.unregisterAll(this);
-        CONFIG.save();
+        if(protectionListener != null) {
+            protectionListener.shutdown();
+        }
+        if(permissions != null) {
+            permissions.shutdown();
+        }
+        sessions.clear();
+        vanishedPresence.clear();
+        if(CONFIG != null) {
+            CONFIG.save();
+            CONFIG.shutdown();
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -199,6 +262,10 @@ public class ModMode extends JavaPlugin {
         if (vanish.getManager().isVanished(player) != vanished) {
             vanish.getManager().toggleVanish(player);
 
+            openSession(player).setVanished(vanished);
+            updatePresence(player, vanished);
+            updateProtection();
+
             if(isInMode(player)) {
                 if(vanished) player.hideBossBar(modeUnvanishedBar);
                 else player.showBossBar(modeUnvanishedBar);
@@ -222,16 +289,58 @@ public class ModMode extends JavaPlugin {
      * based on their current vanish state and permissions.
      *
      * Just calling resetSeeing() when a moderator toggles ModMode (and hence
-     * permissions and vanish state) is apparently insufficient.
+     * permissions and vanish state) is apparently insufficient. This refreshes
+     * every online player, so state changes use updatePlayerSeeing() instead;
+     * this is for /[group] refreshall.
+     *
+     * @return the number of players refreshed.
+     */
+    public int updateAllPlayersSeeing() {
+        return visibility.refreshAll();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Show or hide a player to others, and others to them, where that has
+     * changed with the player's vanish state and permissions.
+     *
+     * @param player the player whose state changed.
+     */
+    public void updatePlayerSeeing(Player player) {
+        visibility.refresh(player);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Show others near a player the player's new appearance after a state change, by re-sending just the player,
+     * or if transitions.refreshChunk is set, the whole chunk they are in.
+     *
+     * @param player the player whose state changed.
      */
-    public void updateAllPlayersSeeing() {
-        for (Player player : Bukkit.getOnlinePlayers()) {
-            vanish.getManager().playerRefresh(player);
+    public void resendPlayer(Player player) {
+        if(getConfig().getBoolean("transitions.refreshChunk", false)) {
+            World world = player.getWorld();
+            Chunk chunk = world.getChunkAt(player.getLocation());
+            world.refreshChunk(chunk.getX(), chunk.getZ());
+        } else {
+            visibility.resend(player);
         }
     }
 
     // ------------------------------------------------------------------------
 
+    /**
+     * Returns the engine that keeps which players can see which up to date.
+     * @return the visibility engine.
+     */
+    VisibilityEngine getVisibility() {
+        return visibility;
+    }
+
+    // ------------------------------------------------------------------------
+
     /**
      * Returns a "clean" mode name for the given player by prepending the
      * player's name with their group's name.
@@ -240,7 +349,7 @@ public class ModMode extends JavaPlugin {
      * @return the player's mode name.
      */
     public String getCleanModeName(Player player) {
-        return playerGroupMap.get(player.getUniqueId()).getName() + "_" + player.getName();
+        return getGroupPlayerMemberOf(player.getUniqueId()).getName() + "_" + player.getName();
     }
 
     // ------------------------------------------------------------------------
@@ -293,7 +402,10 @@ public class ModMode extends JavaPlugin {
      * @param uuid the UUID of the player.
      */
     public void addSilentJoin(UUID uuid) {
-        silentJoinSet.add(uuid);
+        StaffSession session = openSession(uuid);
+        if(session != null) {
+            session.setSilentJoin(true);
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -303,7 +415,154 @@ public class ModMode extends JavaPlugin {
      * @param uuid the UUID of the player.
      */
     public void removeSilentJoin(UUID uuid) {
-        silentJoinSet.remove(uuid);
+        StaffSession session = sessions.get(uuid);
+        if(session != null) {
+            session.setSilentJoin(false);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Marks a player as having a state change in progress, or clears that mark.
+     * @param uuid the UUID of the player.
+     * @param transitioning true if the player's state is being swapped.
+     */
+    public void setTransitioning(UUID uuid, boolean transitioning) {
+        StaffSession session = transitioning ? openSession(uuid) : sessions.get(uuid);
+        if(session != null) {
+            session.setTransitioning(transitioning);
+            updateProtection();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the session of an online player, creating it from the player's current group, vanish state and item
+     * interaction toggle if they have none.
+     * @param player the player.
+     * @return the player's session.
+     */
+    public StaffSession openSession(Player player) {
+        UUID uuid = player.getUniqueId();
+        StaffSession session = sessions.get(uuid);
+        if(session == null) {
+            session = sessions.add(uuid);
+            int ordinal = playerGroups.get(uuid);
+            session.setGroup(ordinal, System.currentTimeMillis());
+            session.setVanished(isVanished(player));
+            updatePresence(player, session.isVanished());
+            ModModeGroup group = getGroupByOrdinal(ordinal);
+            session.setBypassingItemBlock(group != null && group.isInteractWithItems()
+                    && group.isBypassingItemBlock(uuid));
+            permissions.updateContext(player, group);
+            updateProtection();
+        }
+        return session;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the session of a player, creating it if they are online and have none.
+     * @param uuid the UUID of the player.
+     * @return the player's session, or null if they are offline.
+     */
+    private StaffSession openSession(UUID uuid) {
+        StaffSession session = sessions.get(uuid);
+        if(session == null) {
+            Player player = Bukkit.getPlayer(uuid);
+            if(player != null) {
+                session = openSession(player);
+            }
+        }
+        return session;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Discards the session of a player who has left.
+     * @param uuid the UUID of the player.
+     */
+    public void closeSession(UUID uuid) {
+        sessions.remove(uuid);
+        permissions.forgetContext(uuid);
+        vanishedPresence.untrack(uuid);
+        updateProtection();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Records a change of vanish state made by VanishNoPacket, such as vanishing on join.
+     * @param player the player.
+     * @param vanished true if the player is now vanished.
+     */
+    public void vanishChanged(Player player, boolean vanished) {
+        StaffSession session = vanished ? openSession(player) : sessions.get(player.getUniqueId());
+        if(session != null) {
+            session.setVanished(vanished);
+            updatePresence(player, vanished);
+            updateProtection();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Starts or stops tracking the chunks near a player, according to whether they are vanished.
+     * @param player the player.
+     * @param vanished true if the player is vanished.
+     */
+    private void updatePresence(Player player, boolean vanished) {
+        if(vanished) {
+            vanishedPresence.track(player.getUniqueId(), player.getLocation());
+        } else {
+            vanishedPresence.untrack(player.getUniqueId());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Records a player joining or leaving a group in their session, if they have one.
+     * @param uuid the UUID of the player.
+     * @param ordinal the ordinal of the group, or {@link UUIDIndex#NONE} if they left it.
+     */
+    void groupChanged(UUID uuid, int ordinal) {
+        StaffSession session = sessions.get(uuid);
+        if(session != null) {
+            session.setGroup(ordinal, System.currentTimeMillis());
+            updateProtection();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Registers the protection event handlers if anyone is in a mode, vanished or having their state swapped, and
+     * unregisters them otherwise.
+     */
+    private void updateProtection() {
+        if(protectionListener != null) {
+            protectionListener.setRegistered(sessions.anyNeedProtection());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Records a player's item interaction toggle in their session, if they have one.
+     * @param uuid the UUID of the player.
+     * @param bypassing true if item interaction is enabled.
+     */
+    void itemBypassChanged(UUID uuid, boolean bypassing) {
+        StaffSession session = sessions.get(uuid);
+        if(session != null) {
+            session.setBypassingItemBlock(bypassing);
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -357,11 +616,12 @@ public class ModMode extends JavaPlugin {
                 } else {
                     setVanish(player, true);
                     TabPlayer tabPlayer = TABAPI.getPlayer(playerUUID);
-                    if(!playerGroupMap.containsKey(playerUUID)) {
+                    ModModeGroup group = getGroupPlayerMemberOf(playerUUID);
+                    if(group == null) {
                         nameTagManager.setPrefix(tabPlayer, "<blue>");
                         tabListFormatManager.setPrefix(tabPlayer, "<blue>");
                     } else {
-                        playerGroupMap.get(playerUUID).updateMemberName(tabPlayer, true);
+                        group.updateMemberName(tabPlayer, true);
                     }
                 }
             } else if(commandName.equalsIgnoreCase("unvanish")) {
@@ -370,11 +630,12 @@ public class ModMode extends JavaPlugin {
                 } else {
                     setVanish(player, false);
                     TabPlayer tabPlayer = TABAPI.getPlayer(playerUUID);
-                    if(!playerGroupMap.containsKey(playerUUID)) {
+                    ModModeGroup group = getGroupPlayerMemberOf(playerUUID);
+                    if(group == null) {
                         nameTagManager.setPrefix(tabPlayer, null);
                         tabListFormatManager.setPrefix(tabPlayer, null);
                     } else {
-                        playerGroupMap.get(playerUUID).updateMemberName(tabPlayer, true);
+                        group.updateMemberName(tabPlayer, true);
                     }
                 }
             }
@@ -409,6 +670,66 @@ public class ModMode extends JavaPlugin {
 
     // ------------------------------------------------------------------------
 
+    /**
+     * Returns the counts and latencies of event handlers, state changes and I/O.
+     * @return the counts and latencies of event handlers, state changes and I/O.
+     */
+    public Timings getTimings() {
+        return timings;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the phase timings of recent promotions and demotions.
+     * @return the phase timings of recent promotions and demotions.
+     */
+    public TransitionTraces getTransitionTraces() {
+        return transitionTraces;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the scheduler that spreads queued transitions across ticks.
+     * @return the scheduler that spreads queued transitions across ticks.
+     */
+    public TransitionScheduler getTransitionScheduler() {
+        return transitionScheduler;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the index of chunks that vanished players are in or next to.
+     * @return the index of chunks that vanished players are in or next to.
+     */
+    public VanishedPresence getVanishedPresence() {
+        return vanishedPresence;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the listener for the protection event handlers.
+     * @return the listener for the protection event handlers.
+     */
+    public ProtectionListener getProtectionListener() {
+        return protectionListener;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the handler for the administrative subcommands of group commands.
+     * @return the handler for the administrative subcommands of group commands.
+     */
+    AdminCommands getAdminCommands() {
+        return adminCommands;
+    }
+
+    // ------------------------------------------------------------------------
+
     /**
      * Returns an instance of the TAB plugin's API.
      * @return an instance of the TAB plugin's API.
@@ -430,11 +751,44 @@ public class ModMode extends JavaPlugin {
     // ------------------------------------------------------------------------
 
     /**
-     * Returns a hashmap containing player UUIDs and the groups they belong to.
-     * @return a hashmap containing player UUIDs and the groups they belong to.
+     * Returns an index of player UUIDs and the ordinals of the groups they belong to.
+     * @return an index of player UUIDs and the ordinals of the groups they belong to.
+     */
+    public UUIDIndex getPlayerGroups() {
+        return playerGroups;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Assigns a newly created group the next free ordinal.
+     * @param group the new group.
+     * @return the group's ordinal.
      */
-    public HashMap<UUID, ModModeGroup> getPlayerGroupMap() {
-        return playerGroupMap;
+    int registerGroup(ModModeGroup group) {
+        groupsByOrdinal.add(group);
+        return groupsByOrdinal.size() - 1;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the group with the given ordinal.
+     * @param ordinal the ordinal of the group.
+     * @return the group, or null if the ordinal is {@link UUIDIndex#NONE}.
+     */
+    public ModModeGroup getGroupByOrdinal(int ordinal) {
+        return (ordinal == UUIDIndex.NONE) ? null : groupsByOrdinal.get(ordinal);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the number of groups that have been assigned ordinals.
+     * @return the number of groups, one more than the highest ordinal.
+     */
+    public int getGroupCount() {
+        return groupsByOrdinal.size();
     }
 
     // ------------------------------------------------------------------------
@@ -475,7 +829,31 @@ public class ModMode extends JavaPlugin {
      * @return true if they are on silently, false if not.
      */
     public boolean isSilentJoin(UUID uuid) {
-        return silentJoinSet.contains(uuid);
+        StaffSession session = sessions.get(uuid);
+        return session != null && session.isSilentJoin();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Checks if a player's state is currently being swapped between their normal and mode states.
+     * @param uuid the UUID of the player being checked.
+     * @return true if a state change is in progress, false if not.
+     */
+    public boolean isTransitioning(UUID uuid) {
+        StaffSession session = sessions.get(uuid);
+        return session != null && session.isTransitioning();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Gets the cached state of an online staff player.
+     * @param uuid the UUID of the player.
+     * @return the player's session, or null if they are not staff or are offline.
+     */
+    public StaffSession getSession(UUID uuid) {
+        return sessions.get(uuid);
     }
 
     // ------------------------------------------------------------------------
@@ -486,7 +864,7 @@ public class ModMode extends JavaPlugin {
      * @return the instance of the group the player is in.
      */
     public ModModeGroup getGroupPlayerMemberOf(UUID uuid) {
-        return playerGroupMap.get(uuid);
+        return getGroupByOrdinal(playerGroups.get(uuid));
     }
 
     // ------------------------------------------------------------------------
@@ -497,7 +875,7 @@ public class ModMode extends JavaPlugin {
      * @return true if the player is in a group, false if not.
      */
     public boolean isInMode(Player player) {
-        return playerGroupMap.containsKey(player.getUniqueId());
+        return playerGroups.contains(player.getUniqueId());
     }
 
 } // ModMode
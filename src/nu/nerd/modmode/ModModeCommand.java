@@ -41,6 +41,12 @@ public class ModModeCommand extends BukkitCommand {
 
     @Override
     public boolean execute(@NotNull CommandSender commandSender, @NotNull String commandLabel, @NotNull String @NotNull [] args) {
+        // Administrative subcommands can also be run from the console.
+        if (args.length > 0 && plugin.getAdminCommands().handles(args[0])) {
+            plugin.getAdminCommands().execute(commandSender, commandLabel, args);
+            return true;
+        }
+
         if (!(commandSender instanceof Player player)) return false;
 
         UUID uuid = player.getUniqueId();
@@ -52,6 +58,12 @@ public class ModModeCommand extends BukkitCommand {
             return true;
         }
 
+        // Don't start another state change while the last one is still being saved/loaded.
+        if (plugin.isTransitioning(uuid)) {
+            player.sendMessage(Component.text("Your previous state change is still in progress.", NamedTextColor.RED));
+            return true;
+        }
+
         boolean isInGroup = currentGroup != null;
         boolean isInParentGroup = false;
         if (isInGroup) isInParentGroup = currentGroup.equals(parentGroup);
@@ -204,7 +216,8 @@ public class ModModeCommand extends BukkitCommand {
             message = message.appendNewline().append(Component.text("None!", NamedTextColor.GRAY));
         }
 
-        if(parentGroup.isInteractWithItems() || player.hasPermission("modmode.op")) {
+        if(parentGroup.isInteractWithItems() || player.hasPermission("modmode.op")
+                || player.hasPermission(AdminCommands.PERMISSION)) {
             message = message.appendNewline().appendNewline().append(Component.text("Additional Commands:", NamedTextColor.BLUE));
         }
 
@@ -223,6 +236,25 @@ public class ModModeCommand extends BukkitCommand {
                                     NamedTextColor.GREEN))));
         }
 
+        if(player.hasPermission(AdminCommands.PERMISSION)) {
+            message = message.appendNewline().append(Component.text("- ", NamedTextColor.GREEN)
+                    .append(Component.text("/" + this.getName() + " history <player> <mode|normal>", NamedTextColor.GRAY)
+                            .append(Component.text(" - List the saved generations of a player's state.",
+                                    NamedTextColor.GREEN))));
+            message = message.appendNewline().append(Component.text("- ", NamedTextColor.GREEN)
+                    .append(Component.text("/" + this.getName() + " restore <player> <mode|normal> <back>", NamedTextColor.GRAY)
+                            .append(Component.text(" - Restore an older generation of a player's state.",
+                                    NamedTextColor.GREEN))));
+            message = message.appendNewline().append(Component.text("- ", NamedTextColor.GREEN)
+                    .append(Component.text("/" + this.getName() + " cache", NamedTextColor.GRAY)
+                            .append(Component.text(" - Show the player state cache statistics.",
+                                    NamedTextColor.GREEN))));
+            message = message.appendNewline().append(Component.text("- ", NamedTextColor.GREEN)
+                    .append(Component.text("/" + this.getName() + " compression [train]", NamedTextColor.GRAY)
+                            .append(Component.text(" - Show compression statistics or train a new dictionary.",
+                                    NamedTextColor.GREEN))));
+        }
+
         player.sendMessage(message);
 
     }
@@ -236,11 +268,16 @@ public class ModModeCommand extends BukkitCommand {
             if (parentGroup.isInteractWithItems()) {
                 options.add("iteminteract");
             }
+            options.addAll(plugin.getAdminCommands().tabComplete(commandSender, args));
             return options.stream()
                     .filter(opt -> opt.startsWith(args[0].toLowerCase()))
                     .toList();
         }
 
+        if (plugin.getAdminCommands().handles(args[0])) {
+            return plugin.getAdminCommands().tabComplete(commandSender, args);
+        }
+
         if (args.length == 2 && args[0].equalsIgnoreCase("iteminteract")) {
             return Stream.of("on", "off")
                     .filter(opt -> opt.startsWith(args[1].toLowerCase()))
@@ -9,13 +9,16 @@ import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.format.TextDecoration;
 import net.luckperms.api.util.Result;
+import nu.nerd.modmode.TransitionTraces.Outcome;
+import nu.nerd.modmode.TransitionTraces.Phase;
+import nu.nerd.modmode.TransitionTraces.Transition;
+import nu.nerd.modmode.storage.PlayerState;
 import org.bukkit.Bukkit;
-import org.bukkit.Chunk;
 import org.bukkit.GameMode;
-import org.bukkit.World;
 import org.bukkit.command.CommandException;
 import org.bukkit.entity.Player;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -27,6 +30,9 @@ public class ModModeGroup {
 
     private String name;
 
+    // The index of this group in the plugin's table of groups
+    private final int ordinal;
+
     private ModModeCommand command;
 
     // Actions
@@ -53,10 +59,21 @@ public class ModModeGroup {
     private Permissions permissions;
 
     // Members
-    private List<UUID> members;
+    private UUIDIndex members = new UUIDIndex();
 
     // Members bypassing the item interaction block
-    private Set<UUID> membersBypassingItemBlock;
+    private UUIDIndex membersBypassingItemBlock;
+
+    // Players whose state is being swapped, waiting for the other side's state to be read
+    private Map<UUID, Swap> swapping = new HashMap<>();
+
+    /**
+     * A state swap waiting for the other side's state to be read.
+     * @param promotion True if the player is being promoted into the group, false if being demoted.
+     * @param trace The trace of the transition.
+     */
+    private record Swap(boolean promotion, Transition trace) {
+    }
 
     // Bossbars when in mode
     private BossBar inModeBar;
@@ -89,8 +106,11 @@ public class ModModeGroup {
         this.interactWithItems = interactWithItems;
         this.defaultGameMode = defaultGameMode;
         this.defaultGameModeOnDeactivate = defaultGameModeOnDeactivate;
-        this.members = members;
+        for(UUID member : members) {
+            this.members.add(member);
+        }
         this.plugin = plugin;
+        this.ordinal = plugin.registerGroup(this);
         this.TABAPI = TABAPI;
         this.nameTagManager = TABAPI.getNameTagManager();
         this.tabListFormatManager = TABAPI.getTabListFormatManager();
@@ -98,7 +118,7 @@ public class ModModeGroup {
         inModeBar = BossBar.bossBar(Component.text("You're currently in " + this.getName(),
                         NamedTextColor.GREEN), 1, BossBar.Color.GREEN, BossBar.Overlay.PROGRESS);
         if(this.interactWithItems) {
-            membersBypassingItemBlock = new HashSet<>();
+            membersBypassingItemBlock = new UUIDIndex();
             itemInteractionEnabledBar = BossBar.bossBar(Component.text("⚠ You have item interaction enabled! ⚠",
                     NamedTextColor.RED), 1, BossBar.Color.RED, BossBar.Overlay.PROGRESS);
         }
@@ -109,45 +129,97 @@ public class ModModeGroup {
 
     /**
      * Promote a player into this group.
+     *
+     * LuckPerms promotes the player off the main thread; the rest of the state change resumes on the main thread
+     * once it has been saved. The player is marked as transitioning in the meantime.
      * @param player The player being promoted.
      * @param uuid The UUID of the player being promoted.
      */
     public void promote(Player player, UUID uuid) {
+        Transition trace = plugin.getTransitionTraces().begin(player.getName(), name, true);
         addMember(uuid);
+        plugin.openSession(player);
+        plugin.setTransitioning(uuid, true);
         runCommands(player, activateBefore);
-        boolean result = permissions.promote(player, this);
-        if(result) {
-            continueStateChange(player, uuid, true);
-        } else {
-            plugin.stateFail(player, uuid);
-        }
+        trace.mark(Phase.BEFORE);
+        permissions.promote(player, this).thenAccept(result -> {
+            trace.mark(Phase.PERMISSIONS);
+            if(!player.isOnline()) {
+                abandonStateChange(player, uuid, true, result, trace);
+            } else if(result) {
+                continueStateChange(player, uuid, true, trace);
+            } else {
+                plugin.setTransitioning(uuid, false);
+                plugin.stateFail(player, uuid);
+                trace.finish(Outcome.PERMISSIONS_FAILED);
+            }
+        });
     }
 
     // ------------------------------------------------------------------------
 
     /**
      * Demote a player from this group.
+     *
+     * LuckPerms demotes the player off the main thread; the rest of the state change resumes on the main thread
+     * once it has been saved. The player is marked as transitioning in the meantime.
      * @param player The player being demoted.
      * @param uuid The UUID of the player being demoted.
      */
     public void demote(Player player, UUID uuid) {
+        Transition trace = plugin.getTransitionTraces().begin(player.getName(), name, false);
+        plugin.setTransitioning(uuid, true);
         runCommands(player, deactivateBefore);
-        boolean result = permissions.demote(player, this);
-        if(result) {
-            removeMember(uuid);
-            if(isInteractWithItems()) {
-                removeBypassingItemBlock(uuid);
+        trace.mark(Phase.BEFORE);
+        permissions.demote(player, this).thenAccept(result -> {
+            trace.mark(Phase.PERMISSIONS);
+            if(!player.isOnline()) {
+                abandonStateChange(player, uuid, false, result, trace);
+            } else if(result) {
+                removeMember(uuid);
+                if(isInteractWithItems()) {
+                    removeBypassingItemBlock(uuid);
+                }
+                continueStateChange(player, uuid, false, trace);
+            } else {
+                // Trigger a state fail
+                plugin.setTransitioning(uuid, false);
+                plugin.stateFail(player, uuid);
+                /*
+                 Re-add them to the group so they can transition out properly and not be in a limbo state until
+                 they run the toggle command again.
+                 */
+                addMember(uuid);
+                trace.finish(Outcome.PERMISSIONS_FAILED);
             }
-            continueStateChange(player, uuid, false);
-        } else {
-            // Trigger a state fail
-            plugin.stateFail(player, uuid);
-            /*
-             Re-add them to the group so they can transition out properly and not be in a limbo state until
-             they run the toggle command again.
-             */
-            addMember(uuid);
+        });
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Ends a state change whose player left while LuckPerms was changing their track, before their state was
+     * swapped. The player logged out with the inventory of the side they started on, so they are put back on that
+     * side: a promotion is undone, and a demotion leaves them a member, demoted along the track only if members of
+     * this group are while offline.
+     * @param player The player who left.
+     * @param uuid The UUID of the player who left.
+     * @param promotion True if the player was being promoted into the group, false if being demoted.
+     * @param changed True if LuckPerms changed their track.
+     * @param trace The trace of this transition.
+     */
+    private void abandonStateChange(Player player, UUID uuid, boolean promotion, boolean changed, Transition trace) {
+        plugin.setTransitioning(uuid, false);
+        plugin.logError(player.getName() + " left before their state change to " + name + " completed.");
+        if(promotion) {
+            removeMember(uuid);
+            if(changed) permissions.demote(player, this);
+        } else if(suppressJoinMessages) {
+            if(!changed) permissions.demote(player, this);
+        } else if(changed) {
+            permissions.promote(player, this);
         }
+        trace.finish(Outcome.PLAYER_LEFT);
     }
 
     // ------------------------------------------------------------------------
@@ -158,7 +230,8 @@ public class ModModeGroup {
      */
     private void addMember(UUID uuid) {
         this.members.add(uuid);
-        plugin.getPlayerGroupMap().put(uuid, this);
+        plugin.getPlayerGroups().put(uuid, ordinal);
+        plugin.groupChanged(uuid, ordinal);
     }
 
     // ------------------------------------------------------------------------
@@ -169,7 +242,8 @@ public class ModModeGroup {
      */
     public void removeMember(UUID uuid) {
         this.members.remove(uuid);
-        plugin.getPlayerGroupMap().remove(uuid);
+        plugin.getPlayerGroups().remove(uuid);
+        plugin.groupChanged(uuid, UUIDIndex.NONE);
     }
 
     // ------------------------------------------------------------------------
@@ -199,11 +273,15 @@ public class ModModeGroup {
     /**
      * The second phase of the promotion/demotion process that handles file I/O and alerting the player of their
      * status change.
+     *
+     * The player's current state is captured immediately, but the state files are written and read on the I/O
+     * thread. The rest of the transition resumes on the main thread once the other side's state has been loaded.
      * @param player The player being promoted/demoted.
      * @param uuid The UUID player being promoted/demoted.
      * @param promotion True if the player is being promoted into the group, false if being demoted.
+     * @param trace The trace of this transition.
      */
-    private void continueStateChange(Player player, UUID uuid, boolean promotion) {
+    private void continueStateChange(Player player, UUID uuid, boolean promotion, Transition trace) {
         Configuration config = plugin.getCONFIG();
         if(promotion) {
             config.addMemberToGroup(this.getName(), uuid);
@@ -211,16 +289,94 @@ public class ModModeGroup {
             config.removeMemberFromGroup(this.getName(), uuid);
         }
 
-        // Swap player inventories and other information.
+        // Swap player inventories and other information. Items must not move in or out of the inventory until the
+        // other side's state has been applied.
+        plugin.setTransitioning(uuid, true);
+        player.closeInventory();
         config.savePlayerData(player, !promotion);
-        config.loadPlayerData(player, promotion);
+        trace.mark(Phase.SAVE);
+        Swap swap = new Swap(promotion, trace);
+        swapping.put(uuid, swap);
+        config.loadPlayerData(player, promotion).thenAccept(state -> {
+            // A player who quit in the meantime was dealt with by completeSwapOnQuit().
+            if(!swapping.remove(uuid, swap)) {
+                return;
+            }
+            trace.mark(Phase.SWAP);
+            plugin.setTransitioning(uuid, false);
+            if(state != null) {
+                state.apply(player, !promotion);
+                trace.mark(Phase.APPLY);
+            }
+            finishStateChange(player, uuid, promotion, trace);
+            trace.finish(Outcome.COMPLETED);
+        });
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Completes the state swap of a player quitting while the other side's state is being read, before the server
+     * saves the player, so that they log out holding the state of the side they are now on.
+     *
+     * The read is waited for on the main thread. If it fails, the membership change is undone instead: the player
+     * still holds the state of the side they started on, which is also what was last saved for that side. Either
+     * way, the player's track is left as that of an offline player on their side, so the quit handler need not
+     * demote them.
+     * @param player The player quitting.
+     * @return True if the player's state was being swapped into or out of this group.
+     */
+    public boolean completeSwapOnQuit(Player player) {
+        UUID uuid = player.getUniqueId();
+        Swap swap = swapping.remove(uuid);
+        if(swap == null) {
+            return false;
+        }
+        boolean promotion = swap.promotion();
+        Transition trace = swap.trace();
+        Configuration config = plugin.getCONFIG();
+        plugin.setTransitioning(uuid, false);
+        try {
+            PlayerState state = config.loadPlayerDataNow(player, promotion);
+            trace.mark(Phase.SWAP);
+            if(state != null) {
+                state.apply(player, !promotion);
+                trace.mark(Phase.APPLY);
+            }
+            if(promotion && suppressJoinMessages) permissions.demote(player, this);
+        } catch (IOException e) {
+            plugin.logError(e.getMessage() + " Undoing " + player.getName() + "'s state change to " + name + ".");
+            if(promotion) {
+                removeMember(uuid);
+                config.removeMemberFromGroup(name, uuid);
+                permissions.demote(player, this);
+            } else {
+                addMember(uuid);
+                config.addMemberToGroup(name, uuid);
+                if(!suppressJoinMessages) permissions.promote(player, this);
+            }
+        }
+        trace.finish(Outcome.PLAYER_LEFT);
+        return true;
+    }
 
-        sharedSetup(player, promotion);
+    // ------------------------------------------------------------------------
+
+    /**
+     * The end of the second phase, run on the main thread once the player's state has been swapped.
+     * @param player The player being promoted/demoted.
+     * @param uuid The UUID player being promoted/demoted.
+     * @param promotion True if the player is being promoted into the group, false if being demoted.
+     * @param trace The trace of this transition.
+     */
+    private void finishStateChange(Player player, UUID uuid, boolean promotion, Transition trace) {
+        sharedSetup(player, promotion, trace);
 
         if(promotion) {
             player.sendMessage(Component.text("You are now in " + name + "!"));
         } else {
             runCommands(player, deactivateAfter);
+            trace.mark(Phase.AFTER);
             player.sendMessage(Component.text("You are no longer in " + name + "!"));
             if(plugin.isSilentJoin(uuid)) {
                 plugin.getServer().broadcast(Component.text(player.getName() + " joined the game",
@@ -240,27 +396,46 @@ public class ModModeGroup {
      * @param promotion True if the player is being promoted into the group, false if being demoted.
      */
     public void sharedSetup(Player player, boolean promotion) {
+        sharedSetup(player, promotion, null);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * The third phase of promotion, timing each of its steps when part of a traced transition.
+     * @param player The player being promoted/demoted.
+     * @param promotion True if the player is being promoted into the group, false if being demoted.
+     * @param trace The trace of this transition, or null if not part of one.
+     */
+    private void sharedSetup(Player player, boolean promotion, Transition trace) {
 
         if(promotion) plugin.clearDamage(player);
         plugin.setVanish(player, promotion);
+        mark(trace, Phase.VANISH);
 
-        World world = player.getWorld();
-        Chunk chunk = world.getChunkAt(player.getLocation());
-        world.refreshChunk(chunk.getX(), chunk.getZ());
+        plugin.resendPlayer(player);
+        mark(trace, Phase.RESEND);
 
         plugin.restoreFlight(player, this, promotion);
         updateMemberName(TABAPI.getPlayer(player.getUniqueId()), promotion);
+        mark(trace, Phase.TAB);
 
         // Refresh vanished players so they can see each other.
-        plugin.updateAllPlayersSeeing();
+        plugin.updatePlayerSeeing(player);
+        mark(trace, Phase.VISIBILITY);
 
         if(promotion) {
             player.setGameMode(defaultGameMode);
+            mark(trace, Phase.GAME_MODE);
             runCommands(player, activateAfter);
             player.showBossBar(inModeBar);
             player.hideBossBar(plugin.getVanishedBar());
+            // Have the normal state ready in memory for when they leave the mode.
+            plugin.getCONFIG().prefetchPlayerData(player, false);
+            mark(trace, Phase.AFTER);
         } else {
             player.setGameMode(defaultGameModeOnDeactivate);
+            mark(trace, Phase.GAME_MODE);
             player.hideBossBar(inModeBar);
             player.hideBossBar(plugin.getModeUnvanishedBar());
         }
@@ -268,6 +443,19 @@ public class ModModeGroup {
 
     // ------------------------------------------------------------------------
 
+    /**
+     * Marks the end of a phase of a transition, if there is one.
+     * @param trace The trace of the transition, or null.
+     * @param phase The phase that just ended.
+     */
+    private static void mark(Transition trace, Phase phase) {
+        if(trace != null) {
+            trace.mark(phase);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
     /**
      * Updates the colour/prefix of the player depending on promotion/demotion status.
      * @param player The player having their name updated.
@@ -297,6 +485,7 @@ public class ModModeGroup {
         if(player == null) return false;
         boolean additionSuccess = this.membersBypassingItemBlock.add(playerUUID);
         if(additionSuccess) player.showBossBar(itemInteractionEnabledBar);
+        plugin.itemBypassChanged(playerUUID, true);
         return additionSuccess;
     }
 
@@ -310,8 +499,9 @@ public class ModModeGroup {
     public boolean removeBypassingItemBlock(UUID playerUUID) {
         Player player = Bukkit.getPlayer(playerUUID);
         if(player == null) return false;
-        boolean removalSuccess = this.membersBypassingItemBlock.remove(playerUUID);
+        boolean removalSuccess = this.membersBypassingItemBlock.remove(playerUUID) != UUIDIndex.NONE;
         if(removalSuccess) player.hideBossBar(itemInteractionEnabledBar);
+        plugin.itemBypassChanged(playerUUID, false);
         return removalSuccess;
     }
 
@@ -331,6 +521,16 @@ public class ModModeGroup {
 
     // ------------------------------------------------------------------------
 
+    /**
+     * Returns the index of this group in the plugin's table of groups.
+     * @return the index of this group in the plugin's table of groups.
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    // ------------------------------------------------------------------------
+
     /**
      * Returns the instance of the command object paired with this group.
      * @return the instance of the command object paired with this group.
@@ -382,10 +582,10 @@ public class ModModeGroup {
     // ------------------------------------------------------------------------
 
     /**
-     * Returns the list of members' UUIDs of this group.
-     * @return the list of members' UUIDs of this group.
+     * Returns the set of members' UUIDs of this group.
+     * @return the set of members' UUIDs of this group.
      */
-    public List<UUID> getMembers() {
+    public UUIDIndex getMembers() {
         return members;
     }
 
@@ -439,11 +639,11 @@ public class ModModeGroup {
         this.suppressJoinMessages = suppressJoinMessages;
         this.interactWithItems = interactWithItems;
         if(interactWithItems && membersBypassingItemBlock == null) {
-            membersBypassingItemBlock = new HashSet<>();
+            membersBypassingItemBlock = new UUIDIndex();
             itemInteractionEnabledBar = BossBar.bossBar(Component.text("⚠ You have item interaction enabled! ⚠",
                     NamedTextColor.RED), 1, BossBar.Color.RED, BossBar.Overlay.PROGRESS);
         } else if (!interactWithItems && membersBypassingItemBlock != null) {
-            for(UUID memberUUID : membersBypassingItemBlock) {
+            for(UUID memberUUID : membersBypassingItemBlock.toSet()) {
                 removeBypassingItemBlock(memberUUID);
             }
             membersBypassingItemBlock = null;
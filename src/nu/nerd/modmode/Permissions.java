@@ -2,6 +2,10 @@ package nu.nerd.modmode;
 
 import net.luckperms.api.context.ImmutableContextSet;
 import net.luckperms.api.context.MutableContextSet;
+import net.luckperms.api.event.EventBus;
+import net.luckperms.api.event.sync.PostSyncEvent;
+import net.luckperms.api.event.track.TrackCreateEvent;
+import net.luckperms.api.event.track.TrackDeleteEvent;
 import net.luckperms.api.model.user.User;
 import net.luckperms.api.util.Result;
 import org.bukkit.Bukkit;
@@ -11,12 +15,36 @@ import org.bukkit.plugin.RegisteredServiceProvider;
 import net.luckperms.api.LuckPerms;
 import net.luckperms.api.track.Track;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 // ----------------------------------------------------------------------------
 /**
  * A wrapper around the LuckPerms API to provide only the abstractions we need.
  */
 public class Permissions {
 
+    /**
+     * How players are given the permissions of the group they are in.
+     */
+    public enum Mode {
+        /**
+         * Promote and demote them along the group's LuckPerms track, saving the change to LuckPerms' storage.
+         */
+        TRACK,
+
+        /**
+         * Provide the LuckPerms context modmode-group=[group] while they are in it, without writing anything.
+         */
+        CONTEXT
+    }
+
     /**
      * Constructor.
      */
@@ -25,6 +53,11 @@ public class Permissions {
         RegisteredServiceProvider<LuckPerms> svcProvider = Bukkit.getServer().getServicesManager().getRegistration(LuckPerms.class);
         if (svcProvider != null) {
             _luckpermsAPI = svcProvider.getProvider();
+            // Tracks may have been created, deleted or changed by another server.
+            EventBus eventBus = _luckpermsAPI.getEventBus();
+            eventBus.subscribe(plugin, PostSyncEvent.class, event -> scheduleRefreshTracks());
+            eventBus.subscribe(plugin, TrackCreateEvent.class, event -> scheduleRefreshTracks());
+            eventBus.subscribe(plugin, TrackDeleteEvent.class, event -> scheduleRefreshTracks());
         } else {
             _luckpermsAPI = null;
             plugin.logError("LuckPerms could not be found. Is it disabled or missing?");
@@ -34,78 +67,285 @@ public class Permissions {
 
     // ------------------------------------------------------------------------
     /**
-     * Gets the Track with the given name, or null if it does not exist.
+     * Sets how players are given the permissions of their group. The context calculator is registered with
+     * LuckPerms only while the mode is {@link Mode#CONTEXT}.
+     *
+     * Must be called on the main thread, after the groups have been loaded.
+     *
+     * @param mode the mode.
+     */
+    void setMode(Mode mode) {
+        this.mode = mode;
+        contextCalculator.setPotentialGroups(plugin.getGroups().values());
+        if (mode == Mode.CONTEXT && !calculatorRegistered) {
+            _luckpermsAPI.getContextManager().registerCalculator(contextCalculator);
+            calculatorRegistered = true;
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                updateContext(player, plugin.getGroupPlayerMemberOf(player.getUniqueId()));
+            }
+        } else if (mode == Mode.TRACK && calculatorRegistered) {
+            _luckpermsAPI.getContextManager().unregisterCalculator(contextCalculator);
+            calculatorRegistered = false;
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                if (contextCalculator.setGroup(player.getUniqueId(), null)) {
+                    _luckpermsAPI.getContextManager().signalContextUpdate(player);
+                }
+            }
+            contextCalculator.clear();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns how players are given the permissions of their group.
+     *
+     * @return the mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sets the group a player is in for the modmode-group context, and has LuckPerms recalculate their
+     * permissions if it changed. Does nothing in {@link Mode#TRACK}.
+     *
+     * @param player the player.
+     * @param group the group, or null if they are in none.
+     */
+    void updateContext(Player player, ModModeGroup group) {
+        if (mode == Mode.CONTEXT && contextCalculator.setGroup(player.getUniqueId(), group)
+                && player.isOnline()) {
+            _luckpermsAPI.getContextManager().signalContextUpdate(player);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Forgets the group of a player who has left, for the modmode-group context.
+     *
+     * @param uuid the UUID of the player.
+     */
+    void forgetContext(UUID uuid) {
+        contextCalculator.setGroup(uuid, null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Unregisters the context calculator, if registered, when the plugin is disabled.
+     */
+    void shutdown() {
+        if (calculatorRegistered) {
+            _luckpermsAPI.getContextManager().unregisterCalculator(contextCalculator);
+            calculatorRegistered = false;
+        }
+        contextCalculator.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Resolves the track of every group into the table used by promotions and demotions. Tracks that LuckPerms
+     * has not loaded yet are loaded off the main thread; the table is replaced once they all have been, unless a
+     * later refresh has started in the meantime.
+     *
+     * Must be called on the main thread. In {@link Mode#CONTEXT}, tracks are not used and the table is emptied.
+     */
+    void refreshTracks() {
+        int refresh = tracksRefresh.incrementAndGet();
+        if (mode == Mode.CONTEXT) {
+            tracks = new Track[0];
+            return;
+        }
+        int groupCount = plugin.getGroupCount();
+        List<ModModeGroup> groups = new ArrayList<>(groupCount);
+        List<CompletableFuture<Track>> loads = new ArrayList<>(groupCount);
+        for (int ordinal = 0; ordinal < groupCount; ++ordinal) {
+            ModModeGroup group = plugin.getGroupByOrdinal(ordinal);
+            groups.add(group);
+            loads.add(loadTrack(group.getTrackName()));
+        }
+        CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, ignoredEx) -> {
+            Track[] resolved = new Track[groupCount];
+            for (int ordinal = 0; ordinal < groupCount; ++ordinal) {
+                resolved[ordinal] = loads.get(ordinal).exceptionally(ex -> null).join();
+                if (resolved[ordinal] == null) {
+                    plugin.logError("Track \"" + groups.get(ordinal).getTrackName() + "\" of group "
+                            + groups.get(ordinal).getName() + " could not be loaded!");
+                }
+            }
+            if (tracksRefresh.get() == refresh) {
+                tracks = resolved;
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Refreshes the tracks on the main thread, from a LuckPerms event handler.
+     */
+    private void scheduleRefreshTracks() {
+        if (plugin.isEnabled()) {
+            Bukkit.getScheduler().runTask(plugin, this::refreshTracks);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Gets the track of a group from the table, or from those LuckPerms has in memory if the table does not have
+     * it yet. Never touches LuckPerms' storage.
+     *
+     * @param group the group.
+     * @return the group's track, or null if it is not loaded.
+     */
+    Track getTrack(ModModeGroup group) {
+        Track[] table = tracks;
+        int ordinal = group.getOrdinal();
+        Track track = (ordinal < table.length) ? table[ordinal] : null;
+        if (track == null || !track.getName().equals(group.getTrackName())) {
+            track = _luckpermsAPI.getTrackManager().getTrack(group.getTrackName());
+        }
+        return track;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Gets the Track with the given name, loading it from LuckPerms' storage off the main thread if necessary.
      *
      * @param name the name of the Track.
-     * @return the Track, or null if it does not exist.
+     * @return a future completed with the Track, or null if it does not exist.
      */
-    Track getTrack(String name) {
+    private CompletableFuture<Track> loadTrack(String name) {
         if (_luckpermsAPI.getTrackManager().isLoaded(name)) {
-            return _luckpermsAPI.getTrackManager().getTrack(name);
+            return CompletableFuture.completedFuture(_luckpermsAPI.getTrackManager().getTrack(name));
         } else {
-            return _luckpermsAPI.getTrackManager().loadTrack(name).join().orElse(null);
+            return _luckpermsAPI.getTrackManager().loadTrack(name).thenApply(track -> track.orElse(null));
         }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Returns the instance of the specified group's track from the LuckPerms API.
+     * Gets the LuckPerms user of a player, loading it off the main thread if the player has already left and
+     * LuckPerms has unloaded them.
      *
-     * @return the instance of the specified group's track from the LuckPerms API.
+     * @param uuid the UUID of the player.
+     * @return a future completed with the user.
      */
-    private Track getAppropriateTrack(ModModeGroup group) {
-        String trackName = group.getTrackName();
-        Track track = getTrack(trackName);
-        if (track == null) {
-            plugin.logError("Track \"" + trackName + "\" could not be loaded!");
-        }
-        return track;
+    private CompletableFuture<User> getUser(UUID uuid) {
+        User user = _luckpermsAPI.getUserManager().getUser(uuid);
+        return (user != null) ? CompletableFuture.completedFuture(user)
+                              : _luckpermsAPI.getUserManager().loadUser(uuid);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Promotes the player along the track corresponding to their group.
+     * Promotes the player along the track corresponding to their group, or in {@link Mode#CONTEXT}, gives them
+     * the group's context.
      *
      * @param player the player to promote.
+     * @param group the group whose track the player is promoted along.
+     * @return a future completed on the main thread with true once the promotion has been saved, or with false if
+     *         it failed or timed out.
      */
-    public boolean promote(Player player, ModModeGroup group) {
-        System.out.println("Promoting player " + player.getName() + " in group " + group.getName());
-        Track track = getAppropriateTrack(group);
-        User luckpermsPlayer = _luckpermsAPI.getUserManager().getUser(player.getUniqueId());
-        if(track != null && luckpermsPlayer != null) {
-            System.out.println("Got track and user");
-            Result result = track.promote(luckpermsPlayer, ImmutableContextSet.empty());
-            if(result.wasSuccessful()) {
-                System.out.println("Promotion successful");
-                _luckpermsAPI.getUserManager().saveUser(luckpermsPlayer);
-                return true;
-            }
-        }
-        System.out.println("Failed to promote player " + player.getName() + " in group " + group.getName());
-        return false;
+    public CompletableFuture<Boolean> promote(Player player, ModModeGroup group) {
+        return changeTrack(player, group, true);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Demotes the player along the track corresponding to their group.
+     * Demotes the player along the track corresponding to their group, or in {@link Mode#CONTEXT}, takes away
+     * the group's context.
      *
      * @param player the player to demote.
+     * @param group the group whose track the player is demoted along.
+     * @return a future completed on the main thread with true once the demotion has been saved, or with false if
+     *         it failed or timed out.
      */
-    public boolean demote(Player player, ModModeGroup group) {
-        System.out.println("Demoting player " + player.getName() + " in group " + group.getName());
-        Track track = getAppropriateTrack(group);
-        User luckpermsPlayer = _luckpermsAPI.getUserManager().getUser(player.getUniqueId());
-        if(track != null && luckpermsPlayer != null) {
-            System.out.println("Got track and user");
-            Result result = track.demote(luckpermsPlayer, ImmutableContextSet.empty());
-            if(result.wasSuccessful()) {
-                System.out.println("Demotion successful");
-                _luckpermsAPI.getUserManager().saveUser(luckpermsPlayer);
-                return true;
-            }
+    public CompletableFuture<Boolean> demote(Player player, ModModeGroup group) {
+        return changeTrack(player, group, false);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Promotes or demotes the player along the track corresponding to their group.
+     *
+     * The track comes from the table of resolved tracks. The user is loaded if necessary, and saved, by LuckPerms
+     * off the main thread. Failures are logged, and the change is given up on after permissions.timeout seconds.
+     * LuckPerms cannot be told to stop, so a change given up on that still completes later is undone, since the
+     * state change has already been treated as failed by then.
+     * In {@link Mode#CONTEXT}, only the player's context changes and the future is already complete.
+     */
+    private CompletableFuture<Boolean> changeTrack(Player player, ModModeGroup group, boolean promotion) {
+        if (mode == Mode.CONTEXT) {
+            updateContext(player, (promotion && player.isOnline()) ? group : null);
+            return CompletableFuture.completedFuture(true);
+        }
+        String description = (promotion ? "promote " : "demote ") + player.getName() + " along track \""
+                + group.getTrackName() + "\"";
+        Track track = getTrack(group);
+        if (track == null) {
+            plugin.logError("Failed to " + description + ": the track is not loaded.");
+            return CompletableFuture.completedFuture(false);
         }
-        System.out.println("Failed to demote player " + player.getName() + " in group " + group.getName());
-        return false;
+        UUID uuid = player.getUniqueId();
+        CompletableFuture<Boolean> change = applyTrackChange(uuid, track, promotion);
+        CompletableFuture<Boolean> changed = change.copy()
+                .orTimeout(plugin.getConfig().getLong("permissions.timeout", 10), TimeUnit.SECONDS);
+        changed.exceptionally(ex -> {
+            if (ex instanceof TimeoutException) {
+                change.thenAccept(late -> {
+                    plugin.logError("The timed out attempt to " + description + " completed late; undoing it.");
+                    applyTrackChange(uuid, track, !promotion).exceptionally(undoEx -> {
+                        Throwable cause = (undoEx instanceof CompletionException && undoEx.getCause() != null)
+                                ? undoEx.getCause() : undoEx;
+                        plugin.logError("Failed to undo the late attempt to " + description + ": "
+                                + cause.getMessage());
+                        return false;
+                    });
+                });
+            }
+            return false;
+        });
+        return onMainThread(changed, description);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Promote or demote a user along a track and save them, all by LuckPerms off the main thread.
+     *
+     * @return a future completed with true once the change has been saved, or exceptionally if it failed.
+     */
+    private CompletableFuture<Boolean> applyTrackChange(UUID uuid, Track track, boolean promotion) {
+        return getUser(uuid)
+                .thenApply(user -> {
+                    Result result = promotion ? track.promote(user, ImmutableContextSet.empty())
+                                              : track.demote(user, ImmutableContextSet.empty());
+                    if (!result.wasSuccessful()) {
+                        throw new IllegalStateException("LuckPerms refused the change");
+                    }
+                    return user;
+                })
+                .thenCompose(user -> _luckpermsAPI.getUserManager().saveUser(user))
+                .thenApply(ignored -> true);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a future that completes on the main thread with the result of a track change completed by LuckPerms.
+     * Failures are logged and produce false. If the plugin is disabled in the meantime, it never completes.
+     */
+    private CompletableFuture<Boolean> onMainThread(CompletableFuture<Boolean> future, String description) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        future.whenComplete((value, ex) -> {
+            if (ex != null) {
+                Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+                plugin.logError("Failed to " + description + ": " + ((cause instanceof TimeoutException)
+                        ? "timed out" : cause.getMessage()));
+            }
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, () -> result.complete(ex == null && value));
+            }
+        });
+        return result;
     }
 
     // ------------------------------------------------------------------------
@@ -140,4 +380,29 @@ public class Permissions {
      */
     private LuckPerms _luckpermsAPI;
 
+    /**
+     * How players are given the permissions of their group.
+     */
+    private Mode mode = Mode.TRACK;
+
+    /**
+     * Provides the modmode-group context in {@link Mode#CONTEXT}.
+     */
+    private final GroupContextCalculator contextCalculator = new GroupContextCalculator();
+
+    /**
+     * True if the context calculator is registered with LuckPerms.
+     */
+    private boolean calculatorRegistered;
+
+    /**
+     * The tracks of the groups, indexed by group ordinal. Replaced as a whole by {@link #refreshTracks()}.
+     */
+    private volatile Track[] tracks = new Track[0];
+
+    /**
+     * Counts calls to {@link #refreshTracks()}, so that an earlier refresh finishing late is discarded.
+     */
+    private final AtomicInteger tracksRefresh = new AtomicInteger();
+
 }
\ No newline at end of file
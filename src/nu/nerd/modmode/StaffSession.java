@@ -0,0 +1,204 @@
+package nu.nerd.modmode;
+
+// ------------------------------------------------------------------------
+/**
+ * The state of an online staff player that event handlers need, cached so
+ * that they can answer with one lookup and a bit test.
+ *
+ * Everything is packed into a single long:
+ * <pre>
+ * bits 0-3   flags: vanished, item interaction enabled, joined silently,
+ *            state change in progress
+ * bits 8-15  the ordinal of the player's group plus one, or 0 if none
+ * bits 16-63 the time the player entered their group, in milliseconds
+ *            since the epoch
+ * </pre>
+ * Sessions are only updated where the state they cache changes: on vanish,
+ * promotion, demotion, the iteminteract subcommand, joining and leaving,
+ * and when VanishNoPacket reports a change of vanish state. This class
+ * is not thread-safe. All calls are expected to be made from the main
+ * thread.
+ */
+public final class StaffSession {
+
+    private static final long VANISHED = 1L;
+    private static final long ITEM_BYPASS = 1L << 1;
+    private static final long SILENT_JOIN = 1L << 2;
+    private static final long TRANSITIONING = 1L << 3;
+
+    private static final int GROUP_SHIFT = 8;
+    private static final long GROUP_MASK = 0xFFL << GROUP_SHIFT;
+
+    private static final int ENTERED_SHIFT = 16;
+
+    /**
+     * The largest group ordinal that can be held.
+     */
+    public static final int MAX_GROUP_ORDINAL = 0xFE;
+
+    private long bits;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ordinal of the player's group.
+     *
+     * @return the ordinal, or {@link UUIDIndex#NONE} if the player is not in
+     *         a group.
+     */
+    public int getGroupOrdinal() {
+        return (int) ((bits & GROUP_MASK) >>> GROUP_SHIFT) - 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the player is in a group.
+     *
+     * @return true if the player is in a group.
+     */
+    public boolean isInMode() {
+        return (bits & GROUP_MASK) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the player is vanished.
+     *
+     * @return true if the player is vanished.
+     */
+    public boolean isVanished() {
+        return (bits & VANISHED) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the player is in a group or vanished, and so should be
+     * left alone by mobs and damage.
+     *
+     * @return true if the player is in a group or vanished.
+     */
+    public boolean isInModeOrVanished() {
+        return (bits & (GROUP_MASK | VANISHED)) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the player is in a group, vanished or having their state
+     * swapped, and so needs the protection event handlers.
+     *
+     * @return true if the player needs the protection event handlers.
+     */
+    public boolean needsProtection() {
+        return (bits & (GROUP_MASK | VANISHED | TRANSITIONING)) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the player has item interaction enabled.
+     *
+     * @return true if the player has item interaction enabled.
+     */
+    public boolean isBypassingItemBlock() {
+        return (bits & ITEM_BYPASS) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the player joined the server silently.
+     *
+     * @return true if the player joined the server silently.
+     */
+    public boolean isSilentJoin() {
+        return (bits & SILENT_JOIN) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the player's state is being swapped.
+     *
+     * @return true if the player's state is being swapped.
+     */
+    public boolean isTransitioning() {
+        return (bits & TRANSITIONING) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time the player entered their group.
+     *
+     * @return the time in milliseconds since the epoch, or 0 if the player
+     *         is not in a group.
+     */
+    public long getEnteredTime() {
+        return bits >>> ENTERED_SHIFT;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the player's group, and the time they entered it if it is a
+     * different group.
+     *
+     * @param ordinal the group's ordinal, or {@link UUIDIndex#NONE}.
+     * @param now     the current time in milliseconds since the epoch.
+     */
+    void setGroup(int ordinal, long now) {
+        if (ordinal > MAX_GROUP_ORDINAL) {
+            throw new IllegalArgumentException("group ordinal " + ordinal + " is too large");
+        }
+        if (ordinal == getGroupOrdinal()) {
+            return;
+        }
+        long entered = (ordinal == UUIDIndex.NONE) ? 0 : now;
+        bits = (bits & ~GROUP_MASK & ((1L << ENTERED_SHIFT) - 1))
+                | ((long) (ordinal + 1) << GROUP_SHIFT)
+                | (entered << ENTERED_SHIFT);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record whether the player is vanished.
+     *
+     * @param vanished true if the player is vanished.
+     */
+    void setVanished(boolean vanished) {
+        setFlag(VANISHED, vanished);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record whether the player has item interaction enabled.
+     *
+     * @param bypassing true if the player has item interaction enabled.
+     */
+    void setBypassingItemBlock(boolean bypassing) {
+        setFlag(ITEM_BYPASS, bypassing);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record whether the player joined the server silently.
+     *
+     * @param silentJoin true if the player joined silently.
+     */
+    void setSilentJoin(boolean silentJoin) {
+        setFlag(SILENT_JOIN, silentJoin);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record whether the player's state is being swapped.
+     *
+     * @param transitioning true if the player's state is being swapped.
+     */
+    void setTransitioning(boolean transitioning) {
+        setFlag(TRANSITIONING, transitioning);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set or clear a flag.
+     */
+    private void setFlag(long flag, boolean set) {
+        bits = set ? (bits | flag) : (bits & ~flag);
+    }
+
+} // StaffSession
@@ -0,0 +1,99 @@
+package nu.nerd.modmode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+// ------------------------------------------------------------------------
+/**
+ * The {@link StaffSession}s of online staff players, by UUID.
+ *
+ * A {@link UUIDIndex} maps each UUID to a slot in a list of sessions, and
+ * freed slots are reused, so looking up a session does not allocate. This
+ * class is not thread-safe. All calls are expected to be made from the main
+ * thread.
+ */
+final class StaffSessions {
+
+    private final UUIDIndex slots = new UUIDIndex();
+    private final List<StaffSession> sessions = new ArrayList<>();
+    private int[] freeSlots = new int[8];
+    private int freeCount;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the session of a player.
+     *
+     * @param uuid the player's UUID.
+     * @return the session, or null if the player has none.
+     */
+    StaffSession get(UUID uuid) {
+        int slot = slots.get(uuid);
+        return (slot == UUIDIndex.NONE) ? null : sessions.get(slot);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an empty session for a player who has none.
+     *
+     * @param uuid the player's UUID.
+     * @return the new session.
+     */
+    StaffSession add(UUID uuid) {
+        StaffSession session = new StaffSession();
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+            sessions.set(slot, session);
+        } else {
+            slot = sessions.size();
+            sessions.add(session);
+        }
+        slots.put(uuid, slot);
+        return session;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a player's session, if any.
+     *
+     * @param uuid the player's UUID.
+     */
+    void remove(UUID uuid) {
+        int slot = slots.remove(uuid);
+        if (slot != UUIDIndex.NONE) {
+            sessions.set(slot, null);
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if any player needs the protection event handlers.
+     *
+     * @return true if any session needs protection.
+     */
+    boolean anyNeedProtection() {
+        for (StaffSession session : sessions) {
+            if (session != null && session.needsProtection()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove every session.
+     */
+    void clear() {
+        slots.clear();
+        sessions.clear();
+        freeCount = 0;
+    }
+
+} // StaffSessions
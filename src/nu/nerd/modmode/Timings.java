@@ -0,0 +1,169 @@
+package nu.nerd.modmode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// ------------------------------------------------------------------------
+/**
+ * Counts and latency histograms of the plugin's event handlers, state change
+ * phases and I/O calls, for /[group] stats.
+ *
+ * Each instrumented site brackets its work like this:
+ * <pre>
+ * long start = site.start();
+ * try {
+ *     ...
+ * } finally {
+ *     site.stop(start);
+ * }
+ * </pre>
+ * While timings are disabled, start() returns 0 without reading the clock
+ * and stop(0) does nothing, so the cost is a volatile read.
+ *
+ * Sites are created on the main thread, normally when the objects that own
+ * them are constructed; they can be recorded from any thread.
+ */
+public final class Timings {
+
+    private final Map<String, Site> sites = new LinkedHashMap<>();
+    private volatile boolean enabled;
+    private long windowStart = System.currentTimeMillis();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the site with a given name, creating it if necessary.
+     *
+     * @param name the name of the site, e.g. "ModModeListener.onPlayerJoin".
+     * @return the site.
+     */
+    public Site site(String name) {
+        return sites.computeIfAbsent(name, Site::new);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return every site, in the order they were created.
+     *
+     * @return the sites.
+     */
+    public List<Site> getSites() {
+        return new ArrayList<>(sites.values());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Enable or disable timing.
+     *
+     * @param enabled true to record timings.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if timings are being recorded.
+     *
+     * @return true if timings are being recorded.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Forget everything recorded and start a new window.
+     */
+    public void reset() {
+        for (Site site : sites.values()) {
+            site.histogram.reset();
+        }
+        windowStart = System.currentTimeMillis();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time the current window started.
+     *
+     * @return the time in milliseconds since the epoch.
+     */
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A place in the code whose invocations are counted and timed.
+     */
+    public final class Site {
+
+        private final String name;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         */
+        private Site(String name) {
+            this.name = name;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the start time of an invocation.
+         *
+         * @return the value of System.nanoTime(), or 0 if timings are
+         *         disabled.
+         */
+        public long start() {
+            return enabled ? System.nanoTime() : 0;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Record the end of an invocation.
+         *
+         * @param start the value returned by {@link #start()}.
+         */
+        public void stop(long start) {
+            if (start != 0) {
+                histogram.record(System.nanoTime() - start);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Record an invocation timed elsewhere, if timings are enabled.
+         *
+         * @param nanos the duration of the invocation.
+         */
+        public void record(long nanos) {
+            if (enabled) {
+                histogram.record(nanos);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the name of this site.
+         *
+         * @return the name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the recorded durations of this site.
+         *
+         * @return the histogram.
+         */
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+
+} // Timings
@@ -0,0 +1,302 @@
+package nu.nerd.modmode;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// ------------------------------------------------------------------------
+/**
+ * Spreads transitions that happen to many players at once across ticks:
+ * re-applying the mode of members as TAB loads them after a restart or
+ * reload, and the bulk admin commands /[group] forceoff and reapply.
+ *
+ * Transitions are queued, one per player, and each tick runs queued
+ * transitions until the tick's time budget (transitions.tickBudgetMillis) is
+ * used up, running at least one. A player queued again keeps their place,
+ * and a demotion replaces a queued re-apply but not the other way around.
+ * Whether the player is online, in a group and not already transitioning is
+ * checked when their turn comes, not when they are queued.
+ *
+ * Demotions only start within the budget; their LuckPerms and state swap
+ * parts complete later, as with any other demotion.
+ *
+ * Transitions queued by a command form a batch, whose progress is reported
+ * to the sender every second and when it is done.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * main thread.
+ */
+public final class TransitionScheduler {
+
+    /**
+     * The kinds of transition queued, in increasing order of precedence.
+     */
+    public enum Kind {
+        /**
+         * Re-apply the player's mode with ModModeGroup#sharedSetup().
+         */
+        REAPPLY,
+
+        /**
+         * Take the player out of their group.
+         */
+        DEMOTE
+    }
+
+    /**
+     * A queued transition.
+     *
+     * @param uuid  the UUID of the player.
+     * @param kind  what to do.
+     * @param batch the batch it belongs to, or null.
+     */
+    private record Task(UUID uuid, Kind kind, Batch batch) {
+    }
+
+    /**
+     * The number of ticks between progress reports.
+     */
+    private static final int REPORT_TICKS = 20;
+
+    private final ModMode plugin;
+    private final Timings.Site tickTiming;
+    private final LinkedHashMap<UUID, Task> queue = new LinkedHashMap<>();
+    private final List<Batch> batches = new ArrayList<>();
+    private long budgetNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private BukkitTask task;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the plugin.
+     */
+    TransitionScheduler(ModMode plugin) {
+        this.plugin = plugin;
+        this.tickTiming = plugin.getTimings().site("TransitionScheduler.tick");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the time per tick that queued transitions may take.
+     *
+     * @param millis the budget in milliseconds.
+     */
+    public void setTickBudgetMillis(long millis) {
+        budgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a transition of one player, outside of any batch.
+     *
+     * @param uuid the UUID of the player.
+     * @param kind what to do.
+     */
+    public void enqueue(UUID uuid, Kind kind) {
+        enqueue(new Task(uuid, kind, null));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a transition of each of several players as a batch whose progress
+     * is reported to the sender.
+     *
+     * @param sender      the sender to report to.
+     * @param description a description of the batch, e.g. "forceoff all".
+     * @param kind        what to do.
+     * @param players     the UUIDs of the players.
+     * @return the batch.
+     */
+    public Batch submit(CommandSender sender, String description, Kind kind, Collection<UUID> players) {
+        Batch batch = new Batch(sender, description, players.size());
+        if (batch.total > 0) {
+            batches.add(batch);
+        }
+        for (UUID uuid : players) {
+            enqueue(new Task(uuid, kind, batch));
+        }
+        return batch;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of queued transitions.
+     *
+     * @return the length of the queue.
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a transition to the queue, merging it with one already queued for
+     * the same player, and start running the queue if it is not running.
+     */
+    private void enqueue(Task added) {
+        Task queued = queue.get(added.uuid());
+        if (queued != null) {
+            // Whichever does not take precedence is dropped.
+            if (queued.kind().ordinal() > added.kind().ordinal()) {
+                finished(added, false);
+                return;
+            }
+            finished(queued, false);
+        }
+        queue.put(added.uuid(), added);
+        if (task == null && plugin.isEnabled()) {
+            task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run queued transitions until the budget for this tick is used up, and
+     * report the progress of batches. A transition that throws is logged and
+     * counted as skipped, so that its batch still completes.
+     */
+    private void tick() {
+        long start = System.nanoTime();
+        long timingStart = tickTiming.start();
+        long deadline = start + budgetNanos;
+        Iterator<Task> tasks = queue.values().iterator();
+        int ran = 0;
+        while (tasks.hasNext() && (ran == 0 || System.nanoTime() < deadline)) {
+            Task next = tasks.next();
+            tasks.remove();
+            ++ran;
+            boolean done;
+            try {
+                done = run(next);
+            } catch (RuntimeException ex) {
+                plugin.logError("Failed to " + next.kind().name().toLowerCase() + " " + next.uuid() + ": " + ex);
+                done = false;
+            }
+            finished(next, done);
+        }
+        tickTiming.stop(timingStart);
+
+        for (Iterator<Batch> it = batches.iterator(); it.hasNext(); ) {
+            Batch batch = it.next();
+            ++batch.ticks;
+            if (batch.isDone()) {
+                batch.report();
+                it.remove();
+            } else if (batch.ticks % REPORT_TICKS == 0) {
+                batch.report();
+            }
+        }
+        if (queue.isEmpty()) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run a transition, if the player is online, in a group and not already
+     * transitioning.
+     *
+     * @return true if the transition was run.
+     */
+    private boolean run(Task task) {
+        Player player = Bukkit.getPlayer(task.uuid());
+        ModModeGroup group = plugin.getGroupPlayerMemberOf(task.uuid());
+        if (player == null || group == null || plugin.isTransitioning(task.uuid())) {
+            return false;
+        }
+        switch (task.kind()) {
+            case REAPPLY -> group.sharedSetup(player, true);
+            case DEMOTE -> group.demote(player, task.uuid());
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count a transition in its batch, if it has one.
+     */
+    private void finished(Task task, boolean ran) {
+        if (task.batch() != null) {
+            if (ran) {
+                ++task.batch().done;
+            } else {
+                ++task.batch().skipped;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The transitions queued by one command.
+     */
+    public static final class Batch {
+
+        private final CommandSender sender;
+        private final String description;
+        private final int total;
+        private int done;
+        private int skipped;
+        private int ticks;
+
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         */
+        private Batch(CommandSender sender, String description, int total) {
+            this.sender = sender;
+            this.description = description;
+            this.total = total;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the number of transitions in this batch.
+         *
+         * @return the number of players queued.
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return true if every transition in this batch has been run or
+         * skipped.
+         *
+         * @return true if the batch is done.
+         */
+        public boolean isDone() {
+            return done + skipped >= total;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Tell the sender how far this batch has got.
+         */
+        private void report() {
+            String skippedText = (skipped == 0) ? "" : ", " + skipped + " skipped (offline, not in a group, "
+                    + "already transitioning or superseded)";
+            if (isDone()) {
+                sender.sendMessage(Component.text(description + ": done, " + done + " of " + total + " players in "
+                        + ticks + " ticks" + skippedText + ".", NamedTextColor.GREEN));
+            } else {
+                sender.sendMessage(Component.text(description + ": " + (done + skipped) + " of " + total
+                        + " players" + skippedText + "...", NamedTextColor.GRAY));
+            }
+        }
+    }
+
+} // TransitionScheduler
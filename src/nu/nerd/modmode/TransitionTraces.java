@@ -0,0 +1,365 @@
+package nu.nerd.modmode;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// ------------------------------------------------------------------------
+/**
+ * The phase timings of the most recent promotions and demotions, for
+ * /[group] traces.
+ *
+ * Each transition is traced by a {@link Transition}, which attributes the
+ * time since its previous mark to the phase being marked:
+ * <pre>
+ * TransitionTraces.Transition trace = traces.begin(player.getName(), group, true);
+ * runCommands(player, activateBefore);
+ * trace.mark(Phase.BEFORE);
+ * ...
+ * trace.finish(Outcome.COMPLETED);
+ * </pre>
+ * Finished transitions are kept in a ring buffer of a configurable size, so
+ * memory use is bounded however many transitions there are. Transitions are
+ * traced whether or not timings are enabled, since they are rare and only
+ * read the clock once per phase; each phase is also recorded in a site of
+ * {@link Timings} named after the direction and phase, e.g.
+ * "ModModeGroup.promote.swap".
+ *
+ * Transitions are begun, marked and finished on the main thread.
+ */
+public final class TransitionTraces {
+
+    /**
+     * The phases of a transition, in the order they run.
+     */
+    public enum Phase {
+        /**
+         * Running the group's before commands.
+         */
+        BEFORE("before"),
+
+        /**
+         * Moving the player along the LuckPerms track and saving the user.
+         */
+        PERMISSIONS("permissions"),
+
+        /**
+         * Recording the membership change and capturing the player's current state.
+         */
+        SAVE("save"),
+
+        /**
+         * Waiting for the other side's state to be written and loaded on the I/O thread.
+         */
+        SWAP("swap"),
+
+        /**
+         * Applying the loaded state to the player.
+         */
+        APPLY("apply"),
+
+        /**
+         * Clearing damage and setting the player's vanish state.
+         */
+        VANISH("vanish"),
+
+        /**
+         * Re-sending the player to those nearby, or the chunk they are in.
+         */
+        RESEND("resend"),
+
+        /**
+         * Restoring flight and updating the TAB name tag and tab list prefix.
+         */
+        TAB("tab"),
+
+        /**
+         * Updating which players can see which.
+         */
+        VISIBILITY("visibility"),
+
+        /**
+         * Changing the player's game mode.
+         */
+        GAME_MODE("gamemode"),
+
+        /**
+         * Running the group's after commands and updating boss bars.
+         */
+        AFTER("after");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Return the short name of this phase.
+         *
+         * @return the short name, e.g. "swap".
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * How a transition ended.
+     */
+    public enum Outcome {
+        /**
+         * The player is now in the group, or no longer in it.
+         */
+        COMPLETED,
+
+        /**
+         * LuckPerms refused to move the player along the track.
+         */
+        PERMISSIONS_FAILED,
+
+        /**
+         * The player left before their state was swapped.
+         */
+        PLAYER_LEFT
+    }
+
+    /**
+     * A finished transition.
+     *
+     * @param player     the name of the player.
+     * @param group      the name of the group.
+     * @param promotion  true if the player was promoted, false if demoted.
+     * @param outcome    how the transition ended.
+     * @param time       the time the transition began, in milliseconds since the epoch.
+     * @param totalNanos the time from beginning to end.
+     * @param phaseNanos the time spent in each phase, indexed by {@link Phase#ordinal()}.
+     */
+    public record Trace(String player, String group, boolean promotion, Outcome outcome, long time,
+                        long totalNanos, long[] phaseNanos) {
+        /**
+         * Return the time spent in a phase.
+         *
+         * @param phase the phase.
+         * @return the time in nanoseconds, or 0 if the phase did not run.
+         */
+        public long getNanos(Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+    }
+
+    /**
+     * The time spent in one phase by the traces in the buffer.
+     *
+     * @param phase the phase.
+     * @param count the number of traces that reached the phase.
+     * @param mean  the mean time spent in the phase, in nanoseconds.
+     * @param max   the longest time spent in the phase, in nanoseconds.
+     */
+    public record PhaseSummary(Phase phase, int count, long mean, long max) {
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final Timings.Site[] promoteSites = new Timings.Site[PHASES.length];
+    private final Timings.Site[] demoteSites = new Timings.Site[PHASES.length];
+
+    private Trace[] ring;
+    private int next;
+    private int size;
+    private long total;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param timings  the timings in which to record each phase.
+     * @param capacity the number of traces to keep.
+     */
+    public TransitionTraces(Timings timings, int capacity) {
+        for (Phase phase : PHASES) {
+            promoteSites[phase.ordinal()] = timings.site("ModModeGroup.promote." + phase.getKey());
+            demoteSites[phase.ordinal()] = timings.site("ModModeGroup.demote." + phase.getKey());
+        }
+        ring = new Trace[Math.max(1, capacity)];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin tracing a transition.
+     *
+     * @param player    the name of the player.
+     * @param group     the name of the group.
+     * @param promotion true if the player is being promoted, false if demoted.
+     * @return the transition, to be marked as each phase ends.
+     */
+    public Transition begin(String player, String group, boolean promotion) {
+        return new Transition(player, group, promotion);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Change the number of traces kept, keeping the most recent ones.
+     *
+     * @param capacity the number of traces to keep.
+     */
+    public void setCapacity(int capacity) {
+        capacity = Math.max(1, capacity);
+        if (capacity == ring.length) {
+            return;
+        }
+        List<Trace> recent = getTraces();
+        ring = new Trace[capacity];
+        next = 0;
+        size = 0;
+        for (Trace trace : recent.subList(Math.max(0, recent.size() - capacity), recent.size())) {
+            add(trace);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of traces kept.
+     *
+     * @return the capacity of the buffer.
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of transitions finished since the plugin was enabled,
+     * including those no longer in the buffer.
+     *
+     * @return the number of transitions.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the traces in the buffer, oldest first.
+     *
+     * @return the traces.
+     */
+    public List<Trace> getTraces() {
+        List<Trace> traces = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            traces.add(ring[(next - size + i + ring.length) % ring.length]);
+        }
+        return traces;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the slowest traces in the buffer.
+     *
+     * @param count the maximum number of traces to return.
+     * @return the traces, slowest first.
+     */
+    public List<Trace> getSlowest(int count) {
+        return getTraces().stream()
+                .sorted(Comparator.comparingLong(Trace::totalNanos).reversed())
+                .limit(count)
+                .toList();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Summarise the time spent in each phase by the traces in the buffer.
+     *
+     * @return a summary of each phase that any trace reached, in phase order.
+     */
+    public List<PhaseSummary> getPhaseSummaries() {
+        int[] counts = new int[PHASES.length];
+        long[] sums = new long[PHASES.length];
+        long[] maxima = new long[PHASES.length];
+        for (Trace trace : getTraces()) {
+            for (int i = 0; i < PHASES.length; ++i) {
+                long nanos = trace.phaseNanos()[i];
+                if (nanos > 0) {
+                    ++counts[i];
+                    sums[i] += nanos;
+                    maxima[i] = Math.max(maxima[i], nanos);
+                }
+            }
+        }
+        List<PhaseSummary> summaries = new ArrayList<>();
+        for (int i = 0; i < PHASES.length; ++i) {
+            if (counts[i] > 0) {
+                summaries.add(new PhaseSummary(PHASES[i], counts[i], sums[i] / counts[i], maxima[i]));
+            }
+        }
+        return summaries;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a finished trace to the buffer, overwriting the oldest if full.
+     */
+    private void add(Trace trace) {
+        ring[next] = trace;
+        next = (next + 1) % ring.length;
+        size = Math.min(size + 1, ring.length);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A transition being traced.
+     */
+    public final class Transition {
+
+        private final String player;
+        private final String group;
+        private final boolean promotion;
+        private final long time = System.currentTimeMillis();
+        private final long start = System.nanoTime();
+        private final long[] phaseNanos = new long[PHASES.length];
+        private long lastMark = start;
+        private boolean finished;
+
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         */
+        private Transition(String player, String group, boolean promotion) {
+            this.player = player;
+            this.group = group;
+            this.promotion = promotion;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Attribute the time since the previous mark, or since the transition
+         * began, to a phase.
+         *
+         * @param phase the phase that just ended.
+         */
+        public void mark(Phase phase) {
+            long now = System.nanoTime();
+            long nanos = now - lastMark;
+            lastMark = now;
+            phaseNanos[phase.ordinal()] += nanos;
+            (promotion ? promoteSites : demoteSites)[phase.ordinal()].record(nanos);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Finish the transition and add its trace to the buffer. Only the
+         * first call has any effect.
+         *
+         * @param outcome how the transition ended.
+         */
+        public void finish(Outcome outcome) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            ++total;
+            add(new Trace(player, group, promotion, outcome, time, System.nanoTime() - start, phaseNanos));
+        }
+    }
+
+} // TransitionTraces
@@ -0,0 +1,329 @@
+package nu.nerd.modmode;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+// ------------------------------------------------------------------------
+/**
+ * A map from UUIDs to small non-negative ints, such as group ordinals, that
+ * can also be used as a set of UUIDs.
+ *
+ * Entries are kept in open-addressed arrays of the two halves of each UUID,
+ * probed linearly, so a lookup neither boxes nor allocates. Removal shifts
+ * the following entries of the probe run back rather than leaving
+ * tombstones, so lookups stay short however many players come and go.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * main thread.
+ */
+public final class UUIDIndex implements Iterable<UUID> {
+
+    /**
+     * The value returned for a UUID that is not in the index.
+     */
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The capacity is doubled when more than this fraction of it is used.
+     */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] mostBits;
+    private long[] leastBits;
+
+    /**
+     * The value of each slot, or NONE if the slot is free.
+     */
+    private int[] values;
+
+    private int size;
+
+    /**
+     * Changes to the set of keys, to detect use of a stale iterator.
+     */
+    private int modifications;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public UUIDIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a UUID.
+     *
+     * @param uuid the UUID.
+     * @return the value, or {@link #NONE} if the UUID is not in the index.
+     */
+    public int get(UUID uuid) {
+        int slot = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return (slot < 0) ? NONE : values[slot];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the UUID is in the index.
+     *
+     * @param uuid the UUID.
+     * @return true if the UUID is in the index.
+     */
+    public boolean contains(UUID uuid) {
+        return find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) >= 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the value of a UUID.
+     *
+     * @param uuid  the UUID.
+     * @param value the value, which must not be negative.
+     * @return the previous value, or {@link #NONE} if the UUID was not in the
+     *         index.
+     */
+    public int put(UUID uuid, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value " + value);
+        }
+        long most = uuid.getMostSignificantBits();
+        long least = uuid.getLeastSignificantBits();
+        int mask = values.length - 1;
+        int slot = hash(most, least) & mask;
+        while (values[slot] != NONE) {
+            if (mostBits[slot] == most && leastBits[slot] == least) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mostBits[slot] = most;
+        leastBits[slot] = least;
+        values[slot] = value;
+        ++modifications;
+        if (++size > values.length * LOAD_FACTOR) {
+            resize(values.length * 2);
+        }
+        return NONE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a UUID, with a value of 0 if it is not already in the index.
+     *
+     * @param uuid the UUID.
+     * @return true if the UUID was added, false if it was already present.
+     */
+    public boolean add(UUID uuid) {
+        return !contains(uuid) && put(uuid, 0) == NONE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a UUID.
+     *
+     * @param uuid the UUID.
+     * @return the value it had, or {@link #NONE} if it was not in the index.
+     */
+    public int remove(UUID uuid) {
+        int slot = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (slot < 0) {
+            return NONE;
+        }
+        int previous = values[slot];
+
+        // Move later entries of the probe run back into the gap whenever the gap lies on their probe path.
+        int mask = values.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (values[next] != NONE) {
+            int home = hash(mostBits[next], leastBits[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                mostBits[gap] = mostBits[next];
+                leastBits[gap] = leastBits[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = NONE;
+        --size;
+        ++modifications;
+        return previous;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the values of every UUID in another index.
+     *
+     * @param other the other index.
+     */
+    public void putAll(UUIDIndex other) {
+        for (int slot = 0; slot < other.values.length; ++slot) {
+            if (other.values[slot] != NONE) {
+                put(new UUID(other.mostBits[slot], other.leastBits[slot]), other.values[slot]);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove every UUID.
+     */
+    public void clear() {
+        if (size > 0) {
+            allocate(INITIAL_CAPACITY);
+            size = 0;
+            ++modifications;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of UUIDs in the index.
+     *
+     * @return the number of UUIDs.
+     */
+    public int size() {
+        return size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the index is empty.
+     *
+     * @return true if the index is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of the UUIDs in the index, which can be kept or
+     * modified independently of it.
+     *
+     * @return the UUIDs.
+     */
+    public Set<UUID> toSet() {
+        Set<UUID> set = new LinkedHashSet<>();
+        for (UUID uuid : this) {
+            set.add(uuid);
+        }
+        return set;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an iterator over the UUIDs in the index, in no particular
+     * order. The index must not be modified while it is in use.
+     *
+     * @return the iterator.
+     */
+    @Override
+    public Iterator<UUID> iterator() {
+        return new Iterator<>() {
+            private final int expectedModifications = modifications;
+            private int slot = advance(0);
+
+            @Override
+            public boolean hasNext() {
+                return slot < values.length;
+            }
+
+            @Override
+            public UUID next() {
+                if (modifications != expectedModifications) {
+                    throw new ConcurrentModificationException();
+                }
+                if (slot >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                UUID uuid = new UUID(mostBits[slot], leastBits[slot]);
+                slot = advance(slot + 1);
+                return uuid;
+            }
+
+            private int advance(int from) {
+                while (from < values.length && values[from] == NONE) {
+                    ++from;
+                }
+                return from;
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the slot holding a UUID, or -1 if it is not in the index.
+     */
+    private int find(long most, long least) {
+        int mask = values.length - 1;
+        int slot = hash(most, least) & mask;
+        while (values[slot] != NONE) {
+            if (mostBits[slot] == most && leastBits[slot] == least) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move every entry into new arrays of the given capacity.
+     */
+    private void resize(int capacity) {
+        long[] oldMostBits = mostBits;
+        long[] oldLeastBits = leastBits;
+        int[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldValues.length; ++oldSlot) {
+            if (oldValues[oldSlot] != NONE) {
+                int slot = hash(oldMostBits[oldSlot], oldLeastBits[oldSlot]) & mask;
+                while (values[slot] != NONE) {
+                    slot = (slot + 1) & mask;
+                }
+                mostBits[slot] = oldMostBits[oldSlot];
+                leastBits[slot] = oldLeastBits[oldSlot];
+                values[slot] = oldValues[oldSlot];
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace the arrays with empty ones of the given capacity, a power of 2.
+     */
+    private void allocate(int capacity) {
+        mostBits = new long[capacity];
+        leastBits = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NONE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Mix the bits of a UUID into a hash code. Offline-mode UUIDs are name
+     * hashes with fixed version bits, so the halves are mixed rather than
+     * trusted to be random.
+     */
+    private static int hash(long most, long least) {
+        long h = most * 0x9E3779B97F4A7C15L ^ least;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+} // UUIDIndex
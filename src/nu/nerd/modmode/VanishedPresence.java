@@ -0,0 +1,246 @@
+package nu.nerd.modmode;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+// ------------------------------------------------------------------------
+/**
+ * Tracks which chunks have a vanished player in or next to them, so that
+ * handlers of frequent block events can ignore events far from any vanished
+ * player with one probe of a table of chunk keys.
+ *
+ * Each vanished player marks the 3x3 chunks centred on the chunk they stand
+ * in, because block events such as sculk vibrations are caused from up to 8
+ * blocks away, which may be in the next chunk. The marks of each world are
+ * counted in an open-addressed table keyed on the packed chunk coordinates.
+ * Players are only re-marked when they cross into another chunk.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * main thread.
+ */
+public final class VanishedPresence {
+
+    /**
+     * The number of chunks around a player's chunk, in each direction, that
+     * are marked as near them.
+     */
+    private static final int RADIUS = 1;
+
+    /**
+     * Where a vanished player was last marked.
+     */
+    private record Place(UUID world, int chunkX, int chunkZ) {
+    }
+
+    private final HashMap<UUID, Place> places = new HashMap<>();
+    private final HashMap<UUID, ChunkCounts> worlds = new HashMap<>();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a vanished player is in or next to a chunk.
+     *
+     * @param world  the world.
+     * @param chunkX the X coordinate of the chunk.
+     * @param chunkZ the Z coordinate of the chunk.
+     * @return true if a vanished player is near the chunk.
+     */
+    public boolean isNear(World world, int chunkX, int chunkZ) {
+        if (places.isEmpty()) {
+            return false;
+        }
+        ChunkCounts counts = worlds.get(world.getUID());
+        return counts != null && counts.contains(chunkKey(chunkX, chunkZ));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if no vanished player is tracked.
+     *
+     * @return true if no vanished player is tracked.
+     */
+    public boolean isEmpty() {
+        return places.isEmpty();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start tracking a vanished player, or move them if they are already
+     * tracked.
+     *
+     * @param uuid     the player's UUID.
+     * @param location the player's location.
+     */
+    void track(UUID uuid, Location location) {
+        Place place = new Place(location.getWorld().getUID(), location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        Place previous = places.put(uuid, place);
+        if (!place.equals(previous)) {
+            if (previous != null) {
+                mark(previous, -1);
+            }
+            mark(place, 1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move a player if they are tracked, and they have moved into another
+     * chunk.
+     *
+     * @param uuid     the player's UUID.
+     * @param location the player's new location.
+     */
+    public void moved(UUID uuid, Location location) {
+        Place previous = places.get(uuid);
+        if (previous != null
+                && (previous.chunkX() != location.getBlockX() >> 4
+                    || previous.chunkZ() != location.getBlockZ() >> 4
+                    || !previous.world().equals(location.getWorld().getUID()))) {
+            track(uuid, location);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop tracking a player, if they are tracked.
+     *
+     * @param uuid the player's UUID.
+     */
+    void untrack(UUID uuid) {
+        Place previous = places.remove(uuid);
+        if (previous != null) {
+            mark(previous, -1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop tracking every player.
+     */
+    void clear() {
+        places.clear();
+        worlds.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to or subtract from the marks of the chunks around a place.
+     */
+    private void mark(Place place, int delta) {
+        ChunkCounts counts = worlds.computeIfAbsent(place.world(), world -> new ChunkCounts());
+        for (int x = place.chunkX() - RADIUS; x <= place.chunkX() + RADIUS; ++x) {
+            for (int z = place.chunkZ() - RADIUS; z <= place.chunkZ() + RADIUS; ++z) {
+                counts.add(chunkKey(x, z), delta);
+            }
+        }
+        if (counts.isEmpty()) {
+            worlds.remove(place.world());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Pack chunk coordinates into a key, in the same layout as Paper's
+     * Chunk#getChunkKey().
+     */
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return (chunkX & 0xFFFFFFFFL) | ((chunkZ & 0xFFFFFFFFL) << 32);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Positive counts keyed by longs, in open-addressed arrays probed
+     * linearly. A count of 0 marks a free slot.
+     */
+    private static final class ChunkCounts {
+        private long[] keys = new long[64];
+        private int[] counts = new int[64];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean contains(long key) {
+            int mask = counts.length - 1;
+            for (int slot = hash(key) & mask; counts[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long key, int delta) {
+            int mask = counts.length - 1;
+            int slot = hash(key) & mask;
+            while (counts[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (counts[slot] == 0) {
+                if (delta <= 0) {
+                    return;
+                }
+                keys[slot] = key;
+                counts[slot] = delta;
+                if (++size > counts.length / 2) {
+                    resize(counts.length * 2);
+                }
+                return;
+            }
+            counts[slot] += delta;
+            if (counts[slot] <= 0) {
+                delete(slot);
+            }
+        }
+
+        /**
+         * Free a slot, moving later entries of the probe run back into the
+         * gap whenever it lies on their probe path.
+         */
+        private void delete(int slot) {
+            int mask = counts.length - 1;
+            int gap = slot;
+            int next = (gap + 1) & mask;
+            while (counts[next] != 0) {
+                int home = hash(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    counts[gap] = counts[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            counts[gap] = 0;
+            --size;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new long[capacity];
+            counts = new int[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldCounts.length; ++i) {
+                if (oldCounts[i] != 0) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (counts[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key ^ (key >>> 33);
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            return (int) h;
+        }
+    }
+
+} // VanishedPresence
@@ -0,0 +1,224 @@
+package nu.nerd.modmode;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.kitteh.vanish.VanishManager;
+import org.kitteh.vanish.VanishPerms;
+import org.kitteh.vanish.VanishPlugin;
+
+// ------------------------------------------------------------------------
+/**
+ * Keeps which players can see which in line with VanishNoPacket's rules
+ * after a player's vanish state or permissions change, by correcting only
+ * the pairs of players involving them whose visibility is wrong.
+ *
+ * VanishNoPacket hides a vanished player from every viewer without the
+ * permission to see all vanished players. When a player enters or leaves a
+ * mode, that can change whether they are vanished and whether they may see
+ * vanished players, but nothing about the other players. So instead of
+ * having VanishNoPacket re-check what every online player sees, which
+ * re-examines every pair of players, only the pairs with that player on
+ * either side are examined.
+ *
+ * Players are shown and hidden on behalf of VanishNoPacket, so that its own
+ * later show and hide calls still apply. Each pair is decided from
+ * VanishNoPacket's rules alone and always has its hide or show registered,
+ * since whether a viewer can see a player also reflects hides by other
+ * plugins; Paper only sends packets where the outcome changes. A full
+ * refresh through VanishNoPacket remains available for when things have got
+ * out of step.
+ *
+ * The engine also re-sends a player's entity to those nearby when their
+ * appearance changes with their state, rather than the whole chunk.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * main thread.
+ */
+final class VisibilityEngine {
+
+    private final ModMode plugin;
+    private final VanishPlugin vanish;
+
+    private long refreshes;
+    private long pairsChecked;
+    private long pairsChanged;
+    private long fullRefreshes;
+    private long resends;
+    private long resentTo;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin the plugin.
+     * @param vanish the VanishNoPacket plugin.
+     */
+    VisibilityEngine(ModMode plugin, VanishPlugin vanish) {
+        this.plugin = plugin;
+        this.vanish = vanish;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Correct what a player sees of vanished players, and who sees them,
+     * after their vanish state or permissions changed.
+     *
+     * @param player the player.
+     * @return the number of pairs of players whose visibility changed.
+     */
+    int refresh(Player player) {
+        VanishManager manager = vanish.getManager();
+        // The player's permissions may have changed since VanishNoPacket cached them.
+        VanishPerms.userQuit(player);
+        boolean vanished = manager.isVanished(player);
+        boolean seesAll = VanishPerms.canSeeAll(player);
+
+        int changed = 0;
+        for (Player other : Bukkit.getOnlinePlayers()) {
+            if (other == player) {
+                continue;
+            }
+            // What the player sees of the other.
+            if (setVisible(player, other, seesAll || !manager.isVanished(other))) {
+                ++changed;
+            }
+            // What the other sees of the player.
+            if (setVisible(other, player, !vanished || VanishPerms.canSeeAll(other))) {
+                ++changed;
+            }
+            pairsChecked += 2;
+        }
+        ++refreshes;
+        pairsChanged += changed;
+        return changed;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Re-send a player's entity, with its equipment and metadata, to the
+     * players near enough to be tracking it, so that they see the player's
+     * new appearance after a state change.
+     *
+     * Each viewer has the player hidden and shown again on behalf of this
+     * plugin, which Paper turns into a destroy and a spawn of that one
+     * entity. Hides by VanishNoPacket are separate and unaffected, and
+     * viewers who cannot see the player are skipped.
+     *
+     * @param player the player.
+     * @return the number of viewers the player was re-sent to.
+     */
+    int resend(Player player) {
+        Location location = player.getLocation();
+        double range = Bukkit.getViewDistance() * 16.0;
+        double rangeSquared = range * range;
+        int viewers = 0;
+        for (Player viewer : player.getWorld().getPlayers()) {
+            if (viewer == player || !viewer.canSee(player)
+                    || viewer.getLocation().distanceSquared(location) > rangeSquared) {
+                continue;
+            }
+            viewer.hideEntity(plugin, player);
+            viewer.showEntity(plugin, player);
+            ++viewers;
+        }
+        ++resends;
+        resentTo += viewers;
+        return viewers;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Have VanishNoPacket re-check what every online player sees.
+     *
+     * @return the number of players refreshed.
+     */
+    int refreshAll() {
+        int count = 0;
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            vanish.getManager().playerRefresh(player);
+            ++count;
+        }
+        ++fullRefreshes;
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Show or hide a player to a viewer on behalf of VanishNoPacket.
+     *
+     * @return true if whether the viewer can see the player changed.
+     */
+    private boolean setVisible(Player viewer, Player target, boolean visible) {
+        boolean couldSee = viewer.canSee(target);
+        if (visible) {
+            viewer.showPlayer(vanish, target);
+        } else {
+            viewer.hidePlayer(vanish, target);
+        }
+        return viewer.canSee(target) != couldSee;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of incremental refreshes done.
+     *
+     * @return the number of calls to {@link #refresh(Player)}.
+     */
+    long getRefreshes() {
+        return refreshes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of viewer-target pairs examined by incremental
+     * refreshes.
+     *
+     * @return the number of pairs examined.
+     */
+    long getPairsChecked() {
+        return pairsChecked;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of viewer-target pairs whose visibility was changed
+     * by incremental refreshes.
+     *
+     * @return the number of pairs changed.
+     */
+    long getPairsChanged() {
+        return pairsChanged;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of times a player was re-sent to those nearby.
+     *
+     * @return the number of calls to {@link #resend(Player)}.
+     */
+    long getResends() {
+        return resends;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of viewers players were re-sent to.
+     *
+     * @return the total number of viewers.
+     */
+    long getResentTo() {
+        return resentTo;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of full refreshes done.
+     *
+     * @return the number of calls to {@link #refreshAll()}.
+     */
+    long getFullRefreshes() {
+        return fullRefreshes;
+    }
+
+} // VisibilityEngine
@@ -2,6 +2,7 @@ package nu.nerd.modmode.listeners;
 
 import net.coreprotect.event.CoreProtectPreLogEvent;
 import nu.nerd.modmode.ModMode;
+import nu.nerd.modmode.Timings;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -14,12 +15,15 @@ import org.bukkit.event.Listener;
 public class CoreProtectListener implements Listener {
 
     private ModMode plugin;
+    private final Timings.Site onLogBlockPreLogEventTiming;
 
     // ------------------------------------------------------------------------
     /**
      * Constructor.
      */
     public CoreProtectListener(ModMode plugin) {
+        this.plugin = plugin;
+        this.onLogBlockPreLogEventTiming = plugin.getTimings().site("CoreProtectListener.onLogBlockPreLogEvent");
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
     }
 
@@ -30,16 +34,21 @@ public class CoreProtectListener implements Listener {
      */
     @EventHandler
     public void onLogBlockPreLogEvent(CoreProtectPreLogEvent event) {
-        Player player;
+        long start = onLogBlockPreLogEventTiming.start();
         try {
-            player = plugin.getServer().getPlayer(event.getUser());
-        } catch (Exception e) {
-            // probably liquid flow or something
-            return;
-        }
-        if (player != null && plugin.isInMode(player)) {
-            String user = plugin.getCleanModeName(player);
-            event.setUser(user);
+            Player player;
+            try {
+                player = plugin.getServer().getPlayer(event.getUser());
+            } catch (Exception e) {
+                // probably liquid flow or something
+                return;
+            }
+            if (player != null && plugin.isInMode(player)) {
+                String user = plugin.getCleanModeName(player);
+                event.setUser(user);
+            }
+        } finally {
+            onLogBlockPreLogEventTiming.stop(start);
         }
     }
 
@@ -3,29 +3,22 @@ package nu.nerd.modmode.listeners;
 
 import me.neznamy.tab.api.TabAPI;
 import me.neznamy.tab.api.event.player.PlayerLoadEvent;
-import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.format.NamedTextColor;
 import nu.nerd.modmode.ModMode;
 import nu.nerd.modmode.ModModeGroup;
 import nu.nerd.modmode.Permissions;
+import nu.nerd.modmode.Timings;
+import nu.nerd.modmode.TransitionScheduler;
 import org.bukkit.Bukkit;
-import org.bukkit.GameEvent;
 import org.bukkit.GameMode;
-import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
-import org.bukkit.event.block.BlockReceiveGameEvent;
-import org.bukkit.event.entity.EntityDamageByEntityEvent;
-import org.bukkit.event.entity.EntityDamageEvent;
-import org.bukkit.event.entity.EntityPickupItemEvent;
-import org.bukkit.event.entity.EntityTargetEvent;
-import org.bukkit.event.entity.FoodLevelChangeEvent;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
-import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerGameModeChangeEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.kitteh.vanish.event.VanishStatusChangeEvent;
 
 import java.util.UUID;
 
@@ -39,6 +32,14 @@ public class ModModeListener implements Listener {
     private TabAPI TABAPI;
     private Permissions permissions;
 
+    private final Timings.Site onPlayerJoinTiming;
+    private final Timings.Site onPlayerLeaveTiming;
+    private final Timings.Site onPlayerQuitMonitorTiming;
+    private final Timings.Site onVanishStatusChangeTiming;
+    private final Timings.Site onPlayerChangeWorldTiming;
+    private final Timings.Site onPlayerGameModeChangeTiming;
+    private final Timings.Site onPlayerLoadTiming;
+
     // ------------------------------------------------------------------------
     /**
      * Constructor.
@@ -47,6 +48,14 @@ public class ModModeListener implements Listener {
         this.plugin = plugin;
         this.TABAPI = plugin.getTABAPI();
         this.permissions = plugin.getPermissions();
+        Timings timings = plugin.getTimings();
+        this.onPlayerJoinTiming = timings.site("ModModeListener.onPlayerJoin");
+        this.onPlayerLeaveTiming = timings.site("ModModeListener.onPlayerLeave");
+        this.onPlayerQuitMonitorTiming = timings.site("ModModeListener.onPlayerQuitMonitor");
+        this.onVanishStatusChangeTiming = timings.site("ModModeListener.onVanishStatusChange");
+        this.onPlayerChangeWorldTiming = timings.site("ModModeListener.onPlayerChangeWorld");
+        this.onPlayerGameModeChangeTiming = timings.site("ModModeListener.onPlayerGameModeChange");
+        this.onPlayerLoadTiming = timings.site("ModModeListener.onPlayerLoad");
         Bukkit.getPluginManager().registerEvents(this, plugin);
 
         // TAB Events
@@ -56,153 +65,126 @@ public class ModModeListener implements Listener {
     // ------------------------------------------------------------------------
     /**
      * Ensures players in a group rejoin in secret, if the group permits for that.
-     * Join message will appear the next time the player leaves their mode.
+     * Join message will appear the next time the player leaves their mode. The join message is suppressed before
+     * LuckPerms has promoted the player again; if that fails, they are demoted, which announces them.
      */
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
-        Player player = event.getPlayer();
-        UUID uuid = player.getUniqueId();
-        ModModeGroup group = plugin.getGroupPlayerMemberOf(uuid);
-        if(group != null) {
-            if(group.isSuppressJoinMessages()) {
-                if(permissions.promote(player, group)) {
+        long start = onPlayerJoinTiming.start();
+        try {
+            Player player = event.getPlayer();
+            UUID uuid = player.getUniqueId();
+            ModModeGroup group = plugin.getGroupPlayerMemberOf(uuid);
+            if(group != null) {
+                plugin.openSession(player);
+                if(group.isSuppressJoinMessages()) {
                     event.joinMessage(null);
                     plugin.addSilentJoin(uuid);
-                } else {
-                    group.demote(player, uuid);
+                    permissions.promote(player, group).thenAccept(promoted -> {
+                        if(!promoted && player.isOnline()) {
+                            group.demote(player, uuid);
+                        }
+                    });
                 }
             }
+        } finally {
+            onPlayerJoinTiming.stop(start);
         }
     }
 
     // ------------------------------------------------------------------------
     /**
      * Ensures players in a group leave without a quit message to maintain secrecy, should their group permit.
+     * The track of a player leaving during a state change is put right by that state change instead. A player
+     * leaving while their state is being swapped has the swap completed first, so that the server saves them with
+     * the state of the side they are now on.
      */
     @EventHandler
     public void onPlayerLeave(PlayerQuitEvent event) {
-        Player player = event.getPlayer();
-        UUID uuid = player.getUniqueId();
-        ModModeGroup group = plugin.getGroupPlayerMemberOf(uuid);
-        if(group != null) {
-            if(group.isSuppressJoinMessages()) {
-                if(permissions.demote(player, group)) {
+        long start = onPlayerLeaveTiming.start();
+        try {
+            Player player = event.getPlayer();
+            UUID uuid = player.getUniqueId();
+            boolean swapped = plugin.isTransitioning(uuid) && completeSwapOnQuit(player);
+            ModModeGroup group = plugin.getGroupPlayerMemberOf(uuid);
+            if(group != null) {
+                if(group.isSuppressJoinMessages()) {
                     event.quitMessage(null);
                     plugin.removeSilentJoin(uuid);
-                } else {
-                    group.demote(player, uuid);
+                    if(!swapped && !plugin.isTransitioning(uuid)) {
+                        permissions.demote(player, group);
+                    }
                 }
             }
+        } finally {
+            onPlayerLeaveTiming.stop(start);
         }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * An event run through the TAB API's event bus.
-     * Used to handle extra toggles when rejoining the server in a mode like name colour, flight, and vanish state.
-     */
-    public void onPlayerLoad() {
-        TABAPI.getEventBus().register(PlayerLoadEvent.class, event -> {
-            // Wrap with a scheduler task to force the event back onto the main thread
-            Bukkit.getScheduler().runTask(plugin, () -> {
-                UUID uuid = event.getPlayer().getUniqueId();
-                Player player = Bukkit.getPlayer(uuid);
-                if(player != null) {
-                    ModModeGroup group = plugin.getGroupPlayerMemberOf(uuid);
-                    if(group != null) {
-                        group.sharedSetup(player, true);
-                        plugin.updateAllPlayersSeeing();
-                    }
-                }
-            });
-        });
-    }
-
-    // ------------------------------------------------------------------------
-    /**
-     * Prevents players from picking up items while in a mode if their group forbids it, or they haven't toggled it on.
+     * Completes the state swap of a quitting player, if one is waiting for a state to be read.
+     * @return true if the player's state was being swapped.
      */
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerPickupItem(EntityPickupItemEvent event) {
-        if(!(event.getEntity() instanceof Player player)) return;
-        UUID uuid = player.getUniqueId();
-        ModModeGroup group = plugin.getGroupPlayerMemberOf(uuid);
-        if (group != null) {
-            if (!group.isInteractWithItems() || !group.isBypassingItemBlock(uuid)) {
-                event.setCancelled(true);
+    private boolean completeSwapOnQuit(Player player) {
+        for(ModModeGroup group : plugin.getGroups().values()) {
+            if(group.completeSwapOnQuit(player)) {
+                return true;
             }
-        } else if (plugin.isVanished(player)) {
-            event.setCancelled(true);
         }
-
+        return false;
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Prevents players from dropping items while in a mode if their group forbids it, or they haven't toggled it on.
+     * Discards the cached state of a player who has left, once every other handler has seen them leave.
      */
-    @EventHandler
-    public void onPlayerDropItem(PlayerDropItemEvent event) {
-        Player player = event.getPlayer();
-        UUID uuid = player.getUniqueId();
-        ModModeGroup group = plugin.getGroupPlayerMemberOf(uuid);
-        if (group != null) {
-            if (!group.isInteractWithItems() || !group.isBypassingItemBlock(uuid)) {
-                event.setCancelled(true);
-            }
-        } else if (plugin.isVanished(player)) {
-            event.setCancelled(true);
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuitMonitor(PlayerQuitEvent event) {
+        long start = onPlayerQuitMonitorTiming.start();
+        try {
+            plugin.closeSession(event.getPlayer().getUniqueId());
+        } finally {
+            onPlayerQuitMonitorTiming.stop(start);
         }
-
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Prevents entities (hostile mobs, parrots, etc.) from targeting players in a mode.
+     * Keeps the cached vanish state of players up to date when VanishNoPacket changes it, such as when a player
+     * joins vanished.
      */
-    @EventHandler
-    public void onEntityTarget(EntityTargetEvent event) {
-        if(!(event.getTarget() instanceof Player player)) return;
-        if(plugin.isInMode(player) || plugin.isVanished(player)) event.setCancelled(true);
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onVanishStatusChange(VanishStatusChangeEvent event) {
+        long start = onVanishStatusChangeTiming.start();
+        try {
+            plugin.vanishChanged(event.getPlayer(), event.isVanishing());
+        } finally {
+            onVanishStatusChangeTiming.stop(start);
+        }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Prevents players in a mode from damaging players or being damaged by anything.
+     * An event run through the TAB API's event bus.
+     * Used to handle extra toggles when rejoining the server in a mode like name colour, flight, and vanish state.
+     * TAB loads every player at once after a restart or reload, so the toggles are queued to be spread across ticks.
      */
-    @EventHandler
-    public void onEntityDamage(EntityDamageEvent event) {
-        if(!(event.getEntity() instanceof Player victim)) return;
-
-        // Block PVP with a message.
-        if(event instanceof  EntityDamageByEntityEvent) {
-            EntityDamageByEntityEvent e = (EntityDamageByEntityEvent) event;
-            if(e.getDamager() instanceof Player damager) {
-
-                // Prevent staff from doing PvP damage.
-                if(plugin.isInMode(damager) || plugin.isVanished(damager)) {
-                    event.setCancelled(true);
-                }
-
-                // Only show message if staff are visible.
-                else if(plugin.isInMode(victim) && !plugin.isVanished(victim)) {
-                    damager.sendMessage(Component.text("This moderator is in ModMode.", NamedTextColor.RED));
-                    damager.sendMessage(Component.text("ModMode should only be used for official server" +
-                            " business.", NamedTextColor.GREEN));
-                    damager.sendMessage(Component.text("Please let an admin know if a moderator is" +
-                            " abusing ModMode.", NamedTextColor.GREEN));
+    public void onPlayerLoad() {
+        TABAPI.getEventBus().register(PlayerLoadEvent.class, event -> {
+            // Wrap with a scheduler task to force the event back onto the main thread
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                long start = onPlayerLoadTiming.start();
+                try {
+                    UUID uuid = event.getPlayer().getUniqueId();
+                    if(plugin.getGroupPlayerMemberOf(uuid) != null) {
+                        plugin.getTransitionScheduler().enqueue(uuid, TransitionScheduler.Kind.REAPPLY);
+                    }
+                } finally {
+                    onPlayerLoadTiming.stop(start);
                 }
-            }
-
-        }
-
-        // Block all damage to invisible and modmode players.
-        if(plugin.isInMode(victim) || plugin.isVanished(victim)) {
-            // Extinguish view-obscuring fires.
-            victim.setFireTicks(0);
-            event.setCancelled(true);
-        }
-
+            });
+        });
     }
 
     // ------------------------------------------------------------------------
@@ -212,65 +194,39 @@ public class ModModeListener implements Listener {
      */
     @EventHandler(ignoreCancelled = true)
     public void onPlayerChangeWorld(PlayerChangedWorldEvent event) {
-        Player player = event.getPlayer();
-        ModModeGroup group = plugin.getGroupPlayerMemberOf(player.getUniqueId());
-        if(group != null) {
-            if (player.getGameMode() != GameMode.CREATIVE && group.isAllowFlight()) {
-                boolean flightState = plugin.isInMode(player);
-                player.setAllowFlight(flightState);
-            }
-        }
-    }
-
-    // ------------------------------------------------------------------------
-    /**
-     * Restores a player's flight ability upon changing game modes.
-     */
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerGameModeChange(final PlayerGameModeChangeEvent event) {
-        Player player = event.getPlayer();
-        Bukkit.getScheduler().runTask(plugin, () -> {
+        long start = onPlayerChangeWorldTiming.start();
+        try {
+            Player player = event.getPlayer();
             ModModeGroup group = plugin.getGroupPlayerMemberOf(player.getUniqueId());
             if(group != null) {
-                boolean flightState = plugin.isInMode(player);
-                plugin.restoreFlight(player, group, flightState);
-            }
-        });
-    }
-
-    // ------------------------------------------------------------------------
-    /**
-     * Prevents the depletion of hunger level for players in ModMode.
-     */
-    @EventHandler(ignoreCancelled = true)
-    public void onFoodLevelChange(FoodLevelChangeEvent event) {
-        if (event.getEntity() instanceof Player player) {
-            if (plugin.isInMode(player)) {
-                if (player.getFoodLevel() != 20) {
-                    player.setFoodLevel(20);
+                if (player.getGameMode() != GameMode.CREATIVE && group.isAllowFlight()) {
+                    boolean flightState = plugin.isInMode(player);
+                    player.setAllowFlight(flightState);
                 }
-                event.setCancelled(true);
             }
+        } finally {
+            onPlayerChangeWorldTiming.stop(start);
         }
     }
 
     // ------------------------------------------------------------------------
-
     /**
-     * Prevent vanished players from triggering sculk sensors and shriekers.
+     * Restores a player's flight ability upon changing game modes.
      */
     @EventHandler(ignoreCancelled = true)
-    public void onSculkBlockActivate(BlockReceiveGameEvent event) {
-        GameEvent gameEvent = event.getEvent();
-        if(event.getEntity() instanceof Player player) {
-            if(plugin.isVanished(player)) {
-                if(gameEvent == GameEvent.SCULK_SENSOR_TENDRILS_CLICKING || gameEvent == GameEvent.SHRIEK) {
-                    Material eventBlockType = event.getBlock().getType();
-                    if(eventBlockType.equals(Material.SCULK_SENSOR) || eventBlockType.equals(Material.SCULK_SHRIEKER)) {
-                        event.setCancelled(true);
-                    }
+    public void onPlayerGameModeChange(final PlayerGameModeChangeEvent event) {
+        long start = onPlayerGameModeChangeTiming.start();
+        try {
+            Player player = event.getPlayer();
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                ModModeGroup group = plugin.getGroupPlayerMemberOf(player.getUniqueId());
+                if(group != null) {
+                    boolean flightState = plugin.isInMode(player);
+                    plugin.restoreFlight(player, group, flightState);
                 }
-            }
+            });
+        } finally {
+            onPlayerGameModeChangeTiming.stop(start);
         }
     }
 
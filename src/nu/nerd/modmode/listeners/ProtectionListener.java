@@ -0,0 +1,427 @@
+package nu.nerd.modmode.listeners;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import nu.nerd.modmode.ModMode;
+import nu.nerd.modmode.StaffSession;
+import nu.nerd.modmode.Timings;
+import nu.nerd.modmode.VanishedPresence;
+import org.bukkit.Bukkit;
+import org.bukkit.GameEvent;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Mob;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockReceiveGameEvent;
+import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.entity.EntityPickupItemEvent;
+import org.bukkit.event.entity.EntityTargetEvent;
+import org.bukkit.event.entity.FoodLevelChangeEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerDropItemEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.vehicle.VehicleMoveEvent;
+
+import java.util.function.IntPredicate;
+
+// ------------------------------------------------------------------------
+/**
+ * Handles the frequent events that protect players in a mode or vanished, and
+ * the world from them.
+ *
+ * These events fire constantly, so this listener is only registered while at
+ * least one player is in a mode, vanished or having their state swapped; see
+ * {@link #setRegistered(boolean)}. Its handlers run at the lowest priority so
+ * that the events they cancel are skipped by other plugins' listeners that
+ * ignore cancelled events.
+ */
+public class ProtectionListener implements Listener {
+
+    private ModMode plugin;
+    private RetargetSuppressor retargetSuppressor;
+    private VanishedPresence vanishedPresence;
+    private boolean registered;
+
+    /**
+     * Whether the group with a given ordinal allows its members item interaction.
+     */
+    private final IntPredicate groupAllowsItems;
+
+    private final Timings.Site onPlayerPickupItemTiming;
+    private final Timings.Site onPlayerDropItemTiming;
+    private final Timings.Site onEntityTargetTiming;
+    private final Timings.Site onEntityDamageTiming;
+    private final Timings.Site onFoodLevelChangeTiming;
+    private final Timings.Site onSculkBlockActivateTiming;
+    private final Timings.Site onPlayerMoveTiming;
+    private final Timings.Site onPlayerTeleportTiming;
+    private final Timings.Site onPlayerRespawnTiming;
+    private final Timings.Site onVehicleMoveTiming;
+    private final Timings.Site onPlayerChangedWorldTiming;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor. The listener starts unregistered.
+     */
+    public ProtectionListener(ModMode plugin) {
+        this.plugin = plugin;
+        this.vanishedPresence = plugin.getVanishedPresence();
+        this.groupAllowsItems = ordinal -> plugin.getGroupByOrdinal(ordinal).isInteractWithItems();
+        this.retargetSuppressor = new RetargetSuppressor(plugin,
+                plugin.getConfig().getInt("protection.retargetCooldownTicks", 40),
+                uuid -> isTargetRefused(plugin.getSession(uuid)));
+        Timings timings = plugin.getTimings();
+        this.onPlayerPickupItemTiming = timings.site("ProtectionListener.onPlayerPickupItem");
+        this.onPlayerDropItemTiming = timings.site("ProtectionListener.onPlayerDropItem");
+        this.onEntityTargetTiming = timings.site("ProtectionListener.onEntityTarget");
+        this.onEntityDamageTiming = timings.site("ProtectionListener.onEntityDamage");
+        this.onFoodLevelChangeTiming = timings.site("ProtectionListener.onFoodLevelChange");
+        this.onSculkBlockActivateTiming = timings.site("ProtectionListener.onSculkBlockActivate");
+        this.onPlayerMoveTiming = timings.site("ProtectionListener.onPlayerMove");
+        this.onPlayerTeleportTiming = timings.site("ProtectionListener.onPlayerTeleport");
+        this.onPlayerRespawnTiming = timings.site("ProtectionListener.onPlayerRespawn");
+        this.onVehicleMoveTiming = timings.site("ProtectionListener.onVehicleMove");
+        this.onPlayerChangedWorldTiming = timings.site("ProtectionListener.onPlayerChangedWorld");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Registers or unregisters this listener's handlers, if that changes anything.
+     * @param registered true to register the handlers, false to unregister them.
+     */
+    public void setRegistered(boolean registered) {
+        if(registered == this.registered) return;
+        if(registered) {
+            Bukkit.getPluginManager().registerEvents(this, plugin);
+        } else {
+            HandlerList.unregisterAll(this);
+        }
+        this.registered = registered;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Removes the goals suppressing the targeting of mobs refused staff as targets, when the plugin is disabled.
+     */
+    public void shutdown() {
+        retargetSuppressor.removeAll();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns the suppressor of mobs recently refused staff as targets.
+     * @return the suppressor of mobs recently refused staff as targets.
+     */
+    public RetargetSuppressor getRetargetSuppressor() {
+        return retargetSuppressor;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns true if this listener's handlers are registered.
+     * @return true if this listener's handlers are registered.
+     */
+    public boolean isRegistered() {
+        return registered;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Prevents players from picking up items while in a mode if their group forbids it, or they haven't toggled it on.
+     */
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onPlayerPickupItem(EntityPickupItemEvent event) {
+        long start = onPlayerPickupItemTiming.start();
+        try {
+            if(!(event.getEntity() instanceof Player player)) return;
+            if(isItemInteractionBlocked(plugin.getSession(player.getUniqueId()), groupAllowsItems)) {
+                event.setCancelled(true);
+            }
+        } finally {
+            onPlayerPickupItemTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Prevents players from dropping items while in a mode if their group forbids it, or they haven't toggled it on.
+     */
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerDropItem(PlayerDropItemEvent event) {
+        long start = onPlayerDropItemTiming.start();
+        try {
+            if(isItemInteractionBlocked(plugin.getSession(event.getPlayer().getUniqueId()), groupAllowsItems)) {
+                event.setCancelled(true);
+            }
+        } finally {
+            onPlayerDropItemTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Prevents entities (hostile mobs, parrots, etc.) from targeting players in a mode.
+     * A refused mob also has its current target cleared if it is that player, and its targeting suppressed until
+     * the cooldown expires, so that it stops retrying.
+     */
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onEntityTarget(EntityTargetEvent event) {
+        long start = onEntityTargetTiming.start();
+        try {
+            if(!(event.getTarget() instanceof Player player)) return;
+            if(isTargetRefused(plugin.getSession(player.getUniqueId()))) {
+                event.setCancelled(true);
+                if(event.getEntity() instanceof Mob mob) {
+                    if(player.equals(mob.getTarget())) {
+                        mob.setTarget(null);
+                    }
+                    retargetSuppressor.refuse(mob, player.getUniqueId());
+                }
+            }
+        } finally {
+            onEntityTargetTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Prevents players in a mode from damaging players or being damaged by anything.
+     */
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onEntityDamage(EntityDamageEvent event) {
+        long start = onEntityDamageTiming.start();
+        try {
+            if(!(event.getEntity() instanceof Player victim)) return;
+            StaffSession victimSession = plugin.getSession(victim.getUniqueId());
+
+            // Block PVP with a message.
+            if(event instanceof  EntityDamageByEntityEvent) {
+                EntityDamageByEntityEvent e = (EntityDamageByEntityEvent) event;
+                if(e.getDamager() instanceof Player damager) {
+
+                    // Prevent staff from doing PvP damage.
+                    StaffSession damagerSession = plugin.getSession(damager.getUniqueId());
+                    if(damagerSession != null && damagerSession.isInModeOrVanished()) {
+                        event.setCancelled(true);
+                    }
+
+                    // Only show message if staff are visible.
+                    else if(victimSession != null && victimSession.isInMode() && !victimSession.isVanished()) {
+                        damager.sendMessage(Component.text("This moderator is in ModMode.", NamedTextColor.RED));
+                        damager.sendMessage(Component.text("ModMode should only be used for official server" +
+                                " business.", NamedTextColor.GREEN));
+                        damager.sendMessage(Component.text("Please let an admin know if a moderator is" +
+                                " abusing ModMode.", NamedTextColor.GREEN));
+                    }
+                }
+
+            }
+
+            // Block all damage to invisible and modmode players.
+            if(victimSession != null && victimSession.isInModeOrVanished()) {
+                // Extinguish view-obscuring fires.
+                victim.setFireTicks(0);
+                event.setCancelled(true);
+            }
+        } finally {
+            onEntityDamageTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Prevents the depletion of hunger level for players in ModMode.
+     */
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onFoodLevelChange(FoodLevelChangeEvent event) {
+        long start = onFoodLevelChangeTiming.start();
+        try {
+            if (event.getEntity() instanceof Player player) {
+                StaffSession session = plugin.getSession(player.getUniqueId());
+                if (session != null && session.isInMode()) {
+                    if (player.getFoodLevel() != 20) {
+                        player.setFoodLevel(20);
+                    }
+                    event.setCancelled(true);
+                }
+            }
+        } finally {
+            onFoodLevelChangeTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Prevent vanished players from triggering sculk sensors and shriekers.
+     */
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onSculkBlockActivate(BlockReceiveGameEvent event) {
+        long start = onSculkBlockActivateTiming.start();
+        try {
+            Block block = event.getBlock();
+            if(!isNearVanished(vanishedPresence, block.getWorld(), block.getX(), block.getZ())) return;
+            if(event.getEntity() instanceof Player player) {
+                if(isSculkActivationBlocked(plugin.getSession(player.getUniqueId()), event.getEvent(),
+                        block.getType())) {
+                    event.setCancelled(true);
+                }
+            }
+        } finally {
+            onSculkBlockActivateTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tracks vanished players into new chunks as they walk. Players riding a vehicle are tracked by
+     * {@link #onVehicleMove(VehicleMoveEvent)} instead, since this event does not fire for them.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        long start = onPlayerMoveTiming.start();
+        try {
+            if(event.hasChangedBlock()) {
+                vanishedPresence.moved(event.getPlayer().getUniqueId(), event.getTo());
+            }
+        } finally {
+            onPlayerMoveTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tracks vanished players into new chunks as they ride a boat, minecart, horse or other vehicle. The passengers
+     * are only looked at when a vanished player is being tracked and the vehicle crosses into another chunk.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onVehicleMove(VehicleMoveEvent event) {
+        long start = onVehicleMoveTiming.start();
+        try {
+            if(vanishedPresence.isEmpty()) return;
+            Location from = event.getFrom();
+            Location to = event.getTo();
+            if((from.getBlockX() >> 4) == (to.getBlockX() >> 4) && (from.getBlockZ() >> 4) == (to.getBlockZ() >> 4)) {
+                return;
+            }
+            for(Entity passenger : event.getVehicle().getPassengers()) {
+                if(passenger instanceof Player) {
+                    vanishedPresence.moved(passenger.getUniqueId(), to);
+                }
+            }
+        } finally {
+            onVehicleMoveTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tracks vanished players into the worlds they change to, however they got there.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        long start = onPlayerChangedWorldTiming.start();
+        try {
+            Player player = event.getPlayer();
+            vanishedPresence.moved(player.getUniqueId(), player.getLocation());
+        } finally {
+            onPlayerChangedWorldTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tracks vanished players into new chunks and worlds as they teleport.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        long start = onPlayerTeleportTiming.start();
+        try {
+            vanishedPresence.moved(event.getPlayer().getUniqueId(), event.getTo());
+        } finally {
+            onPlayerTeleportTiming.stop(start);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tracks vanished players to where they respawn.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerRespawn(PlayerRespawnEvent event) {
+        long start = onPlayerRespawnTiming.start();
+        try {
+            vanishedPresence.moved(event.getPlayer().getUniqueId(), event.getRespawnLocation());
+        } finally {
+            onPlayerRespawnTiming.stop(start);
+        }
+    }
+
+    /*
+    ------------------------------------------------------------------------
+    DECISIONS
+    The per-event decisions of the handlers, static so that the benchmarks measure the same code.
+    ------------------------------------------------------------------------
+     */
+
+    /**
+     * Returns true if a vanished player is in or next to the chunk of a block. Handlers of block events use this to
+     * ignore the vast majority of events, which happen nowhere near a vanished player.
+     * @param presence the chunks near vanished players.
+     * @param world the world of the block.
+     * @param blockX the X coordinate of the block.
+     * @param blockZ the Z coordinate of the block.
+     */
+    public static boolean isNearVanished(VanishedPresence presence, World world, int blockX, int blockZ) {
+        return presence.isNear(world, blockX >> 4, blockZ >> 4);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns true if a mob may not target a player: while they are in a mode or vanished.
+     * @param session the player's session, or null if they are not staff.
+     */
+    public static boolean isTargetRefused(StaffSession session) {
+        return session != null && session.isInModeOrVanished();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns true if a player may not pick up or drop items: while their state is being swapped, while in a mode
+     * unless their group allows item interaction and they have toggled it on, and while vanished.
+     * @param session the player's session, or null if they are not staff.
+     * @param groupAllowsItems whether the group with a given ordinal allows item interaction.
+     */
+    public static boolean isItemInteractionBlocked(StaffSession session, IntPredicate groupAllowsItems) {
+        if(session == null) return false;
+        if(session.isTransitioning()) return true;
+        if(session.isInMode()) {
+            return !groupAllowsItems.test(session.getGroupOrdinal()) || !session.isBypassingItemBlock();
+        }
+        return session.isVanished();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns true if a player may not set off a sculk sensor or shrieker: while vanished.
+     * @param session the player's session, or null if they are not staff.
+     * @param gameEvent the game event received by the block.
+     * @param blockType the type of the block.
+     */
+    public static boolean isSculkActivationBlocked(StaffSession session, GameEvent gameEvent, Material blockType) {
+        return session != null && session.isVanished()
+                && (gameEvent == GameEvent.SCULK_SENSOR_TENDRILS_CLICKING || gameEvent == GameEvent.SHRIEK)
+                && (blockType == Material.SCULK_SENSOR || blockType == Material.SCULK_SHRIEKER);
+    }
+
+} // ProtectionListener
@@ -0,0 +1,188 @@
+package nu.nerd.modmode.listeners;
+
+import com.destroystokyo.paper.entity.ai.Goal;
+import com.destroystokyo.paper.entity.ai.GoalKey;
+import com.destroystokyo.paper.entity.ai.GoalType;
+import com.destroystokyo.paper.entity.ai.MobGoals;
+import org.bukkit.Bukkit;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.entity.Mob;
+import org.bukkit.plugin.Plugin;
+
+import java.util.EnumSet;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+// ------------------------------------------------------------------------
+/**
+ * Stops mobs that were refused a staff player as a target from trying to
+ * target anyone for a cooldown, using Paper's mob goals.
+ *
+ * Mob AI retries a refused target every tick or so, so a staff member standing
+ * in a mob farm causes a steady stream of target events. A refused mob is
+ * given a target goal of its own, at a higher priority than any vanilla one,
+ * that runs until the cooldown expires or the player it was refused no longer
+ * needs protecting. While it runs it holds the mob's target, so the mob's
+ * vanilla target goals are not even evaluated and no target events fire. The
+ * mob cannot target anyone else during the cooldown either.
+ *
+ * The goal stays on the mob after it expires, to be reused if the mob is
+ * refused again, and goes when the mob does.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * main thread.
+ */
+public final class RetargetSuppressor {
+
+    /**
+     * The priority of the goal; lower runs first, so this comes before
+     * every vanilla target goal.
+     */
+    private static final int PRIORITY = Integer.MIN_VALUE;
+
+    private static final EnumSet<GoalType> TYPES = EnumSet.of(GoalType.TARGET);
+
+    private final GoalKey<Mob> key;
+    private final int cooldownTicks;
+    private final Predicate<UUID> stillRefused;
+
+    private long refused;
+    private long suppressed;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param plugin        the plugin owning the goal.
+     * @param cooldownTicks the number of ticks for which a refused mob's
+     *        targeting is suppressed; 0 or less only refuses target events.
+     * @param stillRefused  whether the player with a given UUID still may not
+     *        be targeted.
+     */
+    RetargetSuppressor(Plugin plugin, int cooldownTicks, Predicate<UUID> stillRefused) {
+        this.key = GoalKey.of(Mob.class, new NamespacedKey(plugin, "ignore_staff_target"));
+        this.cooldownTicks = cooldownTicks;
+        this.stillRefused = stillRefused;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record that a mob was refused a player as a target, and suppress its
+     * targeting for the cooldown.
+     *
+     * @param mob    the mob.
+     * @param target the UUID of the player.
+     */
+    void refuse(Mob mob, UUID target) {
+        ++refused;
+        if (cooldownTicks <= 0) {
+            return;
+        }
+        ++suppressed;
+        int untilTick = Bukkit.getCurrentTick() + cooldownTicks;
+        MobGoals goals = Bukkit.getMobGoals();
+        if (goals.getGoal(mob, key) instanceof IgnoreTargetGoal goal) {
+            goal.suppress(target, untilTick);
+        } else {
+            goals.addGoal(mob, PRIORITY, new IgnoreTargetGoal(mob, target, untilTick));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove the goal from every loaded mob, so that none is left referring
+     * to this plugin once it is disabled.
+     */
+    void removeAll() {
+        MobGoals goals = Bukkit.getMobGoals();
+        for (World world : Bukkit.getWorlds()) {
+            for (Mob mob : world.getEntitiesByClass(Mob.class)) {
+                goals.removeGoal(mob, key);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the cooldown for which a refused mob's targeting is suppressed.
+     *
+     * @return the cooldown in ticks.
+     */
+    public int getCooldownTicks() {
+        return cooldownTicks;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of target events refused.
+     *
+     * @return the number of refusals.
+     */
+    public long getRefused() {
+        return refused;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of times a mob's targeting was suppressed for the
+     * cooldown.
+     *
+     * @return the number of cooldowns started.
+     */
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The target goal holding a refused mob's target until its cooldown
+     * expires.
+     */
+    private final class IgnoreTargetGoal implements Goal<Mob> {
+
+        private final Mob mob;
+        private UUID target;
+        private int untilTick;
+
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         */
+        IgnoreTargetGoal(Mob mob, UUID target, int untilTick) {
+            this.mob = mob;
+            this.target = target;
+            this.untilTick = untilTick;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Suppress the mob's targeting again, for a newly refused player.
+         */
+        void suppress(UUID target, int untilTick) {
+            this.target = target;
+            this.untilTick = untilTick;
+        }
+
+        @Override
+        public boolean shouldActivate() {
+            return Bukkit.getCurrentTick() - untilTick < 0 && stillRefused.test(target);
+        }
+
+        @Override
+        public void start() {
+            mob.setTarget(null);
+        }
+
+        @Override
+        public GoalKey<Mob> getKey() {
+            return key;
+        }
+
+        @Override
+        public EnumSet<GoalType> getTypes() {
+            return TYPES;
+        }
+    }
+
+} // RetargetSuppressor
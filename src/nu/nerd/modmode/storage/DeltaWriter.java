@@ -0,0 +1,238 @@
+package nu.nerd.modmode.storage;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// ----------------------------------------------------------------------------
+/**
+ * Appends encoded player states to a log of generations, such as a
+ * {@link SegmentStore}, writing only the item
+ * slots that changed since the last full snapshot of the same key when that
+ * is worthwhile.
+ *
+ * For each key, the items of the last full snapshot written in this session
+ * are remembered together with their hash codes. A slot is unchanged if its
+ * item has the same hash code as the base item and is equal to it, so most
+ * unchanged slots are never serialized. A full snapshot is written instead
+ * of a delta when there is no base yet, when the base has already had the
+ * configured number of deltas written against it, or when most slots
+ * changed. Every payload is passed through a {@link SnapshotCompressor}
+ * before it is stored.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * plugin's persistence thread.
+ */
+public class DeltaWriter {
+
+    // ------------------------------------------------------------------------
+    /**
+     * Somewhere generations of encoded states are appended.
+     */
+    @FunctionalInterface
+    public interface Log {
+        /**
+         * Append a generation.
+         *
+         * @param key     the player and side.
+         * @param payload the encoded state.
+         * @param base    the generation the payload is a delta against, or 0.
+         * @return the new generation.
+         */
+        long append(PlayerStateStore.Key key, byte[] payload, long base) throws IOException;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The items of the last full snapshot of a key.
+     */
+    private static final class Base {
+        final long generation;
+        final ItemStack[] inventory;
+        final int[] inventoryHashes;
+        final ItemStack[] enderChest;
+        final int[] enderChestHashes;
+        int deltas;
+
+        Base(long generation, PlayerState state) {
+            this.generation = generation;
+            inventory = normalize(state.getInventory());
+            inventoryHashes = hashes(inventory);
+            enderChest = normalize(state.getEnderChest());
+            enderChestHashes = hashes(enderChest);
+        }
+    }
+
+    private final Map<PlayerStateStore.Key, Base> bases = new HashMap<>();
+    private final SnapshotCompressor compressor;
+    private final int fullEvery;
+
+    private long fullSnapshots;
+    private long deltaSnapshots;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param compressor compresses every payload written.
+     * @param fullEvery  the number of deltas written against a base before
+     *                   the next full snapshot; 0 to always write full
+     *                   snapshots.
+     */
+    public DeltaWriter(SnapshotCompressor compressor, int fullEvery) {
+        this.compressor = compressor;
+        this.fullEvery = Math.max(0, fullEvery);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a state to the store as a delta against its base or as a new
+     * full snapshot.
+     *
+     * @param log   where the generation is appended.
+     * @param key   the player and side.
+     * @param state the state.
+     */
+    public void write(Log log, PlayerStateStore.Key key, PlayerState state) throws IOException {
+        Base base = bases.get(key);
+        if (base != null && base.deltas < fullEvery) {
+            boolean[] inventoryChanged = changedSlots(state.getInventory(), base.inventory, base.inventoryHashes);
+            boolean[] enderChestChanged = changedSlots(state.getEnderChest(), base.enderChest,
+                    base.enderChestHashes);
+            if (inventoryChanged != null && enderChestChanged != null
+                    && count(inventoryChanged) + count(enderChestChanged)
+                       <= (inventoryChanged.length + enderChestChanged.length) / 2) {
+                byte[] delta = PlayerStateCodec.encodeDelta(state, inventoryChanged, enderChestChanged);
+                log.append(key, compressor.compress(delta), base.generation);
+                ++base.deltas;
+                ++deltaSnapshots;
+                return;
+            }
+        }
+
+        writeFull(log, key, state);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a state to the store as a full snapshot, which becomes the base
+     * of later deltas of that key.
+     *
+     * @param log   where the generation is appended.
+     * @param key   the player and side.
+     * @param state the state.
+     */
+    public void writeFull(Log log, PlayerStateStore.Key key, PlayerState state) throws IOException {
+        long generation = log.append(key, compressor.compress(PlayerStateCodec.encode(state)), 0);
+        bases.put(key, new Base(generation, state));
+        ++fullSnapshots;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decode a generation read back from the log, which may be compressed
+     * and may be a delta against the given base.
+     *
+     * @param payload the stored payload, or null.
+     * @param base    the stored payload of its base, or null.
+     * @return the state, or null if the payload is null.
+     */
+    public PlayerState read(byte[] payload, byte[] base) throws IOException {
+        if (payload == null) {
+            return null;
+        }
+        return PlayerStateCodec.decode(compressor.decompress(payload), compressor.decompress(base));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Undo the compression of a generation read back from the log, without
+     * decoding it.
+     *
+     * @param payload the stored payload, or null.
+     * @return the encoded snapshot, or null if the payload is null.
+     */
+    public byte[] decompress(byte[] payload) throws IOException {
+        return compressor.decompress(payload);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of full snapshots written.
+     *
+     * @return the number of full snapshots.
+     */
+    public long getFullCount() {
+        return fullSnapshots;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of delta snapshots written.
+     *
+     * @return the number of deltas.
+     */
+    public long getDeltaCount() {
+        return deltaSnapshots;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Flag the slots whose items differ from the base, or return null if the
+     * arrays are not the same size.
+     */
+    private static boolean[] changedSlots(ItemStack[] items, ItemStack[] baseItems, int[] baseHashes) {
+        if (items.length != baseItems.length) {
+            return null;
+        }
+        boolean[] changed = new boolean[items.length];
+        for (int slot = 0; slot < items.length; ++slot) {
+            ItemStack item = PlayerStateCodec.isEmpty(items[slot]) ? null : items[slot];
+            int hash = (item == null) ? 0 : item.hashCode();
+            changed[slot] = hash != baseHashes[slot] || !Objects.equals(item, baseItems[slot]);
+        }
+        return changed;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of flagged slots.
+     */
+    private static int count(boolean[] flags) {
+        int count = 0;
+        for (boolean flag : flags) {
+            if (flag) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of the items with empty slots replaced by null.
+     */
+    private static ItemStack[] normalize(ItemStack[] items) {
+        ItemStack[] normalized = new ItemStack[items.length];
+        for (int slot = 0; slot < items.length; ++slot) {
+            normalized[slot] = PlayerStateCodec.isEmpty(items[slot]) ? null : items[slot];
+        }
+        return normalized;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the hash code of each item, 0 for an empty slot.
+     */
+    private static int[] hashes(ItemStack[] items) {
+        int[] hashes = new int[items.length];
+        for (int slot = 0; slot < items.length; ++slot) {
+            hashes[slot] = (items[slot] == null) ? 0 : items[slot].hashCode();
+        }
+        return hashes;
+    }
+
+} // DeltaWriter
@@ -0,0 +1,228 @@
+package nu.nerd.modmode.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * Persists group membership as a YAML snapshot (members.yml) plus an
+ * append-only journal of changes made since the snapshot was written.
+ *
+ * Each journal line is either {@code JOIN <group> <uuid>} or
+ * {@code LEAVE <group> <uuid>}. Loading replays the journal over the
+ * snapshot; compaction writes a new snapshot and truncates the journal.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * plugin's I/O thread.
+ */
+public class MembershipJournal implements MembershipStore {
+
+    /**
+     * Journal record types.
+     */
+    private static final String JOIN = "JOIN";
+    private static final String LEAVE = "LEAVE";
+
+    private final File snapshotFile;
+    private final File journalFile;
+
+    /**
+     * The open journal, or null if it has not been opened since the last
+     * compaction.
+     */
+    private OutputStream journal;
+
+    /**
+     * The number of records appended since the last compaction.
+     */
+    private int records;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param snapshotFile the members.yml snapshot.
+     * @param journalFile  the journal file.
+     */
+    public MembershipJournal(File snapshotFile, File journalFile) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the snapshot and replay the journal over it.
+     *
+     * @return the members of each group, by group name.
+     */
+    @Override
+    public Map<String, Set<UUID>> load() throws IOException {
+        close();
+        Map<String, Set<UUID>> members = new LinkedHashMap<>();
+        YamlConfiguration snapshot = YamlConfiguration.loadConfiguration(snapshotFile);
+        ConfigurationSection groups = snapshot.getConfigurationSection("groups");
+        if (groups != null) {
+            for (String groupName : groups.getKeys(false)) {
+                Set<UUID> groupMembers = members.computeIfAbsent(groupName, k -> new LinkedHashSet<>());
+                for (String uuid : groups.getStringList(groupName + ".members")) {
+                    groupMembers.add(UUID.fromString(uuid));
+                }
+            }
+        }
+
+        records = replay(journalFile, members);
+        return members;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the records of a journal file to a set of group members.
+     * Unreadable lines are skipped. This uses only its arguments and so can
+     * be called from outside a running server.
+     *
+     * @param journalFile the journal file, which need not exist.
+     * @param members     the members of each group, by group name, to update.
+     * @return the number of records applied.
+     */
+    public static int replay(File journalFile, Map<String, Set<UUID>> members) throws IOException {
+        int records = 0;
+        if (journalFile.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // A torn final line from a crash is simply ignored.
+                    int first = line.indexOf(' ');
+                    int last = line.lastIndexOf(' ');
+                    if (first <= 0 || last <= first) {
+                        continue;
+                    }
+                    String op = line.substring(0, first);
+                    String groupName = line.substring(first + 1, last);
+                    UUID uuid;
+                    try {
+                        uuid = UUID.fromString(line.substring(last + 1));
+                    } catch (IllegalArgumentException ex) {
+                        continue;
+                    }
+                    Set<UUID> groupMembers = members.computeIfAbsent(groupName, k -> new LinkedHashSet<>());
+                    if (op.equals(JOIN)) {
+                        groupMembers.add(uuid);
+                    } else if (op.equals(LEAVE)) {
+                        groupMembers.remove(uuid);
+                    }
+                    ++records;
+                }
+            }
+        }
+        return records;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a record of a player joining a group.
+     *
+     * @param groupName the group name.
+     * @param uuid      the player's UUID.
+     */
+    @Override
+    public void join(String groupName, UUID uuid) throws IOException {
+        append(JOIN, groupName, uuid);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a record of a player leaving a group.
+     *
+     * @param groupName the group name.
+     * @param uuid      the player's UUID.
+     */
+    @Override
+    public void leave(String groupName, UUID uuid) throws IOException {
+        append(LEAVE, groupName, uuid);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the journal holds records that are not yet part of the
+     * snapshot.
+     *
+     * @return true if the journal is not empty.
+     */
+    @Override
+    public boolean hasRecords() {
+        return records > 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a new snapshot of all group members and truncate the journal.
+     *
+     * The snapshot is written to a temporary file and moved into place, so a
+     * crash leaves either the old snapshot and journal or the new snapshot.
+     *
+     * @param members the members of each group, by group name.
+     */
+    @Override
+    public void compact(Map<String, ? extends Iterable<UUID>> members) throws IOException {
+        YamlConfiguration snapshot = new YamlConfiguration();
+        for (Map.Entry<String, ? extends Iterable<UUID>> entry : members.entrySet()) {
+            List<String> uuidStrings = new ArrayList<>();
+            for (UUID uuid : entry.getValue()) {
+                uuidStrings.add(uuid.toString());
+            }
+            snapshot.set("groups." + entry.getKey() + ".members", uuidStrings);
+        }
+
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        snapshot.save(tempFile);
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        close();
+        Files.deleteIfExists(journalFile.toPath());
+        records = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Close the journal file if it is open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a single record and flush it to the file.
+     */
+    private void append(String op, String groupName, UUID uuid) throws IOException {
+        if (journal == null) {
+            journalFile.getParentFile().mkdirs();
+            journal = new FileOutputStream(journalFile, true);
+        }
+        journal.write((op + " " + groupName + " " + uuid + "\n").getBytes(StandardCharsets.UTF_8));
+        journal.flush();
+        ++records;
+    }
+
+} // MembershipJournal
@@ -0,0 +1,66 @@
+package nu.nerd.modmode.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * Persists the members of each group.
+ *
+ * Implementations are not expected to be thread-safe. All calls are made
+ * from the plugin's persistence thread.
+ */
+public interface MembershipStore {
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the members of every group.
+     *
+     * @return the members of each group, by group name.
+     */
+    Map<String, Set<UUID>> load() throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a player joining a group.
+     *
+     * @param groupName the group name.
+     * @param uuid      the player's UUID.
+     */
+    void join(String groupName, UUID uuid) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a player leaving a group.
+     *
+     * @param groupName the group name.
+     * @param uuid      the player's UUID.
+     */
+    void leave(String groupName, UUID uuid) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if changes have been recorded in a form that
+     * {@link #compact} would make smaller or faster to load.
+     *
+     * @return true if compaction would help.
+     */
+    boolean hasRecords();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace everything stored with the given members.
+     *
+     * @param members the members of each group, by group name.
+     */
+    void compact(Map<String, ? extends Iterable<UUID>> members) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Close the store.
+     */
+    void close() throws IOException;
+
+} // MembershipStore
@@ -0,0 +1,314 @@
+package nu.nerd.modmode.storage;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// ----------------------------------------------------------------------------
+/**
+ * Owns a single thread on which all of the plugin's files are read and
+ * written.
+ *
+ * Two kinds of work are queued:
+ * <ul>
+ * <li>Write intents, keyed by the file (or other record) they write. A
+ * write intent replaces any intent with the same key that has not yet been
+ * flushed, and is flushed at most one flush interval after the first
+ * unflushed intent for that key was queued.</li>
+ * <li>Tasks, which run in submission order. Before a task that names a key
+ * runs, any pending write intent for that key is flushed, so a task always
+ * observes the latest write.</li>
+ * </ul>
+ *
+ * The number of queued tasks and distinct pending keys is bounded. When the
+ * bound is reached, callers wait for the thread to catch up rather than
+ * growing the queue without limit.
+ */
+public class PersistenceService {
+
+    // ------------------------------------------------------------------------
+    /**
+     * A unit of I/O work.
+     */
+    @FunctionalInterface
+    public interface IOTask<T> {
+        T run() throws Exception;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A queued task and the key it relates to, if any.
+     */
+    private record Task(Object key, Runnable body) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A pending write, with the time by which it must be flushed.
+     */
+    private record Intent(IOTask<?> writer, long dueNanos) {
+    }
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+    private final LinkedHashMap<Object, Intent> intents = new LinkedHashMap<>();
+    private final int capacity;
+    private final long flushIntervalNanos;
+    private final Consumer<String> errorLog;
+    private final Thread thread;
+
+    /**
+     * Set when shutdown has begun; no further work is accepted and pending
+     * writes are flushed without waiting for their interval.
+     */
+    private boolean stopping;
+
+    /**
+     * The number of write intents that replaced an earlier unflushed intent.
+     */
+    private long coalesced;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor. Starts the persistence thread.
+     *
+     * @param name          the name of the thread.
+     * @param capacity      the maximum number of queued tasks plus pending
+     *                      keys.
+     * @param flushInterval the longest time, in milliseconds, that a write
+     *                      may be held back to be coalesced.
+     * @param errorLog      receives messages about failed writes.
+     */
+    public PersistenceService(String name, int capacity, long flushInterval, Consumer<String> errorLog) {
+        this.capacity = Math.max(1, capacity);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushInterval));
+        this.errorLog = errorLog;
+        thread = new Thread(this::runLoop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a write, replacing any write with the same key that has not yet
+     * been flushed.
+     *
+     * @param key    identifies what is written; usually the File.
+     * @param writer performs the write on the persistence thread.
+     */
+    public void write(Object key, IOTask<?> writer) {
+        synchronized (lock) {
+            if (!accepting()) {
+                return;
+            }
+            Intent previous = intents.get(key);
+            if (previous != null) {
+                intents.put(key, new Intent(writer, previous.dueNanos()));
+                ++coalesced;
+            } else {
+                awaitSpace();
+                intents.put(key, new Intent(writer, System.nanoTime() + flushIntervalNanos));
+            }
+            lock.notifyAll();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a task, to run after any pending write with the given key.
+     *
+     * @param key  identifies what the task reads or writes, or null.
+     * @param task the task.
+     * @return a future that completes, on the persistence thread, with the
+     *         task's result.
+     */
+    public <T> CompletableFuture<T> submit(Object key, IOTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable body = () -> {
+            try {
+                future.complete(task.run());
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            }
+        };
+        synchronized (lock) {
+            if (!accepting()) {
+                future.completeExceptionally(new IllegalStateException("persistence service is stopped"));
+                return future;
+            }
+            awaitSpace();
+            tasks.add(new Task(key, body));
+            lock.notifyAll();
+        }
+        return future;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a task whose result is not needed. Failures are logged.
+     *
+     * @param key         identifies what the task reads or writes, or null.
+     * @param description what the task does, for the error log.
+     * @param task        the task.
+     */
+    public void execute(Object key, String description, IOTask<?> task) {
+        submit(key, task).exceptionally(ex -> {
+            errorLog.accept("Failed to " + description + ": " + ex.getMessage());
+            return null;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop accepting work, flush everything that is queued and wait for the
+     * persistence thread to finish.
+     *
+     * @param timeout the longest time to wait, in milliseconds.
+     * @return true if everything was written before the timeout.
+     */
+    public boolean shutdown(long timeout) {
+        synchronized (lock) {
+            stopping = true;
+            lock.notifyAll();
+        }
+        try {
+            thread.join(Math.max(1, timeout));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            synchronized (lock) {
+                errorLog.accept("Gave up waiting for " + (tasks.size() + intents.size()) + " queued writes.");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of writes that were merged into a later write with
+     * the same key.
+     *
+     * @return the number of coalesced writes.
+     */
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalesced;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if work may be queued, logging if not. Called with the lock
+     * held.
+     */
+    private boolean accepting() {
+        if (stopping) {
+            errorLog.accept("Write attempted after the persistence service was stopped.");
+            return false;
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wait until there is room for another task or pending key. Called with
+     * the lock held, from a thread other than the persistence thread.
+     */
+    private void awaitSpace() {
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        boolean warned = false;
+        while (tasks.size() + intents.size() >= capacity && thread.isAlive()) {
+            if (!warned) {
+                errorLog.accept("Persistence queue is full; waiting for the disk to catch up.");
+                warned = true;
+            }
+            try {
+                lock.wait(100);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The body of the persistence thread.
+     */
+    private void runLoop() {
+        while (true) {
+            Task task = null;
+            IOTask<?> writer = null;
+            Object writerKey = null;
+            synchronized (lock) {
+                while (task == null && writer == null) {
+                    task = tasks.poll();
+                    if (task != null) {
+                        // Flush a pending write with the same key first.
+                        if (task.key() != null) {
+                            Intent intent = intents.remove(task.key());
+                            if (intent != null) {
+                                writer = intent.writer();
+                                writerKey = task.key();
+                            }
+                        }
+                        break;
+                    }
+
+                    long now = System.nanoTime();
+                    long nextDue = Long.MAX_VALUE;
+                    Iterator<Map.Entry<Object, Intent>> it = intents.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<Object, Intent> entry = it.next();
+                        if (stopping || entry.getValue().dueNanos() - now <= 0) {
+                            writer = entry.getValue().writer();
+                            writerKey = entry.getKey();
+                            it.remove();
+                            break;
+                        }
+                        nextDue = Math.min(nextDue, entry.getValue().dueNanos());
+                    }
+                    if (writer != null) {
+                        break;
+                    }
+                    if (stopping) {
+                        return;
+                    }
+
+                    try {
+                        if (nextDue == Long.MAX_VALUE) {
+                            lock.wait();
+                        } else {
+                            long waitMillis = TimeUnit.NANOSECONDS.toMillis(nextDue - now);
+                            lock.wait(Math.max(1, waitMillis));
+                        }
+                    } catch (InterruptedException ex) {
+                        // Only shutdown() should stop this thread.
+                    }
+                }
+                // Wake any producer waiting for space.
+                lock.notifyAll();
+            }
+
+            if (writer != null) {
+                try {
+                    writer.run();
+                } catch (Throwable ex) {
+                    errorLog.accept("Failed to write " + writerKey + ": " + ex.getMessage());
+                }
+            }
+            if (task != null) {
+                task.body().run();
+            }
+        }
+    }
+
+} // PersistenceService
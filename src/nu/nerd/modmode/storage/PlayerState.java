@@ -0,0 +1,321 @@
+package nu.nerd.modmode.storage;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Statistic;
+import org.bukkit.attribute.Attribute;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.potion.PotionEffect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable copy of the parts of a player's state that are swapped when
+ * entering or leaving a mode.
+ *
+ * Instances are captured on the main thread and may then be handed to any
+ * thread for serialization. Applying a state back onto a player must happen
+ * on the main thread.
+ */
+public final class PlayerState {
+
+    private final double health;
+    private final int food;
+    private final float experience;
+    private final int fireTicks;
+    private final float fallDistance;
+    private final int awakeTicks;
+
+    private final String world;
+    private final double x;
+    private final double y;
+    private final double z;
+    private final float pitch;
+    private final float yaw;
+
+    private final List<PotionEffect> potions;
+    private final ItemStack[] inventory;
+    private final ItemStack[] enderChest;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public PlayerState(double health, int food, float experience, int fireTicks, float fallDistance, int awakeTicks,
+                       String world, double x, double y, double z, float pitch, float yaw,
+                       List<PotionEffect> potions, ItemStack[] inventory, ItemStack[] enderChest) {
+        this.health = health;
+        this.food = food;
+        this.experience = experience;
+        this.fireTicks = fireTicks;
+        this.fallDistance = fallDistance;
+        this.awakeTicks = awakeTicks;
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.pitch = pitch;
+        this.yaw = yaw;
+        this.potions = Collections.unmodifiableList(new ArrayList<>(potions));
+        this.inventory = inventory;
+        this.enderChest = enderChest;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Take a snapshot of the player's current state. Must be called on the
+     * main thread.
+     *
+     * @param player the player.
+     * @return the snapshot.
+     */
+    public static PlayerState capture(Player player) {
+        Location location = player.getLocation();
+        return new PlayerState(player.getHealth(), player.getFoodLevel(), player.getLevel() + player.getExp(),
+                player.getFireTicks(), player.getFallDistance(), player.getStatistic(Statistic.TIME_SINCE_REST),
+                location.getWorld().getName(), location.getX(), location.getY(), location.getZ(),
+                location.getPitch(), location.getYaw(), new ArrayList<>(player.getActivePotionEffects()),
+                copyOf(player.getInventory().getContents()), copyOf(player.getEnderChest().getContents()));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply this state to the player. Must be called on the main thread.
+     *
+     * @param player          the player.
+     * @param restoreLocation true if the player should be teleported back to
+     *                        the saved location.
+     */
+    public void apply(Player player, boolean restoreLocation) {
+        final double MAX_HEALTH = player.getAttribute(Attribute.GENERIC_MAX_HEALTH).getValue();
+        player.setHealth(Math.min(MAX_HEALTH, health));
+        player.setFoodLevel(food);
+        player.setLevel((int) Math.floor(experience));
+        player.setExp(experience - player.getLevel());
+        player.setFireTicks(fireTicks);
+        player.setFallDistance(fallDistance);
+        player.setStatistic(Statistic.TIME_SINCE_REST, awakeTicks);
+
+        if (restoreLocation) {
+            player.teleport(new Location(Bukkit.getWorld(world), x, y, z, yaw, pitch));
+        }
+
+        for (PotionEffect potion : player.getActivePotionEffects()) {
+            player.removePotionEffect(potion.getType());
+        }
+        player.addPotionEffects(potions);
+
+        PlayerInventory playerInventory = player.getInventory();
+        playerInventory.clear();
+        for (int slot = 0; slot < inventory.length && slot < playerInventory.getSize(); ++slot) {
+            playerInventory.setItem(slot, inventory[slot]);
+        }
+
+        player.getEnderChest().clear();
+        for (int slot = 0; slot < enderChest.length && slot < player.getEnderChest().getSize(); ++slot) {
+            player.getEnderChest().setItem(slot, enderChest[slot]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write this state into a YAML configuration using the layout of the
+     * original per-player state files.
+     *
+     * @param config the configuration to write to.
+     */
+    public void save(YamlConfiguration config) {
+        config.set("health", health);
+        config.set("food", food);
+        config.set("experience", (double) experience);
+        config.set("fireticks", fireTicks);
+        config.set("falldistance", (double) fallDistance);
+        config.set("awaketicks", awakeTicks);
+
+        config.set("world", world);
+        config.set("x", x);
+        config.set("y", y);
+        config.set("z", z);
+        config.set("pitch", (double) pitch);
+        config.set("yaw", (double) yaw);
+
+        // Armour and off-hand are also part of the inventory contents, but are
+        // kept as separate keys so older versions can still read the file.
+        config.set("helmet", itemAt(inventory, 39));
+        config.set("chestplate", itemAt(inventory, 38));
+        config.set("leggings", itemAt(inventory, 37));
+        config.set("boots", itemAt(inventory, 36));
+        config.set("off-hand", itemAt(inventory, 40));
+
+        for (PotionEffect potion : potions) {
+            config.set("potions." + potion.getType().getName(), potion);
+        }
+        for (int slot = 0; slot < inventory.length; ++slot) {
+            config.set("inventory." + slot, inventory[slot]);
+        }
+        for (int slot = 0; slot < enderChest.length; ++slot) {
+            config.set("enderchest." + slot, enderChest[slot]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a state from a YAML configuration written by {@link #save}.
+     *
+     * @param config the configuration to read from.
+     * @return the state.
+     */
+    public static PlayerState load(YamlConfiguration config) {
+        ItemStack[] inventory = new ItemStack[41];
+        inventory[39] = config.getItemStack("helmet");
+        inventory[38] = config.getItemStack("chestplate");
+        inventory[37] = config.getItemStack("leggings");
+        inventory[36] = config.getItemStack("boots");
+        inventory[40] = config.getItemStack("off-hand");
+        readSlots(config.getConfigurationSection("inventory"), inventory);
+
+        ItemStack[] enderChest = new ItemStack[27];
+        readSlots(config.getConfigurationSection("enderchest"), enderChest);
+
+        List<PotionEffect> potions = new ArrayList<>();
+        ConfigurationSection potionSection = config.getConfigurationSection("potions");
+        if (potionSection != null) {
+            for (String key : potionSection.getKeys(false)) {
+                if (potionSection.get(key) instanceof PotionEffect potion) {
+                    potions.add(potion);
+                }
+            }
+        }
+
+        return new PlayerState(config.getDouble("health"), config.getInt("food"),
+                (float) config.getDouble("experience"), config.getInt("fireticks"),
+                (float) config.getDouble("falldistance"), config.getInt("awaketicks"),
+                config.getString("world"), config.getDouble("x"), config.getDouble("y"), config.getDouble("z"),
+                (float) config.getDouble("pitch"), (float) config.getDouble("yaw"),
+                potions, inventory, enderChest);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy numbered item slots from a configuration section into an array,
+     * ignoring keys that are not valid slot numbers.
+     */
+    private static void readSlots(ConfigurationSection section, ItemStack[] slots) {
+        if (section == null) {
+            return;
+        }
+        for (String key : section.getKeys(false)) {
+            try {
+                int slot = Integer.parseInt(key);
+                if (slot >= 0 && slot < slots.length) {
+                    slots[slot] = section.getItemStack(key);
+                }
+            } catch (NumberFormatException ex) {
+                // Not a slot; skip it.
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a deep copy of an array of items so that later changes to the
+     * live inventory are not visible through the snapshot.
+     */
+    private static ItemStack[] copyOf(ItemStack[] items) {
+        ItemStack[] copy = new ItemStack[items.length];
+        for (int i = 0; i < items.length; ++i) {
+            copy[i] = (items[i] == null) ? null : items[i].clone();
+        }
+        return copy;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the item at the given slot, or null if the slot is out of range.
+     */
+    private static ItemStack itemAt(ItemStack[] items, int slot) {
+        return (slot < items.length) ? items[slot] : null;
+    }
+
+    /*
+    ------------------------------------------------------------------------
+    GETTERS
+    ------------------------------------------------------------------------
+     */
+
+    public double getHealth() {
+        return health;
+    }
+
+    public int getFood() {
+        return food;
+    }
+
+    public float getExperience() {
+        return experience;
+    }
+
+    public int getFireTicks() {
+        return fireTicks;
+    }
+
+    public float getFallDistance() {
+        return fallDistance;
+    }
+
+    public int getAwakeTicks() {
+        return awakeTicks;
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    public float getPitch() {
+        return pitch;
+    }
+
+    public float getYaw() {
+        return yaw;
+    }
+
+    public List<PotionEffect> getPotions() {
+        return potions;
+    }
+
+    /**
+     * Returns the inventory contents. The array must not be modified.
+     * @return the inventory contents.
+     */
+    public ItemStack[] getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Returns the ender chest contents. The array must not be modified.
+     * @return the ender chest contents.
+     */
+    public ItemStack[] getEnderChest() {
+        return enderChest;
+    }
+
+} // PlayerState
@@ -0,0 +1,413 @@
+package nu.nerd.modmode.storage;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// ----------------------------------------------------------------------------
+/**
+ * Encodes and decodes {@link PlayerState} instances in ModMode's binary
+ * snapshot format.
+ *
+ * All values are big-endian, as written by {@link DataOutputStream}:
+ * <pre>
+ * int    magic ("MMPS")
+ * byte   version
+ * byte   kind (0 for a full snapshot, 1 for a delta; absent in version 1)
+ * double health, int food, float experience, int fire ticks,
+ * float  fall distance, int awake ticks
+ * UTF    world, double x, y, z, float pitch, yaw
+ * int    effect count, then per effect:
+ *        UTF type key, int duration, int amplifier, byte flags
+ * items  inventory, then ender chest, each as:
+ *        short size, short count, then per non-empty slot:
+ *        short slot, int length, byte[length] Paper item bytes
+ * </pre>
+ * A delta holds only the item slots that differ from a full base snapshot,
+ * with a length of -1 for a slot that is empty in the delta but not in the
+ * base. Every other field is always written in full.
+ */
+public final class PlayerStateCodec {
+
+    /**
+     * The first four bytes of every snapshot: "MMPS".
+     */
+    public static final int MAGIC = 0x4D4D5053;
+
+    /**
+     * The current format version.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Snapshot kinds.
+     */
+    private static final int KIND_FULL = 0;
+    private static final int KIND_DELTA = 1;
+
+    /**
+     * Potion effect flag bits.
+     */
+    private static final int FLAG_AMBIENT = 1;
+    private static final int FLAG_PARTICLES = 2;
+    private static final int FLAG_ICON = 4;
+
+    // ------------------------------------------------------------------------
+    /**
+     * The contents of a snapshot as read by {@link #inspect}, with potion
+     * effects as their type keys and items as their undecoded Paper bytes.
+     */
+    public record Summary(int version, boolean delta, double health, int food, float experience, int fireTicks,
+                          float fallDistance, int awakeTicks, String world, double x, double y, double z,
+                          float pitch, float yaw, List<String> effects, int inventorySize, int enderChestSize,
+                          List<byte[]> items, int clearedSlots) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The fields of a snapshot before its potion effects.
+     */
+    private record Header(int version, int kind, double health, int food, float experience, int fireTicks,
+                          float fallDistance, int awakeTicks, String world, double x, double y, double z,
+                          float pitch, float yaw) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Not instantiable.
+     */
+    private PlayerStateCodec() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode the state as a full binary snapshot.
+     *
+     * @param state the state.
+     * @return the encoded bytes.
+     */
+    public static byte[] encode(PlayerState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, state, KIND_FULL);
+        writeItems(out, state.getInventory());
+        writeItems(out, state.getEnderChest());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode the state as a delta snapshot, holding only the item slots
+     * flagged as changed relative to the base it will be decoded against.
+     *
+     * @param state             the state.
+     * @param inventoryChanged  the changed inventory slots.
+     * @param enderChestChanged the changed ender chest slots.
+     * @return the encoded bytes.
+     */
+    public static byte[] encodeDelta(PlayerState state, boolean[] inventoryChanged, boolean[] enderChestChanged)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, state, KIND_DELTA);
+        writeChangedItems(out, state.getInventory(), inventoryChanged);
+        writeChangedItems(out, state.getEnderChest(), enderChestChanged);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decode a full binary snapshot.
+     *
+     * @param data the encoded bytes.
+     * @return the state.
+     * @throws IOException if the data is truncated, not a snapshot or a
+     *                     delta.
+     */
+    public static PlayerState decode(byte[] data) throws IOException {
+        return decode(data, null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decode a binary snapshot, which may be a delta against a full base.
+     *
+     * @param data the encoded bytes.
+     * @param base the encoded base snapshot if the data is a delta, or null.
+     * @return the state.
+     * @throws IOException if the data is truncated, not a snapshot, or a
+     *                     delta without a full base.
+     */
+    public static PlayerState decode(byte[] data, byte[] base) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Header header = readHeader(in);
+
+        int potionCount = in.readInt();
+        List<PotionEffect> potions = new ArrayList<>(potionCount);
+        for (int i = 0; i < potionCount; ++i) {
+            String key = in.readUTF();
+            int duration = in.readInt();
+            int amplifier = in.readInt();
+            int flags = in.readUnsignedByte();
+            NamespacedKey namespacedKey = NamespacedKey.fromString(key);
+            PotionEffectType type = (namespacedKey != null) ? PotionEffectType.getByKey(namespacedKey) : null;
+            if (type != null) {
+                potions.add(new PotionEffect(type, duration, amplifier, (flags & FLAG_AMBIENT) != 0,
+                        (flags & FLAG_PARTICLES) != 0, (flags & FLAG_ICON) != 0));
+            }
+        }
+
+        ItemStack[] inventory;
+        ItemStack[] enderChest;
+        if (header.kind() == KIND_FULL) {
+            inventory = readItems(in);
+            enderChest = readItems(in);
+        } else {
+            if (base == null) {
+                throw new IOException("delta snapshot without a base");
+            }
+            PlayerState baseState = decode(base, null);
+            inventory = readChangedItems(in, baseState.getInventory());
+            enderChest = readChangedItems(in, baseState.getEnderChest());
+        }
+        return new PlayerState(header.health(), header.food(), header.experience(), header.fireTicks(),
+                header.fallDistance(), header.awakeTicks(), header.world(), header.x(), header.y(), header.z(),
+                header.pitch(), header.yaw(), potions, inventory, enderChest);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the structure of a binary snapshot without decoding its items or
+     * potion effects. Unlike {@link #decode}, this does not use the server
+     * and so can be called from outside a running server.
+     *
+     * @param data the encoded bytes.
+     * @return the contents of the snapshot.
+     * @throws IOException if the data is truncated or not a snapshot.
+     */
+    public static Summary inspect(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Header header = readHeader(in);
+
+        int potionCount = in.readInt();
+        List<String> effects = new ArrayList<>();
+        for (int i = 0; i < potionCount; ++i) {
+            effects.add(in.readUTF());
+            in.skipNBytes(4 + 4 + 1);
+        }
+
+        List<byte[]> items = new ArrayList<>();
+        int cleared = 0;
+        int[] sizes = new int[2];
+        for (int array = 0; array < sizes.length; ++array) {
+            sizes[array] = in.readUnsignedShort();
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; ++i) {
+                int slot = in.readUnsignedShort();
+                int length = in.readInt();
+                if (slot >= sizes[array]) {
+                    throw new IOException("item slot " + slot + " out of range");
+                }
+                if (length == -1 && header.kind() == KIND_DELTA) {
+                    ++cleared;
+                } else {
+                    items.add(readItemBytes(in, slot, length));
+                }
+            }
+        }
+        if (in.available() != 0) {
+            throw new IOException(in.available() + " unexpected bytes after the items");
+        }
+        return new Summary(header.version(), header.kind() == KIND_DELTA, header.health(), header.food(),
+                header.experience(), header.fireTicks(), header.fallDistance(), header.awakeTicks(), header.world(),
+                header.x(), header.y(), header.z(), header.pitch(), header.yaw(), effects, sizes[0], sizes[1],
+                items, cleared);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read and check the fields before the potion effects.
+     */
+    private static Header readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a ModMode player state snapshot");
+        }
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        int kind = (version >= 2) ? in.readUnsignedByte() : KIND_FULL;
+        if (kind != KIND_FULL && kind != KIND_DELTA) {
+            throw new IOException("unsupported snapshot kind " + kind);
+        }
+        return new Header(version, kind, in.readDouble(), in.readInt(), in.readFloat(), in.readInt(),
+                in.readFloat(), in.readInt(), in.readUTF(), in.readDouble(), in.readDouble(), in.readDouble(),
+                in.readFloat(), in.readFloat());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write everything but the items.
+     */
+    private static void writeHeader(DataOutputStream out, PlayerState state, int kind) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(kind);
+
+        out.writeDouble(state.getHealth());
+        out.writeInt(state.getFood());
+        out.writeFloat(state.getExperience());
+        out.writeInt(state.getFireTicks());
+        out.writeFloat(state.getFallDistance());
+        out.writeInt(state.getAwakeTicks());
+
+        out.writeUTF(state.getWorld());
+        out.writeDouble(state.getX());
+        out.writeDouble(state.getY());
+        out.writeDouble(state.getZ());
+        out.writeFloat(state.getPitch());
+        out.writeFloat(state.getYaw());
+
+        List<PotionEffect> potions = state.getPotions();
+        out.writeInt(potions.size());
+        for (PotionEffect potion : potions) {
+            out.writeUTF(potion.getType().getKey().toString());
+            out.writeInt(potion.getDuration());
+            out.writeInt(potion.getAmplifier());
+            int flags = (potion.isAmbient() ? FLAG_AMBIENT : 0)
+                    | (potion.hasParticles() ? FLAG_PARTICLES : 0)
+                    | (potion.hasIcon() ? FLAG_ICON : 0);
+            out.writeByte(flags);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an array of items, omitting empty slots.
+     */
+    private static void writeItems(DataOutputStream out, ItemStack[] items) throws IOException {
+        int count = 0;
+        for (ItemStack item : items) {
+            if (!isEmpty(item)) {
+                ++count;
+            }
+        }
+        out.writeShort(items.length);
+        out.writeShort(count);
+        for (int slot = 0; slot < items.length; ++slot) {
+            if (!isEmpty(items[slot])) {
+                byte[] itemBytes = items[slot].serializeAsBytes();
+                out.writeShort(slot);
+                out.writeInt(itemBytes.length);
+                out.write(itemBytes);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read an array of items written by {@link #writeItems}.
+     */
+    private static ItemStack[] readItems(DataInputStream in) throws IOException {
+        ItemStack[] items = new ItemStack[in.readUnsignedShort()];
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; ++i) {
+            int slot = in.readUnsignedShort();
+            int length = in.readInt();
+            if (slot >= items.length) {
+                throw new IOException("item slot " + slot + " out of range");
+            }
+            items[slot] = ItemStack.deserializeBytes(readItemBytes(in, slot, length));
+        }
+        return items;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the flagged slots of an array of items.
+     */
+    private static void writeChangedItems(DataOutputStream out, ItemStack[] items, boolean[] changed)
+            throws IOException {
+        int count = 0;
+        for (boolean slotChanged : changed) {
+            if (slotChanged) {
+                ++count;
+            }
+        }
+        out.writeShort(items.length);
+        out.writeShort(count);
+        for (int slot = 0; slot < items.length; ++slot) {
+            if (changed[slot]) {
+                out.writeShort(slot);
+                if (isEmpty(items[slot])) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] itemBytes = items[slot].serializeAsBytes();
+                    out.writeInt(itemBytes.length);
+                    out.write(itemBytes);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the slots written by {@link #writeChangedItems} over a copy of the
+     * base items.
+     */
+    private static ItemStack[] readChangedItems(DataInputStream in, ItemStack[] baseItems) throws IOException {
+        int size = in.readUnsignedShort();
+        if (size != baseItems.length) {
+            throw new IOException("delta has " + size + " slots but its base has " + baseItems.length);
+        }
+        ItemStack[] items = baseItems.clone();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; ++i) {
+            int slot = in.readUnsignedShort();
+            int length = in.readInt();
+            if (slot >= items.length) {
+                throw new IOException("item slot " + slot + " out of range");
+            }
+            if (length == -1) {
+                items[slot] = null;
+            } else {
+                items[slot] = ItemStack.deserializeBytes(readItemBytes(in, slot, length));
+            }
+        }
+        return items;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the Paper bytes of one item, checking the length read before them
+     * against what remains of the snapshot.
+     */
+    private static byte[] readItemBytes(DataInputStream in, int slot, int length) throws IOException {
+        if (length < 0 || length > in.available()) {
+            throw new IOException("item slot " + slot + " has invalid length " + length);
+        }
+        byte[] itemBytes = new byte[length];
+        in.readFully(itemBytes);
+        return itemBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the item cannot be serialized because it is empty.
+     */
+    static boolean isEmpty(ItemStack item) {
+        return item == null || item.getType().isAir() || item.getAmount() <= 0;
+    }
+
+} // PlayerStateCodec
@@ -0,0 +1,120 @@
+package nu.nerd.modmode.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * Persists the normal and mode states of players, keeping one or more
+ * generations of each.
+ *
+ * Implementations are not expected to be thread-safe. All calls are made
+ * from the plugin's persistence thread.
+ */
+public interface PlayerStateStore {
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies one side of one player's state.
+     */
+    record Key(UUID uuid, boolean isMode) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Describes a retained generation of a player's state.
+     *
+     * @param generation the generation number, increasing with each write.
+     * @param timestamp  when it was written, in milliseconds since the epoch.
+     * @param length     the number of bytes stored.
+     * @param base       the generation this one stores the changes since, or
+     *                   0 if it is self-contained.
+     */
+    record Generation(long generation, long timestamp, int length, long base) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open the store, creating it if necessary.
+     */
+    void open() throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a new generation of a state. The store may record it as changes
+     * since an earlier generation.
+     *
+     * @param key   the player and side.
+     * @param state the state.
+     */
+    void write(Key key, PlayerState state) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a new, self-contained generation of a state.
+     *
+     * @param key   the player and side.
+     * @param state the state.
+     */
+    void writeFull(Key key, PlayerState state) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a retained generation of a state.
+     *
+     * @param key  the player and side.
+     * @param back 0 for the latest generation, 1 for the one before, etc.
+     * @return the state, or null if there is no such generation.
+     */
+    PlayerState read(Key key, int back) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the latest generation of a state as uncompressed binary snapshot
+     * bytes, without decoding its items. A delta is returned as it is, not
+     * applied to its base.
+     *
+     * @param key the player and side.
+     * @return the snapshot bytes, or null if there is no generation or the
+     *         store does not keep binary snapshots.
+     */
+    byte[] readEncoded(Key key) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the retained generations of a state, latest first.
+     *
+     * @param key the player and side.
+     * @return the generations.
+     */
+    List<Generation> history(Key key) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return every key with at least one retained generation.
+     *
+     * @return the keys.
+     */
+    List<Key> keys() throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Make everything written so far durable.
+     */
+    void flush() throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Do periodic housekeeping, such as reclaiming space used by generations
+     * that are no longer retained.
+     */
+    void maintain() throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Flush and close the store.
+     */
+    void close() throws IOException;
+
+} // PlayerStateStore
@@ -0,0 +1,83 @@
+package nu.nerd.modmode.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+// ----------------------------------------------------------------------------
+/**
+ * The default {@link PlayerStateStore}: compressed full and delta snapshots
+ * in memory-mapped segment files under players/segments.
+ */
+public class SegmentStateStore implements PlayerStateStore {
+
+    private final SegmentStore segments;
+    private final DeltaWriter deltaWriter;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param directory   the directory holding the segment files.
+     * @param generations the number of generations to retain per key.
+     * @param deltaWriter encodes and compresses written states.
+     * @param errorLog    receives messages about damaged segments.
+     */
+    public SegmentStateStore(File directory, int generations, DeltaWriter deltaWriter, Consumer<String> errorLog) {
+        segments = new SegmentStore(directory, generations, errorLog);
+        this.deltaWriter = deltaWriter;
+    }
+
+    @Override
+    public void open() throws IOException {
+        segments.open();
+    }
+
+    @Override
+    public void write(Key key, PlayerState state) throws IOException {
+        deltaWriter.write(segments::append, key, state);
+    }
+
+    @Override
+    public void writeFull(Key key, PlayerState state) throws IOException {
+        deltaWriter.writeFull(segments::append, key, state);
+    }
+
+    @Override
+    public PlayerState read(Key key, int back) throws IOException {
+        byte[] payload = segments.read(key, back);
+        return (payload != null) ? deltaWriter.read(payload, segments.readBase(key, back)) : null;
+    }
+
+    @Override
+    public byte[] readEncoded(Key key) throws IOException {
+        return deltaWriter.decompress(segments.read(key, 0));
+    }
+
+    @Override
+    public List<Generation> history(Key key) {
+        return segments.history(key);
+    }
+
+    @Override
+    public List<Key> keys() {
+        return segments.keys();
+    }
+
+    @Override
+    public void flush() {
+        // Every record is forced to disk as it is written.
+    }
+
+    @Override
+    public void maintain() throws IOException {
+        segments.compact();
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments.close();
+    }
+
+} // SegmentStateStore
@@ -0,0 +1,604 @@
+package nu.nerd.modmode.storage;
+
+import nu.nerd.modmode.storage.PlayerStateStore.Generation;
+import nu.nerd.modmode.storage.PlayerStateStore.Key;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// ----------------------------------------------------------------------------
+/**
+ * Stores every encoded player state snapshot in a small number of
+ * memory-mapped, append-only segment files, keeping the most recent
+ * generations of each player's normal and mode state.
+ *
+ * Each record is laid out as:
+ * <pre>
+ * int    magic ("MMSD")
+ * int    payload length
+ * int    CRC32 of everything after this field
+ * long   UUID most significant bits
+ * long   UUID least significant bits
+ * byte   side (1 for mode, 0 for normal)
+ * long   generation
+ * long   timestamp (milliseconds since the epoch)
+ * long   base generation (0 if the payload is self-contained)
+ * byte[] payload
+ * </pre>
+ * Records written before base generations were recorded have the magic
+ * "MMSR" and no base generation field, and are read as self-contained.
+ * A segment ends at the first position that does not hold a complete record
+ * with a valid checksum, so a record torn by a crash is ignored.
+ *
+ * An in-memory index maps each (UUID, side) to its retained generations,
+ * oldest first. A generation older than the retention limit is still
+ * retained while a retained generation names it as its base. Records that
+ * fall out of the index are dead; segments that
+ * are mostly dead are compacted by copying their live records into the
+ * active segment and deleting the file. Segments are unmapped as soon as
+ * they are closed or compacted, rather than when their buffers are garbage
+ * collected.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * plugin's persistence thread.
+ */
+public class SegmentStore {
+
+    // ------------------------------------------------------------------------
+    /**
+     * The location of a record.
+     */
+    private static final class Entry {
+        final long generation;
+        final long timestamp;
+        final long base;
+        Segment segment;
+        int offset;
+        int headerSize;
+        final int length;
+
+        Entry(long generation, long timestamp, long base, Segment segment, int offset, int headerSize, int length) {
+            this.generation = generation;
+            this.timestamp = timestamp;
+            this.base = base;
+            this.segment = segment;
+            this.offset = offset;
+            this.headerSize = headerSize;
+            this.length = length;
+        }
+
+        int size() {
+            return headerSize + length;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * An open segment file.
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        int liveBytes;
+
+        Segment(int id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    /**
+     * The first four bytes of every record: "MMSD".
+     */
+    public static final int RECORD_MAGIC = 0x4D4D5344;
+
+    /**
+     * The first four bytes of records without a base generation: "MMSR".
+     */
+    public static final int LEGACY_RECORD_MAGIC = 0x4D4D5352;
+
+    /**
+     * The size of a record header in bytes.
+     */
+    public static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 1 + 8 + 8 + 8;
+
+    /**
+     * The size of a record header without a base generation, in bytes.
+     */
+    public static final int LEGACY_HEADER_SIZE = HEADER_SIZE - 8;
+
+    /**
+     * The file name suffix of segment files.
+     */
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * The default size of a new segment, in bytes.
+     */
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Segments whose live records fill less than this fraction of the segment
+     * are compacted.
+     */
+    private static final double COMPACT_RATIO = 0.5;
+
+    /**
+     * Unmaps a mapped buffer, or null if that is not possible.
+     */
+    private static final MethodHandle UNMAPPER = findUnmapper();
+
+    private final File directory;
+    private final int generations;
+    private final Consumer<String> errorLog;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<Key, List<Entry>> index = new HashMap<>();
+    private Segment active;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param directory   the directory holding the segment files.
+     * @param generations the number of generations to retain per key.
+     * @param errorLog    receives messages about damaged segments.
+     */
+    public SegmentStore(File directory, int generations, Consumer<String> errorLog) {
+        this.directory = directory;
+        this.generations = Math.max(1, generations);
+        this.errorLog = errorLog;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map the existing segment files and rebuild the index from them.
+     */
+    public void open() throws IOException {
+        directory.mkdirs();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, mapSegment(id, file, (int) file.length()));
+                } catch (NumberFormatException ex) {
+                    errorLog.accept("Ignoring unexpected file in snapshot store: " + name);
+                }
+            }
+        }
+        for (Segment segment : segments.values()) {
+            scan(segment);
+        }
+        // Trimmed only once every record is indexed, since a base may be scanned after the records that need it.
+        for (List<Entry> entries : index.values()) {
+            trim(entries);
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a new, self-contained generation of a snapshot.
+     *
+     * @param key     the player and side.
+     * @param payload the encoded snapshot.
+     * @return the new generation.
+     */
+    public long append(Key key, byte[] payload) throws IOException {
+        return append(key, payload, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a new generation of a snapshot whose payload is only meaningful
+     * together with that of an earlier generation. The base generation is
+     * retained for as long as this one is.
+     *
+     * @param key     the player and side.
+     * @param payload the encoded snapshot.
+     * @param base    the retained generation the payload depends on, or 0.
+     * @return the new generation.
+     */
+    public long append(Key key, byte[] payload, long base) throws IOException {
+        return append(key, payload, base, System.currentTimeMillis());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a new generation of a snapshot that was taken at the given time,
+     * such as one copied from another store.
+     *
+     * @param key       the player and side.
+     * @param payload   the encoded snapshot.
+     * @param base      the retained generation the payload depends on, or 0.
+     * @param timestamp the time of the snapshot, in milliseconds since the
+     *                  epoch.
+     * @return the new generation.
+     */
+    public long append(Key key, byte[] payload, long base, long timestamp) throws IOException {
+        List<Entry> entries = index.computeIfAbsent(key, k -> new ArrayList<>());
+        long generation = entries.isEmpty() ? 1 : entries.get(entries.size() - 1).generation + 1;
+        if (base != 0 && find(entries, base) == null) {
+            throw new IOException("base generation " + base + " of " + key + " is not retained");
+        }
+        Entry entry = writeRecord(key, generation, timestamp, base, payload);
+        entries.add(entry);
+        trim(entries);
+        return generation;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a retained generation of a snapshot.
+     *
+     * @param key  the player and side.
+     * @param back 0 for the latest generation, 1 for the one before, etc.
+     * @return the encoded snapshot, or null if there is no such generation.
+     */
+    public byte[] read(Key key, int back) {
+        List<Entry> entries = index.get(key);
+        if (entries == null || back < 0 || back >= entries.size()) {
+            return null;
+        }
+        return readPayload(entries.get(entries.size() - 1 - back));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the payload of the base generation of a retained generation.
+     *
+     * @param key  the player and side.
+     * @param back 0 for the latest generation, 1 for the one before, etc.
+     * @return the encoded base snapshot, or null if there is no such
+     *         generation or it is self-contained.
+     */
+    public byte[] readBase(Key key, int back) throws IOException {
+        List<Entry> entries = index.get(key);
+        if (entries == null || back < 0 || back >= entries.size()) {
+            return null;
+        }
+        Entry entry = entries.get(entries.size() - 1 - back);
+        if (entry.base == 0) {
+            return null;
+        }
+        Entry base = find(entries, entry.base);
+        if (base == null) {
+            throw new IOException("base generation " + entry.base + " of " + key + " is missing");
+        }
+        return readPayload(base);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the retained generations of a snapshot, latest first.
+     *
+     * @param key the player and side.
+     * @return the generations.
+     */
+    public List<Generation> history(Key key) {
+        List<Entry> entries = index.getOrDefault(key, Collections.emptyList());
+        List<Generation> history = new ArrayList<>(entries.size());
+        for (int i = entries.size() - 1; i >= 0; --i) {
+            Entry entry = entries.get(i);
+            history.add(new Generation(entry.generation, entry.timestamp, entry.length, entry.base));
+        }
+        return history;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return every key with at least one retained generation.
+     *
+     * @return the keys.
+     */
+    public List<Key> keys() {
+        List<Key> keys = new ArrayList<>();
+        for (Map.Entry<Key, List<Entry>> mapEntry : index.entrySet()) {
+            if (!mapEntry.getValue().isEmpty()) {
+                keys.add(mapEntry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy the live records of mostly-dead segments into the active segment
+     * and delete those segments.
+     *
+     * @return the number of segments removed.
+     */
+    public int compact() throws IOException {
+        List<Segment> victims = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.liveBytes < segment.capacity() * COMPACT_RATIO) {
+                victims.add(segment);
+            }
+        }
+        if (victims.isEmpty()) {
+            return 0;
+        }
+
+        Set<Segment> destinations = new HashSet<>();
+        for (Map.Entry<Key, List<Entry>> mapEntry : index.entrySet()) {
+            for (Entry entry : mapEntry.getValue()) {
+                if (victims.contains(entry.segment)) {
+                    Entry copy = writeRecord(mapEntry.getKey(), entry.generation, entry.timestamp, entry.base,
+                            readPayload(entry));
+                    entry.segment.liveBytes -= entry.size();
+                    entry.segment = copy.segment;
+                    entry.offset = copy.offset;
+                    entry.headerSize = copy.headerSize;
+                    destinations.add(copy.segment);
+                }
+            }
+        }
+
+        // The copies, and the size of any segment created for them, must be on disk before the originals go.
+        for (Segment segment : destinations) {
+            segment.buffer.force();
+            segment.channel.force(true);
+        }
+        for (Segment segment : victims) {
+            segments.remove(segment.id);
+            release(segment);
+            // If this fails, duplicate records are discarded by generation when the file is next scanned.
+            if (!segment.file.delete()) {
+                errorLog.accept("Could not delete compacted segment " + segment.file.getName());
+            }
+        }
+        return victims.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Flush and close all segment files.
+     */
+    public void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            release(segment);
+        }
+        segments.clear();
+        index.clear();
+        active = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of segment files.
+     *
+     * @return the number of segment files.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a record to the active segment, starting a new segment if it does
+     * not fit.
+     */
+    private Entry writeRecord(Key key, long generation, long timestamp, long base, byte[] payload)
+            throws IOException {
+        int size = HEADER_SIZE + payload.length;
+        if (active == null || active.writePosition + size > active.capacity()) {
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            File file = new File(directory, String.format("%08d%s", id, SEGMENT_SUFFIX));
+            active = mapSegment(id, file, Math.max(SEGMENT_SIZE, size));
+            segments.put(id, active);
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.writePosition;
+        buffer.putLong(offset + 12, key.uuid().getMostSignificantBits());
+        buffer.putLong(offset + 20, key.uuid().getLeastSignificantBits());
+        buffer.put(offset + 28, (byte) (key.isMode() ? 1 : 0));
+        buffer.putLong(offset + 29, generation);
+        buffer.putLong(offset + 37, timestamp);
+        buffer.putLong(offset + 45, base);
+        buffer.put(offset + HEADER_SIZE, payload);
+        buffer.putInt(offset + 4, payload.length);
+        buffer.putInt(offset + 8, checksum(buffer, offset, HEADER_SIZE, payload.length));
+        buffer.force(offset + 4, size - 4);
+
+        // The magic number is written last so that a torn record is never mistaken for a complete one.
+        buffer.putInt(offset, RECORD_MAGIC);
+        buffer.force(offset, 4);
+
+        active.writePosition += size;
+        active.liveBytes += size;
+        return new Entry(generation, timestamp, base, active, offset, HEADER_SIZE, payload.length);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the payload of a record.
+     */
+    private static byte[] readPayload(Entry entry) {
+        byte[] payload = new byte[entry.length];
+        entry.segment.buffer.get(entry.offset + entry.headerSize, payload);
+        return payload;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the retained entry with the given generation, or null.
+     */
+    private static Entry find(List<Entry> entries, long generation) {
+        for (Entry entry : entries) {
+            if (entry.generation == generation) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Drop the oldest generations beyond the retention limit, except those
+     * that a retained generation names as its base.
+     */
+    private void trim(List<Entry> entries) {
+        if (entries.size() <= generations) {
+            return;
+        }
+        int firstKept = entries.size() - generations;
+        Set<Long> bases = new HashSet<>();
+        for (int i = firstKept; i < entries.size(); ++i) {
+            bases.add(entries.get(i).base);
+        }
+        Iterator<Entry> it = entries.iterator();
+        for (int i = 0; i < firstKept; ++i) {
+            Entry oldest = it.next();
+            if (!bases.contains(oldest.generation)) {
+                oldest.segment.liveBytes -= oldest.size();
+                it.remove();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read every complete record in a segment into the index.
+     */
+    private void scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + LEGACY_HEADER_SIZE <= segment.capacity()) {
+            int magic = buffer.getInt(position);
+            int headerSize;
+            if (magic == RECORD_MAGIC) {
+                headerSize = HEADER_SIZE;
+            } else if (magic == LEGACY_RECORD_MAGIC) {
+                headerSize = LEGACY_HEADER_SIZE;
+            } else {
+                break;
+            }
+            int length = buffer.getInt(position + 4);
+            if (length < 0 || (long) position + headerSize + length > segment.capacity()
+                    || buffer.getInt(position + 8) != checksum(buffer, position, headerSize, length)) {
+                errorLog.accept("Snapshot segment " + segment.file.getName() + " is damaged at offset " + position
+                        + "; ignoring the rest of it.");
+                break;
+            }
+
+            Key key = new Key(new UUID(buffer.getLong(position + 12), buffer.getLong(position + 20)),
+                    buffer.get(position + 28) != 0);
+            long generation = buffer.getLong(position + 29);
+            long timestamp = buffer.getLong(position + 37);
+            long base = (headerSize == HEADER_SIZE) ? buffer.getLong(position + 45) : 0;
+            insert(key, new Entry(generation, timestamp, base, segment, position, headerSize, length));
+            position += headerSize + length;
+        }
+        segment.writePosition = position;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Insert a scanned record into the index in generation order. A record
+     * with the same generation as an existing one is a copy left behind by
+     * an interrupted compaction and replaces it.
+     */
+    private void insert(Key key, Entry entry) {
+        List<Entry> entries = index.computeIfAbsent(key, k -> new ArrayList<>());
+        int i = entries.size();
+        while (i > 0 && entries.get(i - 1).generation > entry.generation) {
+            --i;
+        }
+        if (i > 0 && entries.get(i - 1).generation == entry.generation) {
+            Entry old = entries.set(i - 1, entry);
+            old.segment.liveBytes -= old.size();
+        } else {
+            entries.add(i, entry);
+        }
+        entry.segment.liveBytes += entry.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map a segment file, creating or extending it to the given size.
+     */
+    private Segment mapSegment(int id, File file, int size) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(id, file, channel, buffer);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Close a segment file and unmap its buffer, which must not be used
+     * afterwards.
+     */
+    private static void release(Segment segment) throws IOException {
+        segment.channel.close();
+        if (UNMAPPER != null) {
+            try {
+                UNMAPPER.invokeExact((ByteBuffer) segment.buffer);
+            } catch (Throwable ex) {
+                // Left mapped until the buffer is garbage collected.
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a handle that unmaps a mapped buffer immediately, or null if the
+     * JVM does not provide one. Java has no public way to do this, so the
+     * same internal method that NIO uses is looked up.
+     */
+    private static MethodHandle findUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compute the checksum of a record: everything after the checksum field.
+     */
+    static int checksum(MappedByteBuffer buffer, int offset, int headerSize, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset + 12, headerSize - 12 + length));
+        return (int) crc.getValue();
+    }
+
+} // SegmentStore
@@ -0,0 +1,194 @@
+package nu.nerd.modmode.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+// ----------------------------------------------------------------------------
+/**
+ * Holds decoded player states in memory, keyed by player and side, so that
+ * switching sides does not have to wait for the disk.
+ *
+ * The cache is bounded both by its number of entries, evicting the least
+ * recently used, and by idle time, evicting entries that have not been read
+ * or written for longer than the idle limit.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * server's main thread.
+ */
+public class SnapshotCache {
+
+    // ------------------------------------------------------------------------
+    /**
+     * A cached state and when it was last read or written.
+     */
+    private static final class Entry {
+        final PlayerState state;
+        long lastAccessNanos;
+
+        Entry(PlayerState state, long lastAccessNanos) {
+            this.state = state;
+            this.lastAccessNanos = lastAccessNanos;
+        }
+    }
+
+    /**
+     * Entries in least to most recently used order.
+     */
+    private final LinkedHashMap<PlayerStateStore.Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxEntries;
+    private final long idleNanos;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param maxEntries the maximum number of states held.
+     * @param idleTime   the time, in milliseconds, after which an unused
+     *                   state is evicted.
+     */
+    public SnapshotCache(int maxEntries, long idleTime) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleTime));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the cached state for a key, counting a hit or miss.
+     *
+     * @param key the player and side.
+     * @return the state, or null if it is not cached.
+     */
+    public PlayerState get(PlayerStateStore.Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        entry.lastAccessNanos = System.nanoTime();
+        return entry.state;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a state is cached for the key, without counting a hit
+     * or miss.
+     *
+     * @param key the player and side.
+     * @return true if the key is cached.
+     */
+    public boolean contains(PlayerStateStore.Key key) {
+        return entries.containsKey(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cache the latest state for a key, evicting the least recently used
+     * entry if the cache is full.
+     *
+     * @param key   the player and side.
+     * @param state the state.
+     */
+    public void put(PlayerStateStore.Key key, PlayerState state) {
+        if (maxEntries == 0) {
+            return;
+        }
+        entries.put(key, new Entry(state, System.nanoTime()));
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove the cached state for a key, because it no longer matches the
+     * latest saved state.
+     *
+     * @param key the player and side.
+     */
+    public void invalidate(PlayerStateStore.Key key) {
+        entries.remove(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Evict every entry that has been idle for longer than the idle limit.
+     *
+     * @return the number of entries evicted.
+     */
+    public int evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            // Entries are in access order, so the first recent one ends the scan.
+            if (now - entry.lastAccessNanos <= idleNanos) {
+                break;
+            }
+            it.remove();
+            ++evicted;
+        }
+        evictions += evicted;
+        return evicted;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of cached states.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum number of cached states.
+     *
+     * @return the capacity.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of reads that found a cached state.
+     *
+     * @return the hit count.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of reads that had to go to disk.
+     *
+     * @return the miss count.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of states evicted for size or idleness.
+     *
+     * @return the eviction count.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+} // SnapshotCache
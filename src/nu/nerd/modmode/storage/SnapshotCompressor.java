@@ -0,0 +1,327 @@
+package nu.nerd.modmode.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// ----------------------------------------------------------------------------
+/**
+ * Optionally compresses encoded snapshots before they are stored, using
+ * {@link Deflater} with a preset dictionary trained from existing snapshots.
+ *
+ * A compressed payload is laid out as:
+ * <pre>
+ * int    magic ("MMPZ")
+ * byte   algorithm (1 for deflate)
+ * int    dictionary id (0 for none)
+ * int    uncompressed length
+ * byte[] deflate stream
+ * </pre>
+ * Payloads that do not start with the magic number are stored as they are,
+ * so snapshots written without compression, or that did not get smaller,
+ * are still read.
+ *
+ * Dictionaries are stored as dictionaries/&lt;id&gt;.dict. New snapshots
+ * use the dictionary with the highest id; older dictionaries are kept so
+ * that the snapshots compressed with them can still be read.
+ *
+ * This class is not thread-safe. All calls other than {@link #train} are
+ * expected to be made from the plugin's persistence thread.
+ */
+public class SnapshotCompressor {
+
+    // ------------------------------------------------------------------------
+    /**
+     * The compression applied to new snapshots.
+     */
+    public enum Algorithm {
+        NONE, DEFLATE
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Counters describing the compression done so far.
+     */
+    public record Stats(Algorithm algorithm, int level, int dictionaryId, long compressed, long bytesIn,
+                        long bytesOut, long compressNanos, long decompressed, long decompressNanos) {
+    }
+
+    /**
+     * The first four bytes of a compressed payload: "MMPZ".
+     */
+    public static final int MAGIC = 0x4D4D505A;
+
+    /**
+     * The size of the header of a compressed payload, in bytes.
+     */
+    public static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+
+    /**
+     * The algorithm byte for deflate.
+     */
+    private static final int ALGORITHM_DEFLATE = 1;
+
+    /**
+     * The file name suffix of dictionary files.
+     */
+    public static final String DICTIONARY_SUFFIX = ".dict";
+
+    /**
+     * The largest useful preset dictionary: deflate's window size.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * The length of the byte strings counted when training a dictionary.
+     */
+    private static final int TRAINING_SEGMENT = 16;
+
+    private final File directory;
+    private final Algorithm algorithm;
+    private final int level;
+    private final Map<Integer, byte[]> dictionaries = new HashMap<>();
+    private final Inflater inflater = new Inflater();
+    private final Deflater deflater;
+    private int dictionaryId;
+
+    private long compressed;
+    private long bytesIn;
+    private long bytesOut;
+    private long compressNanos;
+    private long decompressed;
+    private long decompressNanos;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param directory the directory holding the dictionary files.
+     * @param algorithm the compression applied to new snapshots.
+     * @param level     the deflate level, 1 (fastest) to 9 (smallest).
+     */
+    public SnapshotCompressor(File directory, Algorithm algorithm, int level) {
+        this.directory = directory;
+        this.algorithm = algorithm;
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        deflater = new Deflater(this.level);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the dictionary files and select the newest one for compression.
+     */
+    public void open() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(DICTIONARY_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    int id = Integer.parseInt(name.substring(0, name.length() - DICTIONARY_SUFFIX.length()));
+                    dictionaryId = Math.max(dictionaryId, id);
+                } catch (NumberFormatException ex) {
+                    // Not a dictionary.
+                }
+            }
+        }
+        if (dictionaryId != 0) {
+            getDictionary(dictionaryId);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compress an encoded snapshot, returning it unchanged if compression is
+     * disabled or does not make it smaller.
+     *
+     * @param payload the encoded snapshot.
+     * @return the payload to store.
+     */
+    public byte[] compress(byte[] payload) throws IOException {
+        if (algorithm == Algorithm.NONE) {
+            return payload;
+        }
+        long start = System.nanoTime();
+        deflater.reset();
+        if (dictionaryId != 0) {
+            deflater.setDictionary(getDictionary(dictionaryId));
+        }
+        deflater.setInput(payload);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + HEADER_SIZE);
+        out.writeBytes(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put((byte) ALGORITHM_DEFLATE)
+                .putInt(dictionaryId).putInt(payload.length).array());
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        byte[] result = out.size() < payload.length ? out.toByteArray() : payload;
+
+        ++compressed;
+        bytesIn += payload.length;
+        bytesOut += result.length;
+        compressNanos += System.nanoTime() - start;
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decompress a stored payload, returning it unchanged if it is not
+     * compressed.
+     *
+     * @param data the stored payload.
+     * @return the encoded snapshot.
+     */
+    public byte[] decompress(byte[] data) throws IOException {
+        if (data == null || data.length < HEADER_SIZE || ByteBuffer.wrap(data).getInt() != MAGIC) {
+            return data;
+        }
+        long start = System.nanoTime();
+        ByteBuffer header = ByteBuffer.wrap(data, 4, HEADER_SIZE - 4);
+        int payloadAlgorithm = header.get();
+        int payloadDictionary = header.getInt();
+        int length = header.getInt();
+        if (payloadAlgorithm != ALGORITHM_DEFLATE || length < 0) {
+            throw new IOException("unsupported snapshot compression " + payloadAlgorithm);
+        }
+
+        byte[] payload = new byte[length];
+        inflater.reset();
+        inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+        try {
+            int position = 0;
+            while (position < length) {
+                int inflated = inflater.inflate(payload, position, length - position);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(getDictionary(payloadDictionary));
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("compressed snapshot is truncated");
+                    }
+                }
+                position += inflated;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("compressed snapshot is damaged: " + ex.getMessage());
+        }
+
+        ++decompressed;
+        decompressNanos += System.nanoTime() - start;
+        return payload;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store a new dictionary and use it to compress new snapshots.
+     *
+     * @param dictionary the dictionary contents.
+     * @return the id of the new dictionary.
+     */
+    public int installDictionary(byte[] dictionary) throws IOException {
+        int id = dictionaryId + 1;
+        directory.mkdirs();
+        File file = new File(directory, id + DICTIONARY_SUFFIX);
+        File tempFile = new File(file.getPath() + ".tmp");
+        Files.write(tempFile.toPath(), dictionary);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        dictionaries.put(id, dictionary);
+        dictionaryId = id;
+        return id;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the counters describing the compression done so far.
+     *
+     * @return the statistics.
+     */
+    public Stats getStats() {
+        return new Stats(algorithm, level, dictionaryId, compressed, bytesIn, bytesOut, compressNanos,
+                decompressed, decompressNanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Build a preset dictionary from sample snapshots.
+     *
+     * Byte strings that occur in more than one sample are collected, most
+     * widespread first, until the dictionary is full. Deflate encodes
+     * matches near the end of the dictionary most cheaply, so the most
+     * widespread strings are placed last. This method only uses its
+     * arguments and may be called from any thread.
+     *
+     * @param samples the encoded, uncompressed snapshots.
+     * @param size    the maximum size of the dictionary.
+     * @return the dictionary, empty if the samples have nothing in common.
+     */
+    public static byte[] train(List<byte[]> samples, int size) {
+        size = Math.min(size, MAX_DICTIONARY_SIZE);
+        // Count the samples each segment occurs in. ISO-8859-1 maps bytes to chars one to one.
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (byte[] sample : samples) {
+            Map<String, Boolean> seen = new HashMap<>();
+            for (int i = 0; i + TRAINING_SEGMENT <= sample.length; i += TRAINING_SEGMENT / 4) {
+                String segment = new String(sample, i, TRAINING_SEGMENT, StandardCharsets.ISO_8859_1);
+                if (seen.put(segment, Boolean.TRUE) == null) {
+                    occurrences.merge(segment, 1, Integer::sum);
+                }
+            }
+        }
+
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : occurrences.entrySet()) {
+            if (entry.getValue() > 1) {
+                ranked.add(entry);
+            }
+        }
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+
+        StringBuilder dictionary = new StringBuilder(size);
+        List<String> chosen = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : ranked) {
+            if (dictionary.length() + TRAINING_SEGMENT > size) {
+                break;
+            }
+            if (dictionary.indexOf(entry.getKey()) < 0) {
+                dictionary.append(entry.getKey());
+                chosen.add(entry.getKey());
+            }
+        }
+
+        StringBuilder ordered = new StringBuilder(dictionary.length());
+        for (int i = chosen.size() - 1; i >= 0; --i) {
+            ordered.append(chosen.get(i));
+        }
+        return ordered.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a dictionary by id, loading it from its file if necessary.
+     */
+    private byte[] getDictionary(int id) throws IOException {
+        byte[] dictionary = dictionaries.get(id);
+        if (dictionary == null) {
+            File file = new File(directory, id + DICTIONARY_SUFFIX);
+            if (!file.exists()) {
+                throw new IOException("snapshot compression dictionary " + file.getName() + " is missing");
+            }
+            dictionary = Files.readAllBytes(file.toPath());
+            dictionaries.put(id, dictionary);
+        }
+        return dictionary;
+    }
+
+} // SnapshotCompressor
@@ -0,0 +1,127 @@
+package nu.nerd.modmode.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// ----------------------------------------------------------------------------
+/**
+ * An embedded SQLite database file shared by {@link SqliteStateStore} and
+ * {@link SqliteMembershipStore}.
+ *
+ * Changes are made in a transaction that is committed once a batch of
+ * changes has accumulated, or when {@link #commit} is called, so that a
+ * burst of writes costs one sync rather than one per write.
+ *
+ * This class is not thread-safe. All calls are expected to be made from the
+ * plugin's persistence thread.
+ */
+public class SqliteDatabase {
+
+    private final File file;
+    private final int batchSize;
+    private Connection connection;
+
+    /**
+     * The number of changes made since the last commit.
+     */
+    private int pending;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file      the database file.
+     * @param batchSize the number of changes after which they are committed.
+     */
+    public SqliteDatabase(File file, int batchSize) {
+        this.file = file;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open the database, creating the file if necessary.
+     */
+    public void open() throws IOException {
+        if (connection != null) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+            }
+            connection.setAutoCommit(false);
+        } catch (SQLException ex) {
+            throw wrap("open " + file.getName(), ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the connection to the database.
+     *
+     * @return the connection.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count a change, committing the transaction if the batch is full.
+     */
+    public void changed() throws SQLException {
+        if (++pending >= batchSize) {
+            commit();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Commit any uncommitted changes.
+     */
+    public void commit() throws SQLException {
+        if (pending > 0) {
+            connection.commit();
+            pending = 0;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Commit and close the database.
+     */
+    public void close() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        try {
+            commit();
+            connection.close();
+        } catch (SQLException ex) {
+            throw wrap("close " + file.getName(), ex);
+        } finally {
+            connection = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wrap a database error in an IOException.
+     *
+     * @param action what was being done.
+     * @param ex     the error.
+     * @return the exception to throw.
+     */
+    static IOException wrap(String action, SQLException ex) {
+        return new IOException("could not " + action + ": " + ex.getMessage(), ex);
+    }
+
+} // SqliteDatabase
@@ -0,0 +1,182 @@
+package nu.nerd.modmode.storage;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * A {@link MembershipStore} that keeps one row per group member in an
+ * embedded SQLite database.
+ *
+ * The database also records whether a complete set of members has ever been
+ * written with {@link #compact}, so that members.yml is imported only once,
+ * even if every member later leaves.
+ */
+public class SqliteMembershipStore implements MembershipStore {
+
+    /**
+     * The name of the meta row recording that the members were imported.
+     */
+    private static final String IMPORTED = "members_imported";
+
+    private final SqliteDatabase database;
+    private PreparedStatement insert;
+    private PreparedStatement delete;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param database the database.
+     */
+    public SqliteMembershipStore(SqliteDatabase database) {
+        this.database = database;
+    }
+
+    @Override
+    public Map<String, Set<UUID>> load() throws IOException {
+        prepare();
+        Map<String, Set<UUID>> members = new LinkedHashMap<>();
+        try (Statement statement = database.getConnection().createStatement();
+             ResultSet results = statement.executeQuery("SELECT group_name, uuid FROM members")) {
+            while (results.next()) {
+                members.computeIfAbsent(results.getString(1), k -> new LinkedHashSet<>())
+                        .add(UUID.fromString(results.getString(2)));
+            }
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("read the group members", ex);
+        }
+        return members;
+    }
+
+    @Override
+    public void join(String groupName, UUID uuid) throws IOException {
+        update(true, groupName, uuid);
+    }
+
+    @Override
+    public void leave(String groupName, UUID uuid) throws IOException {
+        update(false, groupName, uuid);
+    }
+
+    @Override
+    public boolean hasRecords() {
+        // Every change is already in its final form.
+        return false;
+    }
+
+    @Override
+    public void compact(Map<String, ? extends Iterable<UUID>> members) throws IOException {
+        prepare();
+        try {
+            try (Statement statement = database.getConnection().createStatement()) {
+                statement.executeUpdate("DELETE FROM members");
+            }
+            for (Map.Entry<String, ? extends Iterable<UUID>> entry : members.entrySet()) {
+                for (UUID uuid : entry.getValue()) {
+                    insert.setString(1, entry.getKey());
+                    insert.setString(2, uuid.toString());
+                    insert.addBatch();
+                }
+            }
+            insert.executeBatch();
+            try (PreparedStatement marker = database.getConnection().prepareStatement(
+                    "INSERT OR REPLACE INTO meta (name, value) VALUES (?, ?)")) {
+                marker.setString(1, IMPORTED);
+                marker.setString(2, Long.toString(System.currentTimeMillis()));
+                marker.executeUpdate();
+            }
+            database.changed();
+            database.commit();
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("rewrite the group members", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a complete set of members has been written to the
+     * database, e.g. when importing members.yml.
+     *
+     * @return true if the members have been imported.
+     */
+    public boolean isImported() throws IOException {
+        prepare();
+        try (PreparedStatement select = database.getConnection().prepareStatement(
+                "SELECT 1 FROM meta WHERE name = ?")) {
+            select.setString(1, IMPORTED);
+            try (ResultSet results = select.executeQuery()) {
+                return results.next();
+            }
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("read the members import marker", ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            database.commit();
+            if (insert != null) {
+                insert.close();
+                delete.close();
+                insert = null;
+                delete = null;
+            }
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("close the member statements", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open the database and create the table and statements, if not yet done.
+     */
+    private void prepare() throws IOException {
+        if (insert != null) {
+            return;
+        }
+        database.open();
+        Connection connection = database.getConnection();
+        try {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS members ("
+                        + "group_name TEXT NOT NULL, uuid TEXT NOT NULL, PRIMARY KEY (group_name, uuid))");
+                statement.execute("CREATE TABLE IF NOT EXISTS meta ("
+                        + "name TEXT NOT NULL PRIMARY KEY, value TEXT NOT NULL)");
+            }
+            connection.commit();
+            insert = connection.prepareStatement("INSERT OR IGNORE INTO members (group_name, uuid) VALUES (?, ?)");
+            delete = connection.prepareStatement("DELETE FROM members WHERE group_name = ? AND uuid = ?");
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("create the members table", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run a single-member insert or delete as part of the current batch.
+     */
+    private void update(boolean join, String groupName, UUID uuid) throws IOException {
+        prepare();
+        PreparedStatement statement = join ? insert : delete;
+        try {
+            statement.setString(1, groupName);
+            statement.setString(2, uuid.toString());
+            statement.executeUpdate();
+            database.changed();
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("update the group members", ex);
+        }
+    }
+
+} // SqliteMembershipStore
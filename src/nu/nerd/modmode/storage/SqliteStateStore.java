@@ -0,0 +1,285 @@
+package nu.nerd.modmode.storage;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * A {@link PlayerStateStore} that keeps compressed full and delta snapshots
+ * in an embedded SQLite database, one row per generation, indexed by player
+ * and side.
+ */
+public class SqliteStateStore implements PlayerStateStore {
+
+    private final SqliteDatabase database;
+    private final int generations;
+    private final DeltaWriter deltaWriter;
+
+    private PreparedStatement insert;
+    private PreparedStatement selectLatest;
+    private PreparedStatement selectPayload;
+    private PreparedStatement selectBase;
+    private PreparedStatement selectHistory;
+    private PreparedStatement trim;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param database    the database.
+     * @param generations the number of generations to retain per key.
+     * @param deltaWriter encodes and compresses written states.
+     */
+    public SqliteStateStore(SqliteDatabase database, int generations, DeltaWriter deltaWriter) {
+        this.database = database;
+        this.generations = Math.max(1, generations);
+        this.deltaWriter = deltaWriter;
+    }
+
+    @Override
+    public void open() throws IOException {
+        database.open();
+        Connection connection = database.getConnection();
+        try {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS snapshots ("
+                        + "uuid TEXT NOT NULL, side INTEGER NOT NULL, generation INTEGER NOT NULL, "
+                        + "timestamp INTEGER NOT NULL, base INTEGER NOT NULL, payload BLOB NOT NULL, "
+                        + "PRIMARY KEY (uuid, side, generation))");
+            }
+            connection.commit();
+            insert = connection.prepareStatement(
+                    "INSERT INTO snapshots (uuid, side, generation, timestamp, base, payload) "
+                    + "VALUES (?, ?, ?, ?, ?, ?)");
+            selectLatest = connection.prepareStatement(
+                    "SELECT MAX(generation) FROM snapshots WHERE uuid = ? AND side = ?");
+            selectPayload = connection.prepareStatement(
+                    "SELECT payload, base FROM snapshots WHERE uuid = ? AND side = ? "
+                    + "ORDER BY generation DESC LIMIT 1 OFFSET ?");
+            selectBase = connection.prepareStatement(
+                    "SELECT payload FROM snapshots WHERE uuid = ? AND side = ? AND generation = ?");
+            selectHistory = connection.prepareStatement(
+                    "SELECT generation, timestamp, length(payload), base FROM snapshots WHERE uuid = ? AND side = ? "
+                    + "ORDER BY generation DESC");
+            // Drop generations beyond the retention limit, except the bases of retained generations.
+            trim = connection.prepareStatement(
+                    "DELETE FROM snapshots WHERE uuid = ?1 AND side = ?2 AND generation <= ?3 AND generation NOT IN "
+                    + "(SELECT base FROM snapshots WHERE uuid = ?1 AND side = ?2 AND generation > ?3)");
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("create the snapshots table", ex);
+        }
+    }
+
+    @Override
+    public void write(Key key, PlayerState state) throws IOException {
+        deltaWriter.write(this::append, key, state);
+    }
+
+    @Override
+    public void writeFull(Key key, PlayerState state) throws IOException {
+        deltaWriter.writeFull(this::append, key, state);
+    }
+
+    @Override
+    public PlayerState read(Key key, int back) throws IOException {
+        byte[] payload = readPayload(key, back);
+        return (payload != null) ? deltaWriter.read(payload, readBasePayload(key, back)) : null;
+    }
+
+    @Override
+    public byte[] readEncoded(Key key) throws IOException {
+        return deltaWriter.decompress(readPayload(key, 0));
+    }
+
+    @Override
+    public List<Generation> history(Key key) throws IOException {
+        List<Generation> history = new ArrayList<>();
+        try {
+            bindKey(selectHistory, key);
+            try (ResultSet results = selectHistory.executeQuery()) {
+                while (results.next()) {
+                    history.add(new Generation(results.getLong(1), results.getLong(2), results.getInt(3),
+                            results.getLong(4)));
+                }
+            }
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("read snapshot history", ex);
+        }
+        return history;
+    }
+
+    @Override
+    public List<Key> keys() throws IOException {
+        List<Key> keys = new ArrayList<>();
+        try (Statement statement = database.getConnection().createStatement();
+             ResultSet results = statement.executeQuery("SELECT DISTINCT uuid, side FROM snapshots")) {
+            while (results.next()) {
+                keys.add(new Key(UUID.fromString(results.getString(1)), results.getInt(2) != 0));
+            }
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("list snapshots", ex);
+        }
+        return keys;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try {
+            database.commit();
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("commit snapshots", ex);
+        }
+    }
+
+    @Override
+    public void maintain() throws IOException {
+        flush();
+        try (Statement statement = database.getConnection().createStatement()) {
+            statement.execute("PRAGMA optimize");
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("optimize the database", ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        try {
+            for (PreparedStatement statement : new PreparedStatement[]{insert, selectLatest, selectPayload,
+                    selectBase, selectHistory, trim}) {
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("close the snapshot statements", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the stored payload of a retained generation.
+     *
+     * @param key  the player and side.
+     * @param back 0 for the latest generation, 1 for the one before, etc.
+     * @return the stored payload, or null if there is no such generation.
+     */
+    public byte[] readPayload(Key key, int back) throws IOException {
+        if (back < 0) {
+            return null;
+        }
+        try {
+            bindKey(selectPayload, key);
+            selectPayload.setInt(3, back);
+            try (ResultSet results = selectPayload.executeQuery()) {
+                return results.next() ? results.getBytes(1) : null;
+            }
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("read a snapshot", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the stored payload of the base generation of a retained
+     * generation.
+     *
+     * @param key  the player and side.
+     * @param back 0 for the latest generation, 1 for the one before, etc.
+     * @return the stored base payload, or null if there is no such generation
+     *         or it is self-contained.
+     */
+    public byte[] readBasePayload(Key key, int back) throws IOException {
+        if (back < 0) {
+            return null;
+        }
+        try {
+            long base;
+            bindKey(selectPayload, key);
+            selectPayload.setInt(3, back);
+            try (ResultSet results = selectPayload.executeQuery()) {
+                if (!results.next()) {
+                    return null;
+                }
+                base = results.getLong(2);
+            }
+            if (base == 0) {
+                return null;
+            }
+
+            bindKey(selectBase, key);
+            selectBase.setLong(3, base);
+            try (ResultSet results = selectBase.executeQuery()) {
+                if (!results.next()) {
+                    throw new IOException("base generation " + base + " of " + key + " is missing");
+                }
+                return results.getBytes(1);
+            }
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("read a snapshot", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a stored payload taken at the given time, such as one copied
+     * from another store, and drop the generations no longer retained.
+     *
+     * @param key       the player and side.
+     * @param payload   the stored payload.
+     * @param base      the retained generation the payload depends on, or 0.
+     * @param timestamp the time of the snapshot, in milliseconds since the
+     *                  epoch.
+     * @return the new generation.
+     */
+    public long append(Key key, byte[] payload, long base, long timestamp) throws IOException {
+        try {
+            bindKey(selectLatest, key);
+            long generation;
+            try (ResultSet results = selectLatest.executeQuery()) {
+                generation = (results.next() ? results.getLong(1) : 0) + 1;
+            }
+
+            bindKey(insert, key);
+            insert.setLong(3, generation);
+            insert.setLong(4, timestamp);
+            insert.setLong(5, base);
+            insert.setBytes(6, payload);
+            insert.executeUpdate();
+
+            bindKey(trim, key);
+            trim.setLong(3, generation - generations);
+            trim.executeUpdate();
+
+            database.changed();
+            return generation;
+        } catch (SQLException ex) {
+            throw SqliteDatabase.wrap("write a snapshot", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Insert a new generation taken now.
+     */
+    private long append(Key key, byte[] payload, long base) throws IOException {
+        return append(key, payload, base, System.currentTimeMillis());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the first two parameters of a statement to the player and side.
+     */
+    private static void bindKey(PreparedStatement statement, Key key) throws SQLException {
+        statement.setString(1, key.uuid().toString());
+        statement.setInt(2, key.isMode() ? 1 : 0);
+    }
+
+} // SqliteStateStore
@@ -0,0 +1,125 @@
+package nu.nerd.modmode.storage;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * A {@link PlayerStateStore} that keeps one YAML file per player and side,
+ * players/&lt;uuid&gt;_mode.yml and players/&lt;uuid&gt;_normal.yml, in the
+ * layout used by older versions. Only the latest generation is kept.
+ */
+public class YamlStateStore implements PlayerStateStore {
+
+    private static final String MODE_SUFFIX = "_mode.yml";
+    private static final String NORMAL_SUFFIX = "_normal.yml";
+
+    private final File directory;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param directory the directory holding the state files.
+     */
+    public YamlStateStore(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void open() {
+        directory.mkdirs();
+    }
+
+    @Override
+    public void write(Key key, PlayerState state) throws IOException {
+        YamlConfiguration config = new YamlConfiguration();
+        state.save(config);
+        File file = getFile(key);
+        File tempFile = new File(file.getPath() + ".tmp");
+        config.save(tempFile);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void writeFull(Key key, PlayerState state) throws IOException {
+        write(key, state);
+    }
+
+    @Override
+    public PlayerState read(Key key, int back) throws IOException {
+        File file = getFile(key);
+        if (back != 0 || !file.exists()) {
+            return null;
+        }
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.load(file);
+        } catch (InvalidConfigurationException ex) {
+            throw new IOException(file.getName() + " is not valid YAML: " + ex.getMessage());
+        }
+        return PlayerState.load(config);
+    }
+
+    @Override
+    public byte[] readEncoded(Key key) {
+        // States are kept as YAML, which is not compressed.
+        return null;
+    }
+
+    @Override
+    public List<Generation> history(Key key) {
+        File file = getFile(key);
+        return file.exists() ? List.of(new Generation(1, file.lastModified(), (int) file.length(), 0)) : List.of();
+    }
+
+    @Override
+    public List<Key> keys() {
+        List<Key> keys = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(MODE_SUFFIX) || name.endsWith(NORMAL_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                boolean isMode = name.endsWith(MODE_SUFFIX);
+                String uuid = name.substring(0, name.length() - (isMode ? MODE_SUFFIX : NORMAL_SUFFIX).length());
+                try {
+                    keys.add(new Key(UUID.fromString(uuid), isMode));
+                } catch (IllegalArgumentException ex) {
+                    // Not a state file.
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void flush() {
+        // Every file is complete once it is moved into place.
+    }
+
+    @Override
+    public void maintain() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the file holding a player's state for one side.
+     */
+    private File getFile(Key key) {
+        return new File(directory, key.uuid() + (key.isMode() ? MODE_SUFFIX : NORMAL_SUFFIX));
+    }
+
+} // YamlStateStore
@@ -0,0 +1,738 @@
+package nu.nerd.modmode.tools;
+
+import nu.nerd.modmode.storage.MembershipJournal;
+import nu.nerd.modmode.storage.PlayerStateCodec;
+import nu.nerd.modmode.storage.PlayerStateStore.Generation;
+import nu.nerd.modmode.storage.PlayerStateStore.Key;
+import nu.nerd.modmode.storage.SegmentStore;
+import nu.nerd.modmode.storage.SnapshotCompressor;
+import nu.nerd.modmode.storage.SqliteDatabase;
+import nu.nerd.modmode.storage.SqliteMembershipStore;
+import nu.nerd.modmode.storage.SqliteStateStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+
+// ----------------------------------------------------------------------------
+/**
+ * A command line tool that checks, lists or converts ModMode's saved player
+ * states and group members without a running server.
+ *
+ * Usage, from the server directory:
+ * <pre>
+ * java -cp plugins/ModMode.jar[:sqlite-jdbc.jar] nu.nerd.modmode.tools.StateTool \
+ *     verify|dump|convert plugins/ModMode [options]
+ * </pre>
+ * Snapshots are read from the segment files and the SQLite database,
+ * whichever exist, then decompressed and checked in parallel on a fork-join
+ * pool. Each snapshot is checked for a valid structure, plausible vitals and
+ * an existing world, and each of its items for a complete Paper item stream.
+ * The items themselves are not decoded, since that needs a running server.
+ * Legacy YAML state files and members.yml are checked by their layout only.
+ *
+ * convert copies every retained generation between the segment files and
+ * the SQLite database as stored, keeping the generation order, timestamps
+ * and delta bases, together with the group members. The target must be
+ * empty.
+ */
+public final class StateTool {
+
+    // ------------------------------------------------------------------------
+    /**
+     * A stored generation of a snapshot, as read from one of the stores.
+     */
+    private record Snapshot(String source, Key key, Generation generation, byte[] payload, byte[] base) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The outcome of checking one snapshot: whether it could be read at all,
+     * and whether it was free of problems.
+     */
+    private record Checked(Snapshot snapshot, String description, boolean readable, boolean clean) {
+    }
+
+    private static final String USAGE = String.join("\n",
+            "Usage: StateTool <verify|dump|convert> <ModMode data folder> [options]",
+            "  verify                 check every saved state and the group members",
+            "  dump                   list every saved state and group member",
+            "  convert                copy all saved states and group members to the --to store",
+            "Options:",
+            "  --to <segments|sqlite> the store to convert to; the other one is read",
+            "  --threads <n>          the number of threads that check states (default: all processors)",
+            "  --generations <n>      storage.generations from config.yml (default: 3)",
+            "  --worlds <folder>      the folder holding the worlds (default: the server folder)",
+            "The SQLite store needs the sqlite-jdbc jar from the server's libraries folder on the classpath.");
+
+    private static final String SEGMENTS = "segments";
+    private static final String SQLITE = "sqlite";
+
+    /**
+     * Slot counts of a player inventory and ender chest.
+     */
+    private static final int INVENTORY_SIZE = 41;
+    private static final int ENDER_CHEST_SIZE = 27;
+
+    /**
+     * The NBT tag type that begins a serialized item.
+     */
+    private static final int TAG_COMPOUND = 10;
+
+    private final File dataFolder;
+    private final File playersDir;
+    private final int threads;
+    private final int generations;
+    private final Set<String> worlds;
+    private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<SnapshotCompressor> compressors;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run the tool.
+     *
+     * @param args the command line arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        File dataFolder = new File(args[1]).getAbsoluteFile();
+        if (!dataFolder.isDirectory()) {
+            System.err.println(dataFolder + " is not a directory.");
+            System.exit(2);
+        }
+        File worldsFolder = options.containsKey("worlds")
+                ? new File(options.get("worlds"))
+                : dataFolder.getParentFile().getParentFile();
+        StateTool tool;
+        try {
+            tool = new StateTool(dataFolder,
+                    Integer.parseInt(options.getOrDefault("threads",
+                            Integer.toString(Runtime.getRuntime().availableProcessors()))),
+                    Integer.parseInt(options.getOrDefault("generations", "3")),
+                    worldsFolder);
+        } catch (NumberFormatException ex) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        switch (args[0]) {
+            case "verify" -> tool.verify(false);
+            case "dump" -> tool.verify(true);
+            case "convert" -> {
+                String to = options.get("to");
+                if (!SEGMENTS.equals(to) && !SQLITE.equals(to)) {
+                    System.err.println(USAGE);
+                    System.exit(2);
+                }
+                tool.convert(to);
+            }
+            default -> {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        }
+        System.exit(tool.report() ? 0 : 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param dataFolder   the ModMode data folder.
+     * @param threads      the number of threads that check snapshots.
+     * @param generations  the number of generations retained per key.
+     * @param worldsFolder the folder holding the worlds.
+     */
+    private StateTool(File dataFolder, int threads, int generations, File worldsFolder) {
+        this.dataFolder = dataFolder;
+        this.playersDir = new File(dataFolder, "players");
+        this.threads = Math.max(1, threads);
+        this.generations = Math.max(1, generations);
+        worlds = findWorlds(worldsFolder);
+        if (worlds.isEmpty()) {
+            System.out.println("No worlds found in " + worldsFolder + "; world names will not be checked.");
+        }
+
+        // Each thread needs its own compressor, since they are not thread-safe.
+        File dictionaries = new File(playersDir, "dictionaries");
+        compressors = ThreadLocal.withInitial(() -> {
+            SnapshotCompressor compressor = new SnapshotCompressor(dictionaries, SnapshotCompressor.Algorithm.NONE, 1);
+            try {
+                compressor.open();
+            } catch (IOException ex) {
+                errors.add("Could not read the compression dictionaries: " + ex.getMessage());
+            }
+            return compressor;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check every snapshot, legacy state file and group member, optionally
+     * listing them.
+     *
+     * @param dump if true, print a line for every snapshot and member.
+     */
+    private void verify(boolean dump) {
+        List<Snapshot> snapshots = new ArrayList<>();
+        File segmentsDir = new File(playersDir, SEGMENTS);
+        if (segmentsDir.isDirectory()) {
+            snapshots.addAll(readSegments(segmentsDir));
+        }
+        File databaseFile = new File(dataFolder, "modmode.db");
+        if (databaseFile.exists()) {
+            snapshots.addAll(readDatabase(databaseFile));
+        }
+        for (Checked checked : check(snapshots)) {
+            if (dump || !checked.clean()) {
+                System.out.println(checked.description());
+            }
+        }
+
+        checkLegacyFiles(dump);
+
+        Map<String, Set<UUID>> members = readMembers();
+        if (databaseFile.exists()) {
+            Map<String, Set<UUID>> databaseMembers = readDatabaseMembers(databaseFile);
+            if (!databaseMembers.isEmpty()) {
+                System.out.println("The group members in modmode.db are used instead of members.yml.");
+                members = databaseMembers;
+            }
+        }
+        for (Map.Entry<String, Set<UUID>> entry : members.entrySet()) {
+            System.out.println("Group " + entry.getKey() + ": " + entry.getValue().size() + " members");
+            if (dump) {
+                for (UUID uuid : entry.getValue()) {
+                    System.out.println("  " + uuid);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check every snapshot in the other store and copy the readable ones,
+     * including those with implausible values, and the group members, to the
+     * target store.
+     *
+     * @param to the target store: "segments" or "sqlite".
+     */
+    private void convert(String to) {
+        File segmentsDir = new File(playersDir, SEGMENTS);
+        File databaseFile = new File(dataFolder, "modmode.db");
+        List<Snapshot> snapshots = to.equals(SQLITE) ? readSegments(segmentsDir) : readDatabase(databaseFile);
+        List<Checked> checked = check(snapshots);
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        int copied = 0;
+        SqliteDatabase database = new SqliteDatabase(databaseFile, 256);
+        try {
+            SegmentStore segments = null;
+            SqliteStateStore sqlite = null;
+            if (to.equals(SEGMENTS)) {
+                segments = new SegmentStore(segmentsDir, Integer.MAX_VALUE, errors::add);
+                segments.open();
+                if (!segments.keys().isEmpty()) {
+                    errors.add("The segment store already holds snapshots; nothing was converted.");
+                    segments.close();
+                    return;
+                }
+            } else {
+                sqlite = new SqliteStateStore(database, Integer.MAX_VALUE, null);
+                sqlite.open();
+                if (!sqlite.keys().isEmpty()) {
+                    errors.add("modmode.db already holds snapshots; nothing was converted.");
+                    sqlite.close();
+                    database.close();
+                    return;
+                }
+            }
+
+            // Generations are renumbered in the target, so delta bases are mapped as they are copied.
+            Map<Key, Map<Long, Long>> copiedGenerations = new HashMap<>();
+            for (Checked result : checked) {
+                Snapshot snapshot = result.snapshot();
+                if (!result.readable()) {
+                    continue;
+                }
+                Map<Long, Long> keyGenerations = copiedGenerations.computeIfAbsent(snapshot.key(),
+                        k -> new HashMap<>());
+                long base = 0;
+                if (snapshot.generation().base() != 0) {
+                    Long copiedBase = keyGenerations.get(snapshot.generation().base());
+                    if (copiedBase == null) {
+                        errors.add(describe(snapshot) + ": not copied, since its base was not copied");
+                        continue;
+                    }
+                    base = copiedBase;
+                }
+                long generation = (segments != null)
+                        ? segments.append(snapshot.key(), snapshot.payload(), base, snapshot.generation().timestamp())
+                        : sqlite.append(snapshot.key(), snapshot.payload(), base, snapshot.generation().timestamp());
+                keyGenerations.put(snapshot.generation().generation(), generation);
+                bytes += snapshot.payload().length;
+                ++copied;
+            }
+            if (segments != null) {
+                segments.close();
+            } else {
+                sqlite.close();
+            }
+            printRate("Copied", copied, bytes, System.nanoTime() - start);
+
+            convertMembers(to, database);
+            database.close();
+        } catch (IOException ex) {
+            errors.add("Conversion failed: " + ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy the group members to the target store, if it holds none.
+     */
+    private void convertMembers(String to, SqliteDatabase database) throws IOException {
+        File databaseFile = new File(dataFolder, "modmode.db");
+        if (to.equals(SQLITE)) {
+            SqliteMembershipStore store = new SqliteMembershipStore(database);
+            if (!store.load().isEmpty()) {
+                errors.add("modmode.db already holds group members; they were not converted.");
+            } else {
+                Map<String, Set<UUID>> members = readMembers();
+                store.compact(members);
+                System.out.println("Copied the members of " + members.size() + " groups.");
+            }
+            store.close();
+        } else {
+            File snapshotFile = new File(dataFolder, "members.yml");
+            File journalFile = new File(dataFolder, "members.journal");
+            if (snapshotFile.exists() || journalFile.exists()) {
+                errors.add("members.yml already exists; the group members were not converted.");
+                return;
+            }
+            // Written as a journal, which the server folds into members.yml when it starts.
+            Map<String, Set<UUID>> members = readDatabaseMembers(databaseFile);
+            MembershipJournal journal = new MembershipJournal(snapshotFile, journalFile);
+            for (Map.Entry<String, Set<UUID>> entry : members.entrySet()) {
+                for (UUID uuid : entry.getValue()) {
+                    journal.join(entry.getKey(), uuid);
+                }
+            }
+            journal.close();
+            System.out.println("Copied the members of " + members.size() + " groups.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print the errors found and return true if there were none.
+     */
+    private boolean report() {
+        if (errors.isEmpty()) {
+            System.out.println("No errors found.");
+            return true;
+        }
+        System.out.println(errors.size() + " errors:");
+        for (String error : errors) {
+            System.out.println("  " + error);
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read every retained generation from the segment files, oldest first
+     * for each key.
+     */
+    private List<Snapshot> readSegments(File segmentsDir) {
+        List<Snapshot> snapshots = new ArrayList<>();
+        long start = System.nanoTime();
+        long bytes = 0;
+        SegmentStore store = new SegmentStore(segmentsDir, generations, errors::add);
+        try {
+            store.open();
+            for (Key key : store.keys()) {
+                List<Generation> history = store.history(key);
+                for (int back = history.size() - 1; back >= 0; --back) {
+                    try {
+                        Snapshot snapshot = new Snapshot(SEGMENTS, key, history.get(back), store.read(key, back),
+                                store.readBase(key, back));
+                        snapshots.add(snapshot);
+                        bytes += snapshot.payload().length;
+                    } catch (IOException ex) {
+                        errors.add(SEGMENTS + " " + key.uuid() + ": " + ex.getMessage());
+                    }
+                }
+            }
+            store.close();
+        } catch (IOException ex) {
+            errors.add("Could not read the segment files: " + ex.getMessage());
+        }
+        printRate("Read from segments", snapshots.size(), bytes, System.nanoTime() - start);
+        return snapshots;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read every retained generation from the database, oldest first for
+     * each key.
+     */
+    private List<Snapshot> readDatabase(File databaseFile) {
+        List<Snapshot> snapshots = new ArrayList<>();
+        long start = System.nanoTime();
+        long bytes = 0;
+        SqliteDatabase database = new SqliteDatabase(databaseFile, 1);
+        try {
+            SqliteStateStore store = new SqliteStateStore(database, generations, null);
+            store.open();
+            for (Key key : store.keys()) {
+                List<Generation> history = store.history(key);
+                for (int back = history.size() - 1; back >= 0; --back) {
+                    try {
+                        Snapshot snapshot = new Snapshot(SQLITE, key, history.get(back),
+                                store.readPayload(key, back), store.readBasePayload(key, back));
+                        snapshots.add(snapshot);
+                        bytes += snapshot.payload().length;
+                    } catch (IOException ex) {
+                        errors.add(SQLITE + " " + key.uuid() + ": " + ex.getMessage());
+                    }
+                }
+            }
+            store.close();
+            database.close();
+        } catch (IOException ex) {
+            errors.add("Could not read modmode.db: " + ex.getMessage());
+        }
+        printRate("Read from sqlite", snapshots.size(), bytes, System.nanoTime() - start);
+        return snapshots;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check snapshots in parallel, returning the results in the same order.
+     */
+    private List<Checked> check(List<Snapshot> snapshots) {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Checked> results;
+        try {
+            results = pool.submit(() -> snapshots.parallelStream().map(this::check).toList()).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            errors.add("Checking was interrupted: " + ex.getMessage());
+            return List.of();
+        } finally {
+            pool.shutdown();
+        }
+        long bytes = 0;
+        for (Snapshot snapshot : snapshots) {
+            bytes += snapshot.payload().length;
+        }
+        printRate("Checked", snapshots.size(), bytes, System.nanoTime() - start);
+        return results;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check a single snapshot. Runs on a pool thread.
+     */
+    private Checked check(Snapshot snapshot) {
+        String name = describe(snapshot);
+        SnapshotCompressor compressor = compressors.get();
+        try {
+            PlayerStateCodec.Summary summary = PlayerStateCodec.inspect(compressor.decompress(snapshot.payload()));
+            if (summary.delta() != (snapshot.generation().base() != 0)) {
+                throw new IOException(summary.delta() ? "delta without a base generation" : "full snapshot with a base");
+            }
+            List<String> problems = new ArrayList<>();
+            checkVitals(summary, problems);
+            int itemBytes = checkItems(summary, problems);
+            if (snapshot.base() != null) {
+                PlayerStateCodec.Summary base = PlayerStateCodec.inspect(compressor.decompress(snapshot.base()));
+                if (base.delta()) {
+                    problems.add("base generation is itself a delta");
+                }
+                if (base.inventorySize() != summary.inventorySize()
+                        || base.enderChestSize() != summary.enderChestSize()) {
+                    problems.add("slot counts differ from the base generation");
+                }
+            }
+
+            String description = String.format("%s: %s, health %.1f, food %d, xp %.2f, %s (%.1f, %.1f, %.1f), "
+                            + "%d effects, %d items (%d bytes)%s",
+                    name, Instant.ofEpochMilli(snapshot.generation().timestamp()), summary.health(), summary.food(),
+                    summary.experience(), summary.world(), summary.x(), summary.y(), summary.z(),
+                    summary.effects().size(), summary.items().size(), itemBytes,
+                    summary.delta() ? ", " + summary.clearedSlots() + " cleared" : "");
+            for (String problem : problems) {
+                errors.add(name + ": " + problem);
+            }
+            return new Checked(snapshot, description, true, problems.isEmpty());
+        } catch (IOException ex) {
+            errors.add(name + ": " + ex.getMessage());
+            return new Checked(snapshot, name + ": unreadable", false, false);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a problem for each vital value that a player could not have.
+     */
+    private void checkVitals(PlayerStateCodec.Summary summary, List<String> problems) {
+        if (!(summary.health() >= 0 && summary.health() <= 1024)) {
+            problems.add("health " + summary.health() + " is out of range");
+        }
+        if (summary.food() < 0 || summary.food() > 20) {
+            problems.add("food " + summary.food() + " is out of range");
+        }
+        if (!(summary.experience() >= 0) || Float.isInfinite(summary.experience())) {
+            problems.add("experience " + summary.experience() + " is out of range");
+        }
+        if (!Double.isFinite(summary.x()) || !Double.isFinite(summary.y()) || !Double.isFinite(summary.z())
+                || !(Math.abs(summary.pitch()) <= 90) || !Float.isFinite(summary.yaw())) {
+            problems.add("location is not finite");
+        }
+        if (!worlds.isEmpty() && !worlds.contains(summary.world())) {
+            problems.add("world " + summary.world() + " does not exist");
+        }
+        if (summary.inventorySize() != INVENTORY_SIZE || summary.enderChestSize() != ENDER_CHEST_SIZE) {
+            problems.add("unexpected slot counts " + summary.inventorySize() + " and " + summary.enderChestSize());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a problem for each item that is not a complete compressed NBT
+     * compound, as written by Paper, and return the total size of the items.
+     */
+    private int checkItems(PlayerStateCodec.Summary summary, List<String> problems) {
+        int bytes = 0;
+        for (byte[] item : summary.items()) {
+            bytes += item.length;
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(item))) {
+                if (in.read() != TAG_COMPOUND) {
+                    problems.add("an item is not an NBT compound");
+                }
+                in.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException ex) {
+                problems.add("an item is damaged: " + ex.getMessage());
+            }
+        }
+        return bytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check the layout of the legacy YAML state files, which the server
+     * moves into the state store the first time each one is loaded.
+     */
+    private void checkLegacyFiles(boolean dump) {
+        File[] files = playersDir.listFiles((dir, name) -> name.endsWith("_mode.yml")
+                || name.endsWith("_normal.yml"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<String> lines = pool.submit(() -> List.of(files).parallelStream()
+                    .sorted(Comparator.comparing(File::getName))
+                    .map(this::checkLegacyFile).toList()).get();
+            if (dump) {
+                lines.forEach(System.out::println);
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            errors.add("Checking was interrupted: " + ex.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+        printRate("Checked legacy files", files.length, bytes, System.nanoTime() - start);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check that a legacy state file has the values written by older
+     * versions, and that each of its items names its type. Runs on a pool
+     * thread.
+     */
+    private String checkLegacyFile(File file) {
+        String name = "yaml " + file.getName();
+        try {
+            Map<String, String> values = new HashMap<>();
+            int items = 0;
+            boolean inItem = false;
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String trimmed = line.trim();
+                if (trimmed.equals("==: org.bukkit.inventory.ItemStack")) {
+                    if (inItem) {
+                        errors.add(name + ": an item has no type");
+                    }
+                    inItem = true;
+                    ++items;
+                } else if (inItem && trimmed.startsWith("type:")) {
+                    inItem = false;
+                }
+                int colon = line.indexOf(':');
+                if (!line.startsWith(" ") && colon > 0) {
+                    values.put(line.substring(0, colon), line.substring(colon + 1).trim());
+                }
+            }
+            if (inItem) {
+                errors.add(name + ": an item has no type");
+            }
+            for (String required : List.of("health", "food", "experience", "world", "x", "y", "z")) {
+                if (!values.containsKey(required)) {
+                    errors.add(name + ": " + required + " is missing");
+                }
+            }
+            String world = values.getOrDefault("world", "");
+            if (!worlds.isEmpty() && !worlds.contains(world)) {
+                errors.add(name + ": world " + world + " does not exist");
+            }
+            return name + ": health " + values.get("health") + ", food " + values.get("food") + ", " + world
+                    + ", " + items + " items";
+        } catch (IOException ex) {
+            errors.add(name + ": " + ex.getMessage());
+            return name + ": unreadable";
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read members.yml and replay members.journal over it.
+     *
+     * members.yml is read line by line in the layout written by the server,
+     * since the YAML parser is only available inside the server:
+     * <pre>
+     * groups:
+     *   &lt;group&gt;:
+     *     members:
+     *     - &lt;uuid&gt;
+     * </pre>
+     */
+    private Map<String, Set<UUID>> readMembers() {
+        Map<String, Set<UUID>> members = new LinkedHashMap<>();
+        File snapshotFile = new File(dataFolder, "members.yml");
+        try {
+            if (snapshotFile.exists()) {
+                String group = null;
+                for (String line : Files.readAllLines(snapshotFile.toPath(), StandardCharsets.UTF_8)) {
+                    String trimmed = line.trim();
+                    if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                        continue;
+                    }
+                    int indent = line.indexOf(trimmed);
+                    if (indent == 2 && trimmed.endsWith(":")) {
+                        group = trimmed.substring(0, trimmed.length() - 1).replace("'", "");
+                        members.computeIfAbsent(group, k -> new LinkedHashSet<>());
+                    } else if (group != null && trimmed.startsWith("- ")) {
+                        String uuid = trimmed.substring(2).replace("'", "");
+                        try {
+                            members.get(group).add(UUID.fromString(uuid));
+                        } catch (IllegalArgumentException ex) {
+                            errors.add("members.yml: " + uuid + " in group " + group + " is not a UUID");
+                        }
+                    }
+                }
+            }
+            MembershipJournal.replay(new File(dataFolder, "members.journal"), members);
+        } catch (IOException ex) {
+            errors.add("Could not read the group members: " + ex.getMessage());
+        }
+        return members;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the group members from the database.
+     */
+    private Map<String, Set<UUID>> readDatabaseMembers(File databaseFile) {
+        SqliteDatabase database = new SqliteDatabase(databaseFile, 1);
+        SqliteMembershipStore store = new SqliteMembershipStore(database);
+        try {
+            Map<String, Set<UUID>> members = store.load();
+            store.close();
+            database.close();
+            return members;
+        } catch (IOException ex) {
+            errors.add("Could not read the group members from modmode.db: " + ex.getMessage());
+            return Map.of();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the names of the world folders in a folder.
+     */
+    private static Set<String> findWorlds(File folder) {
+        Set<String> names = new HashSet<>();
+        File[] children = (folder != null) ? folder.listFiles(File::isDirectory) : null;
+        if (children != null) {
+            for (File child : children) {
+                if (new File(child, "level.dat").exists()) {
+                    names.add(child.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a short name for a snapshot, for messages.
+     */
+    private static String describe(Snapshot snapshot) {
+        Generation generation = snapshot.generation();
+        return snapshot.source() + " " + snapshot.key().uuid() + (snapshot.key().isMode() ? " mode" : " normal")
+                + " generation " + generation.generation()
+                + (generation.base() != 0 ? " (delta of " + generation.base() + ")" : "");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print how many things were processed and how quickly.
+     */
+    private static void printRate(String what, int count, long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        System.out.printf("%s %d in %.3f s: %.0f per second, %.2f MB/s%n", what, count, seconds, count / seconds,
+                bytes / seconds / (1024 * 1024));
+    }
+
+} // StateTool